@@ -0,0 +1,116 @@
+package trashsoftware.decimalExpr.benchmarks;
+
+import trashsoftware.decimalExpr.DecimalExpr;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A workload of expressions that share their variables and macros.
+ * <p>
+ * In a corpus file, lines starting with {@code #} are comments, the line {@code %variables} lists the names of the
+ * variables, each line {@code %macro name = content} defines a macro, in an order where a macro only refers to
+ * macros defined before it, and every other non-blank line is an expression.
+ */
+public final class Corpus {
+
+    private final String comment;
+    private final List<String> variables;
+    private final Map<String, String> macros;
+    private final List<String> expressions;
+
+    Corpus(String comment, List<String> variables, Map<String, String> macros, List<String> expressions) {
+        this.comment = comment;
+        this.variables = variables;
+        this.macros = macros;
+        this.expressions = expressions;
+    }
+
+    public static Corpus read(Path path) throws IOException {
+        StringBuilder comment = new StringBuilder();
+        List<String> variables = new ArrayList<>();
+        Map<String, String> macros = new LinkedHashMap<>();
+        List<String> expressions = new ArrayList<>();
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty()) continue;
+            if (line.startsWith("#")) {
+                if (comment.length() > 0) comment.append('\n');
+                comment.append(line.substring(1).trim());
+            } else if (line.startsWith("%variables")) {
+                String names = line.substring("%variables".length()).trim();
+                if (!names.isEmpty()) variables.addAll(Arrays.asList(names.split("\\s+")));
+            } else if (line.startsWith("%macro ")) {
+                int equals = line.indexOf('=');
+                if (equals < 0) throw new IOException(path + ":" + (i + 1) + ": expected '%macro name = content'");
+                macros.put(line.substring("%macro ".length(), equals).trim(), line.substring(equals + 1).trim());
+            } else {
+                expressions.add(line);
+            }
+        }
+        return new Corpus(comment.toString(), variables, macros, expressions);
+    }
+
+    public void write(Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        if (!comment.isEmpty()) {
+            for (String line : comment.split("\n")) lines.add("# " + line);
+        }
+        lines.add("%variables " + String.join(" ", variables));
+        for (Map.Entry<String, String> macro : macros.entrySet()) {
+            lines.add("%macro " + macro.getKey() + " = " + macro.getValue());
+        }
+        lines.addAll(expressions);
+        Files.write(path, lines, StandardCharsets.UTF_8);
+    }
+
+    public List<String> getVariables() {
+        return Collections.unmodifiableList(variables);
+    }
+
+    public Map<String, String> getMacros() {
+        return Collections.unmodifiableMap(macros);
+    }
+
+    public List<String> getExpressions() {
+        return Collections.unmodifiableList(expressions);
+    }
+
+    /**
+     * @return a builder that declares the variables and macros of this corpus, without expression
+     */
+    public DecimalExpr.Builder environment() {
+        DecimalExpr.Builder builder = new DecimalExpr.Builder();
+        for (String variable : variables) builder.variable(variable);
+        for (String macro : macros.keySet()) builder.macro(macro);
+        return builder;
+    }
+
+    /**
+     * Sets the macros of an expression built by {@link #environment()}, and its variables to their default values.
+     *
+     * @param expr the expression
+     */
+    public void bind(DecimalExpr expr) {
+        for (Map.Entry<String, String> macro : macros.entrySet()) expr.setMacro(macro.getKey(), macro.getValue());
+        for (int i = 0; i < variables.size(); i++) expr.setVariable(variables.get(i), defaultValue(i));
+    }
+
+    /**
+     * @return the default value of the variable at {@code index}, which is always positive
+     */
+    static Number defaultValue(int index) {
+        return Rational.fromFraction(index + 2, index + 1);
+    }
+}
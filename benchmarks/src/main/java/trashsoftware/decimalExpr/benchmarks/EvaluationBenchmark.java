@@ -0,0 +1,84 @@
+package trashsoftware.decimalExpr.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import trashsoftware.decimalExpr.DecimalExpr;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repeated evaluation of a built expression, setting a variable before each evaluation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EvaluationBenchmark {
+
+    private static final int VALUE_COUNT = 16;
+
+    /**
+     * How the expressions are evaluated, see {@link Expressions#mode}.
+     */
+    @Param({"tree", "bytecode", "postfix"})
+    public String mode;
+
+    private final Number[] values = new Number[VALUE_COUNT];
+    private int next;
+
+    private DecimalExpr polynomial;
+    private DecimalExpr withMacro;
+    private DecimalExpr large;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < VALUE_COUNT; i++) values[i] = Rational.fromFraction(i * 7 + 1, i + 3);
+
+        polynomial = Expressions.mode(new DecimalExpr.Builder(), mode)
+                .expression("3x^3 - 2x^2 y + x y^2/7 - 5y + 1").variable("x").variable("y").build();
+        withMacro = Expressions.mode(Expressions.environment(), mode)
+                .expression("m x + m/y - (x+y) m").build();
+        withMacro.setMacro("m", "x^2 + 2y");
+        large = Expressions.mode(Expressions.environment(), mode).expression(Expressions.generate(1000)).build();
+        large.setMacro("m", "x - y");
+        for (DecimalExpr expr : new DecimalExpr[]{polynomial, withMacro, large}) expr.setVariable("y", 3);
+    }
+
+    private Number nextValue() {
+        return values[next++ & (VALUE_COUNT - 1)];
+    }
+
+    @Benchmark
+    public Number variables() {
+        polynomial.setVariable("x", nextValue());
+        return polynomial.evaluate();
+    }
+
+    @Benchmark
+    public Number macros() {
+        withMacro.setVariable("x", nextValue());
+        return withMacro.evaluate();
+    }
+
+    /**
+     * An expression of 1000 terms, with the macro {@code m} used 200 times.
+     */
+    @Benchmark
+    public Number largeExpression() {
+        large.setVariable("x", nextValue());
+        return large.evaluate();
+    }
+}
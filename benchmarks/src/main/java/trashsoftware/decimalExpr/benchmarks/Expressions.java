@@ -0,0 +1,68 @@
+package trashsoftware.decimalExpr.benchmarks;
+
+import trashsoftware.decimalExpr.DecimalExpr;
+
+/**
+ * Expressions shared by the benchmarks.
+ */
+final class Expressions {
+
+    private Expressions() {
+    }
+
+    /**
+     * Generates a sum of {@code terms} terms, cycling through integers, decimals, variables, powers, function calls
+     * and the macro {@code m}, so that every kind of token and node is measured.
+     *
+     * @param terms number of terms
+     * @return the expression
+     */
+    static String generate(int terms) {
+        StringBuilder expression = new StringBuilder();
+        for (int i = 0; i < terms; i++) {
+            if (i > 0) expression.append(i % 2 == 0 ? " + " : " - ");
+            switch (i % 5) {
+                case 0:
+                    expression.append(i).append('x');
+                    break;
+                case 1:
+                    expression.append(i).append(".25/y");
+                    break;
+                case 2:
+                    expression.append("(x+").append(i).append(")^2");
+                    break;
+                case 3:
+                    expression.append("abs(-").append(i).append("y)");
+                    break;
+                default:
+                    expression.append("m*").append(i);
+            }
+        }
+        return expression.toString();
+    }
+
+    /**
+     * @return a builder declaring the variables {@code x} and {@code y} and the macro {@code m}
+     */
+    static DecimalExpr.Builder environment() {
+        return new DecimalExpr.Builder().variable("x").variable("y").macro("m");
+    }
+
+    /**
+     * @param builder a builder
+     * @param mode    {@code tree}, {@code bytecode} or {@code postfix}
+     * @return the builder, set to evaluate in that mode
+     */
+    static DecimalExpr.Builder mode(DecimalExpr.Builder builder, String mode) {
+        switch (mode) {
+            case "tree":
+                return builder.compileThreshold(-1);
+            case "bytecode":
+                return builder.compileThreshold(0);
+            case "postfix":
+                return builder.postfix();
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package trashsoftware.decimalExpr.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import trashsoftware.decimalExpr.numbers.Complex;
+import trashsoftware.decimalExpr.numbers.Decimal;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+import trashsoftware.decimalExpr.numbers.Real;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Arithmetic of {@code Rational}, {@code Decimal} and {@code Complex} numbers, by number of digits of the operands.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NumbersBenchmark {
+
+    /**
+     * Number of digits of each numerator and denominator, and of each integer and fraction part of decimals.
+     */
+    @Param({"1", "18", "100", "1000"})
+    public int digits;
+
+    private Rational rationalLeft;
+    private Rational rationalRight;
+    private Real decimalLeft;
+    private Real decimalRight;
+    private Number complexLeft;
+    private Number complexRight;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        rationalLeft = Rational.fromFraction(randomInteger(random), randomInteger(random));
+        rationalRight = Rational.fromFraction(randomInteger(random), randomInteger(random));
+        decimalLeft = Decimal.fromDecimalString(randomInteger(random) + "." + randomInteger(random));
+        decimalRight = Decimal.fromDecimalString(randomInteger(random) + "." + randomInteger(random));
+        complexLeft = Complex.createComplex(rationalLeft, decimalLeft);
+        complexRight = Complex.createComplex(decimalRight, rationalRight);
+    }
+
+    private BigInteger randomInteger(Random random) {
+        StringBuilder integer = new StringBuilder().append(1 + random.nextInt(9));
+        for (int i = 1; i < digits; i++) integer.append(random.nextInt(10));
+        return new BigInteger(integer.toString());
+    }
+
+    @Benchmark
+    public Number rationalAdd() {
+        return rationalLeft.add(rationalRight);
+    }
+
+    @Benchmark
+    public Number rationalMul() {
+        return rationalLeft.mul(rationalRight);
+    }
+
+    @Benchmark
+    public Number rationalDiv() {
+        return rationalLeft.div(rationalRight);
+    }
+
+    @Benchmark
+    public Number rationalPow() {
+        return rationalLeft.pow(3);
+    }
+
+    @Benchmark
+    public Number decimalAdd() {
+        return decimalLeft.add(decimalRight);
+    }
+
+    @Benchmark
+    public Number decimalMul() {
+        return decimalLeft.mul(decimalRight);
+    }
+
+    @Benchmark
+    public Number decimalDiv() {
+        return decimalLeft.div(decimalRight);
+    }
+
+    @Benchmark
+    public Number decimalSqrt() {
+        return decimalLeft.sqrt();
+    }
+
+    @Benchmark
+    public Number complexAdd() {
+        return complexLeft.add(complexRight);
+    }
+
+    @Benchmark
+    public Number complexMul() {
+        return complexLeft.mul(complexRight);
+    }
+
+    @Benchmark
+    public Number complexDiv() {
+        return complexLeft.div(complexRight);
+    }
+}
@@ -0,0 +1,65 @@
+package trashsoftware.decimalExpr.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import trashsoftware.decimalExpr.DecimalExpr;
+import trashsoftware.decimalExpr.builder.Element;
+import trashsoftware.decimalExpr.builder.Node;
+import trashsoftware.decimalExpr.builder.Parser;
+import trashsoftware.decimalExpr.builder.Tokenizer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokenizing, parsing and building small and very large expressions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int terms;
+
+    private String expression;
+    private DecimalExpr environment;
+    private Element.CollectiveElement tokens;
+
+    @Setup
+    public void setUp() {
+        expression = Expressions.generate(terms);
+        environment = Expressions.environment().expression("0").build();
+        // the parser does not change the tokens, so they are parsed again at every invocation
+        tokens = new Tokenizer(expression).tokenize();
+    }
+
+    @Benchmark
+    public Element.CollectiveElement tokenize() {
+        return new Tokenizer(expression).tokenize();
+    }
+
+    @Benchmark
+    public Node.BlockStmt parse() {
+        return new Parser(tokens, environment).parse();
+    }
+
+    /**
+     * The whole pipeline: tokenizing, parsing, simplifying, merging common subexpressions and compiling.
+     */
+    @Benchmark
+    public DecimalExpr build() {
+        return Expressions.environment().expression(expression).build();
+    }
+}
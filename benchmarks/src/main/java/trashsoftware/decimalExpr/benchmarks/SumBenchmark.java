@@ -0,0 +1,62 @@
+package trashsoftware.decimalExpr.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import trashsoftware.decimalExpr.DecimalExpr;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluation of {@code sum} loops, whose body is evaluated once per value of the invariant.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SumBenchmark {
+
+    @Param({"tree", "bytecode", "postfix"})
+    public String mode;
+
+    @Param({"10", "1000"})
+    public int length;
+
+    private DecimalExpr sum;
+    private DecimalExpr nested;
+    private long x;
+
+    @Setup
+    public void setUp() {
+        sum = Expressions.mode(new DecimalExpr.Builder(), mode)
+                .expression("sum(k, k^2 x + k/3, 1, " + length + ")").variable("x").build();
+        // the inner loop is 10 times shorter, so both benchmarks run about the same number of bodies
+        nested = Expressions.mode(new DecimalExpr.Builder(), mode)
+                .expression("sum(j, sum(k, j k x, 1, " + Math.max(1, length / 10) + "), 1, 10)")
+                .variable("x").build();
+    }
+
+    @Benchmark
+    public Number sum() {
+        sum.setVariable("x", Rational.valueOf(++x & 15));
+        return sum.evaluate();
+    }
+
+    @Benchmark
+    public Number nestedSum() {
+        nested.setVariable("x", Rational.valueOf(++x & 15));
+        return nested.evaluate();
+    }
+}
@@ -0,0 +1,338 @@
+package trashsoftware.decimalExpr.benchmarks;
+
+import trashsoftware.decimalExpr.DecimalExpr;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Generates random corpora of valid expressions.
+ * <p>
+ * Every setting controls one aspect of the workload: the number of terms of an expression, the depth of each term,
+ * the mix of operators and functions, the number of variables, the number of macros and how deeply they refer to
+ * each other, how often {@code sum} is called, and the styles of literals. Each expression is built and evaluated
+ * once before it is kept, so a corpus never contains an expression that fails, such as a division by zero. The same
+ * seed and settings always generate the same corpus.
+ * <p>
+ * Divisors are always positive literals, variables, or one plus an absolute value, and exponents are small integers.
+ * Bodies of {@code sum} never subtract, since the parser reads a minus after a name in a macro function body as a
+ * negation.
+ *
+ * <pre>
+ * java -cp benchmarks.jar trashsoftware.decimalExpr.benchmarks.WorkloadGenerator corpus.txt seed=7 terms=20 sum=0
+ * </pre>
+ */
+public final class WorkloadGenerator {
+
+    /**
+     * The kinds of inner nodes, each with a weight in the mix.
+     */
+    public enum Kind {
+        ADD, SUB, MUL, DIV, POW, NEG, CALL
+    }
+
+    /**
+     * The styles of literals, each with a weight in the mix.
+     */
+    public enum Literal {
+        /**
+         * Integers, sometimes juxtaposed with a variable as in {@code 3x0}.
+         */
+        INTEGER,
+        DECIMAL,
+        /**
+         * Decimals with digits grouped by underscores, as in {@code 1_024.5}.
+         */
+        UNDERSCORE,
+        /**
+         * Recurring decimals, as in {@code 0.{142857}}.
+         */
+        RECURRING
+    }
+
+    private static final int MAX_ATTEMPTS = 100;
+    private static final Pattern NAME = Pattern.compile("[a-z][a-z0-9]*");
+
+    private final long seed;
+    private int terms = 6;
+    private int maxDepth = 4;
+    private int variableCount = 4;
+    private int macroCount = 3;
+    private int macroNesting = 2;
+    private double sumProbability = 0.05;
+    private final Map<Kind, Integer> kinds = new EnumMap<>(Kind.class);
+    private final Map<Literal, Integer> literals = new EnumMap<>(Literal.class);
+
+    private Random random;
+    private List<String> variables;
+    private List<String> macros;
+
+    public WorkloadGenerator(long seed) {
+        this.seed = seed;
+        for (Kind kind : Kind.values()) kinds.put(kind, 1);
+        kinds.put(Kind.ADD, 4);
+        kinds.put(Kind.MUL, 4);
+        kinds.put(Kind.SUB, 2);
+        for (Literal literal : Literal.values()) literals.put(literal, 1);
+        literals.put(Literal.INTEGER, 6);
+        literals.put(Literal.DECIMAL, 2);
+    }
+
+    /**
+     * @param terms number of terms added or subtracted at the top of each expression
+     * @return this generator
+     */
+    public WorkloadGenerator terms(int terms) {
+        if (terms < 1) throw new IllegalArgumentException("Terms must be positive");
+        this.terms = terms;
+        return this;
+    }
+
+    /**
+     * @param maxDepth maximum depth of the operators in a term, 0 for literals and names only
+     * @return this generator
+     */
+    public WorkloadGenerator maxDepth(int maxDepth) {
+        if (maxDepth < 0) throw new IllegalArgumentException("Depth must not be negative");
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    public WorkloadGenerator variables(int variableCount) {
+        if (variableCount < 0) throw new IllegalArgumentException("Variable count must not be negative");
+        this.variableCount = variableCount;
+        return this;
+    }
+
+    /**
+     * @param macroCount   number of macros
+     * @param macroNesting maximum length of a chain of macros referring to each other
+     * @return this generator
+     */
+    public WorkloadGenerator macros(int macroCount, int macroNesting) {
+        if (macroCount < 0 || macroNesting < 0) throw new IllegalArgumentException("Macros must not be negative");
+        this.macroCount = macroCount;
+        this.macroNesting = macroNesting;
+        return this;
+    }
+
+    /**
+     * @param sumProbability probability that an inner node is a call to {@code sum}
+     * @return this generator
+     */
+    public WorkloadGenerator sumProbability(double sumProbability) {
+        if (sumProbability < 0 || sumProbability > 1) throw new IllegalArgumentException("Not a probability");
+        this.sumProbability = sumProbability;
+        return this;
+    }
+
+    public WorkloadGenerator weight(Kind kind, int weight) {
+        if (weight < 0) throw new IllegalArgumentException("Weight must not be negative");
+        kinds.put(kind, weight);
+        return this;
+    }
+
+    public WorkloadGenerator weight(Literal literal, int weight) {
+        if (weight < 0) throw new IllegalArgumentException("Weight must not be negative");
+        literals.put(literal, weight);
+        return this;
+    }
+
+    /**
+     * @param count number of expressions
+     * @return the corpus
+     */
+    public Corpus generate(int count) {
+        if (literals.values().stream().allMatch(weight -> weight == 0)) {
+            throw new IllegalArgumentException("At least one literal style must have a weight");
+        }
+        random = new Random(seed);
+        variables = new ArrayList<>();
+        for (int i = 0; i < variableCount; i++) variables.add("x" + i);
+
+        macros = new ArrayList<>();
+        Map<String, String> macroContents = new LinkedHashMap<>();
+        int[] nesting = new int[macroCount];
+        for (int i = 0; i < macroCount; i++) {
+            // a macro refers to at most one earlier macro whose chain is short enough
+            List<Integer> referable = new ArrayList<>();
+            for (int j = 0; j < i; j++) {
+                if (nesting[j] < macroNesting) referable.add(j);
+            }
+            List<String> visible = new ArrayList<>();
+            String content = expression(Math.max(1, terms / 2), visible);
+            if (!referable.isEmpty()) {
+                int referred = referable.get(random.nextInt(referable.size()));
+                nesting[i] = nesting[referred] + 1;
+                content = "m" + referred + " + " + content;
+            }
+            macroContents.put("m" + i, content);
+            macros.add("m" + i);
+        }
+
+        String comment = String.format("Generated by WorkloadGenerator: seed=%d expressions=%d terms=%d depth=%d " +
+                        "variables=%d macros=%d nesting=%d sum=%s kinds=%s literals=%s", seed, count, terms, maxDepth,
+                variableCount, macroCount, macroNesting, sumProbability, kinds, literals);
+        List<String> expressions = new ArrayList<>();
+        Corpus corpus = new Corpus(comment, variables, macroContents, expressions);
+        for (int i = 0; i < count; i++) expressions.add(validExpression(corpus));
+        return corpus;
+    }
+
+    private String validExpression(Corpus corpus) {
+        RuntimeException last = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            String expression = expression(terms, macros);
+            try {
+                DecimalExpr expr = corpus.environment().expression(expression).build();
+                corpus.bind(expr);
+                expr.evaluate();
+                return expression;
+            } catch (RuntimeException e) {
+                last = e;
+            }
+        }
+        throw new IllegalStateException("No valid expression in " + MAX_ATTEMPTS + " attempts", last);
+    }
+
+    private String expression(int termCount, List<String> visibleMacros) {
+        StringBuilder expression = new StringBuilder(term(0, visibleMacros, null));
+        for (int i = 1; i < termCount; i++) {
+            expression.append(random.nextInt(3) == 0 ? " - " : " + ").append(term(0, visibleMacros, null));
+        }
+        return expression.toString();
+    }
+
+    /**
+     * @param invariant the invariant of the innermost {@code sum} around this term, or {@code null}
+     */
+    private String term(int depth, List<String> visibleMacros, String invariant) {
+        if (depth >= maxDepth || random.nextInt(4) == 0) return leaf(visibleMacros, invariant);
+        if (random.nextDouble() < sumProbability) {
+            String k = "k" + depth;
+            return "sum(" + k + ", " + term(depth + 1, visibleMacros, k) + ", 1, " + (1 + random.nextInt(12)) + ")";
+        }
+        Kind kind = pick(kinds);
+        if (kind == null) return leaf(visibleMacros, invariant);
+        if (kind == Kind.SUB && invariant != null) kind = Kind.ADD;
+        switch (kind) {
+            case ADD:
+                return "(" + term(depth + 1, visibleMacros, invariant) + " + " +
+                        term(depth + 1, visibleMacros, invariant) + ")";
+            case SUB:
+                return "(" + term(depth + 1, visibleMacros, invariant) + " - " +
+                        term(depth + 1, visibleMacros, invariant) + ")";
+            case MUL:
+                String left = term(depth + 1, visibleMacros, invariant);
+                String right = term(depth + 1, visibleMacros, invariant);
+                // juxtaposition multiplies by a name only, since "2(x)" is not a product
+                boolean juxtaposed = NAME.matcher(right).matches() && random.nextBoolean();
+                return "(" + left + (juxtaposed ? " " : " * ") + right + ")";
+            case DIV:
+                return "(" + term(depth + 1, visibleMacros, invariant) + " / " +
+                        divisor(depth + 1, visibleMacros, invariant) + ")";
+            case POW:
+                return "(" + term(depth + 1, visibleMacros, invariant) + ")^" + random.nextInt(4);
+            case NEG:
+                return "(-" + term(depth + 1, visibleMacros, invariant) + ")";
+            default:
+                String argument = term(depth + 1, visibleMacros, invariant);
+                return random.nextBoolean() ? "abs(" + argument + ")" : "sqrt(abs(" + argument + "))";
+        }
+    }
+
+    private String divisor(int depth, List<String> visibleMacros, String invariant) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return Integer.toString(1 + random.nextInt(99));
+            case 1:
+                if (!variables.isEmpty()) return variables.get(random.nextInt(variables.size()));
+                return Integer.toString(1 + random.nextInt(99));
+            default:
+                return "(abs(" + term(depth, visibleMacros, invariant) + ") + 1)";
+        }
+    }
+
+    private String leaf(List<String> visibleMacros, String invariant) {
+        int names = variables.size() + visibleMacros.size() + (invariant == null ? 0 : 1);
+        if (names > 0 && random.nextBoolean()) {
+            int index = random.nextInt(names);
+            if (index < variables.size()) return variables.get(index);
+            index -= variables.size();
+            if (index < visibleMacros.size()) return visibleMacros.get(index);
+            return invariant;
+        }
+        switch (pick(literals)) {
+            case INTEGER:
+                if (!variables.isEmpty() && random.nextInt(4) == 0) {
+                    return (1 + random.nextInt(999)) + variables.get(random.nextInt(variables.size()));
+                }
+                return Integer.toString(random.nextInt(1000));
+            case DECIMAL:
+                return random.nextInt(100) + "." + (1 + random.nextInt(999));
+            case UNDERSCORE:
+                return (1 + random.nextInt(99)) + "_" + String.format("%03d", random.nextInt(1000)) + "." +
+                        (1 + random.nextInt(99));
+            default:
+                return random.nextInt(10) + "." + (random.nextBoolean() ? "" : random.nextInt(10)) + "{" +
+                        (1 + random.nextInt(999)) + "}";
+        }
+    }
+
+    private <K extends Enum<K>> K pick(Map<K, Integer> weights) {
+        int total = 0;
+        for (int weight : weights.values()) total += weight;
+        if (total == 0) return null;
+        int chosen = random.nextInt(total);
+        for (Map.Entry<K, Integer> entry : weights.entrySet()) {
+            chosen -= entry.getValue();
+            if (chosen < 0) return entry.getKey();
+        }
+        throw new AssertionError();
+    }
+
+    /**
+     * Writes a corpus.
+     *
+     * @param args the corpus file, then settings as {@code name=value}: {@code seed}, {@code expressions},
+     *             {@code terms}, {@code depth}, {@code variables}, {@code macros}, {@code nesting}, {@code sum}, and
+     *             the weights of the kinds and literal styles by lower case name, such as {@code pow=0}
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: WorkloadGenerator <corpus file> [name=value]...");
+            System.exit(2);
+        }
+        Map<String, String> settings = new LinkedHashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (equals < 0) throw new IllegalArgumentException("Expected name=value, got " + args[i]);
+            settings.put(args[i].substring(0, equals), args[i].substring(equals + 1));
+        }
+        WorkloadGenerator generator = new WorkloadGenerator(Long.parseLong(settings.getOrDefault("seed", "42")))
+                .terms(Integer.parseInt(settings.getOrDefault("terms", "6")))
+                .maxDepth(Integer.parseInt(settings.getOrDefault("depth", "4")))
+                .variables(Integer.parseInt(settings.getOrDefault("variables", "4")))
+                .macros(Integer.parseInt(settings.getOrDefault("macros", "3")),
+                        Integer.parseInt(settings.getOrDefault("nesting", "2")))
+                .sumProbability(Double.parseDouble(settings.getOrDefault("sum", "0.05")));
+        for (Kind kind : Kind.values()) {
+            String weight = settings.get(kind.name().toLowerCase());
+            if (weight != null) generator.weight(kind, Integer.parseInt(weight));
+        }
+        for (Literal literal : Literal.values()) {
+            String weight = settings.get(literal.name().toLowerCase());
+            if (weight != null) generator.weight(literal, Integer.parseInt(weight));
+        }
+        Corpus corpus = generator.generate(Integer.parseInt(settings.getOrDefault("expressions", "1000")));
+        corpus.write(Path.of(args[0]));
+        System.out.println("Wrote " + corpus.getExpressions().size() + " expressions to " + args[0]);
+    }
+}
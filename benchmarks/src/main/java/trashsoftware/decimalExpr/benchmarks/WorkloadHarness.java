@@ -0,0 +1,226 @@
+package trashsoftware.decimalExpr.benchmarks;
+
+import trashsoftware.decimalExpr.DecimalExpr;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Builds and evaluates every expression of a corpus, and appends the throughput, latency and allocation of the run
+ * to a results file, one CSV row per run, so that runs can be compared over time.
+ * <p>
+ * One operation is building an expression, setting the macros and variables of the corpus, and evaluating it a
+ * number of times, with a different value of the first variable each time. The corpus is first run a number of
+ * warmup passes that are not recorded. Expressions that throw are counted as errors and not recorded either.
+ *
+ * <pre>
+ * java -cp benchmarks.jar trashsoftware.decimalExpr.benchmarks.WorkloadHarness corpus/reference.txt results.csv
+ * </pre>
+ */
+public final class WorkloadHarness {
+
+    static final String HEADER = "timestamp,corpus,expressions,warmup_passes,passes,evaluations," +
+            "throughput_per_s,p50_us,p99_us,allocated_bytes_per_expression,errors,java_version";
+
+    private static final Number[] VALUES = new Number[16];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) VALUES[i] = Rational.fromFraction(i + 3, 2);
+    }
+
+    private final Corpus corpus;
+    private final int evaluations;
+    private final com.sun.management.ThreadMXBean threads;
+    /**
+     * Keeps the results alive, so that evaluations are not optimized away.
+     */
+    private volatile int sink;
+
+    /**
+     * @param corpus      the expressions
+     * @param evaluations number of evaluations after each build
+     */
+    public WorkloadHarness(Corpus corpus, int evaluations) {
+        if (evaluations < 1) throw new IllegalArgumentException("Evaluations must be positive");
+        this.corpus = corpus;
+        this.evaluations = evaluations;
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threads = (com.sun.management.ThreadMXBean) bean;
+            threads.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            threads = null;
+        }
+    }
+
+    /**
+     * Runs the corpus.
+     *
+     * @param warmupPasses passes that are not recorded
+     * @param passes       recorded passes
+     * @return statistics of the recorded passes
+     */
+    public Result run(int warmupPasses, int passes) {
+        for (int i = 0; i < warmupPasses; i++) runPass(null, null, null);
+
+        List<String> expressions = corpus.getExpressions();
+        long[] latencies = new long[expressions.size() * passes];
+        long[] allocated = new long[1];
+        int[] recorded = new int[1];
+        int errors = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < passes; i++) errors += runPass(latencies, allocated, recorded);
+        long elapsed = System.nanoTime() - start;
+
+        long[] samples = Arrays.copyOf(latencies, recorded[0]);
+        Arrays.sort(samples);
+        return new Result(expressions.size(), warmupPasses, passes, evaluations,
+                recorded[0] * 1e9 / elapsed,
+                percentile(samples, 50), percentile(samples, 99),
+                threads == null || recorded[0] == 0 ? -1 : allocated[0] / recorded[0],
+                errors);
+    }
+
+    /**
+     * Runs all expressions once, recording their latencies and allocations unless {@code latencies} is null.
+     *
+     * @return number of expressions that threw
+     */
+    private int runPass(long[] latencies, long[] allocated, int[] recorded) {
+        int errors = 0;
+        long thread = Thread.currentThread().getId();
+        for (String expression : corpus.getExpressions()) {
+            long bytesBefore = threads == null ? 0 : threads.getThreadAllocatedBytes(thread);
+            long before = System.nanoTime();
+            try {
+                DecimalExpr expr = corpus.environment().expression(expression).build();
+                corpus.bind(expr);
+                for (int i = 0; i < evaluations; i++) {
+                    if (!corpus.getVariables().isEmpty()) {
+                        expr.setVariable(corpus.getVariables().get(0), VALUES[i & (VALUES.length - 1)]);
+                    }
+                    sink += expr.evaluate().hashCode();
+                }
+            } catch (RuntimeException e) {
+                errors++;
+                continue;
+            }
+            long after = System.nanoTime();
+            if (latencies != null) {
+                latencies[recorded[0]++] = after - before;
+                if (threads != null) allocated[0] += threads.getThreadAllocatedBytes(thread) - bytesBefore;
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * @return the nearest-rank percentile of sorted samples, or 0 if there is none
+     */
+    static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Statistics of a run.
+     */
+    public static final class Result {
+        public final int expressions;
+        public final int warmupPasses;
+        public final int passes;
+        public final int evaluations;
+        public final double throughputPerSecond;
+        public final long p50Nanos;
+        public final long p99Nanos;
+        /**
+         * Bytes allocated per expression, or -1 if the JVM does not measure allocations.
+         */
+        public final long allocatedBytesPerExpression;
+        public final int errors;
+
+        Result(int expressions, int warmupPasses, int passes, int evaluations, double throughputPerSecond,
+               long p50Nanos, long p99Nanos, long allocatedBytesPerExpression, int errors) {
+            this.expressions = expressions;
+            this.warmupPasses = warmupPasses;
+            this.passes = passes;
+            this.evaluations = evaluations;
+            this.throughputPerSecond = throughputPerSecond;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.allocatedBytesPerExpression = allocatedBytesPerExpression;
+            this.errors = errors;
+        }
+
+        /**
+         * @param corpusName name of the corpus, written in the row
+         * @return the row of this result in a results file
+         */
+        public String toCsv(String corpusName) {
+            return String.format(Locale.ROOT, "%s,%s,%d,%d,%d,%d,%.1f,%.3f,%.3f,%d,%d,%s",
+                    Instant.now(), corpusName.replace(',', '_'), expressions, warmupPasses, passes, evaluations,
+                    throughputPerSecond, p50Nanos / 1e3, p99Nanos / 1e3, allocatedBytesPerExpression, errors,
+                    System.getProperty("java.version"));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%d expressions x %d passes: %.1f expressions/s, p50 %.3f us, p99 %.3f us, " +
+                            "%d bytes/expression, %d errors",
+                    expressions, passes, throughputPerSecond, p50Nanos / 1e3, p99Nanos / 1e3,
+                    allocatedBytesPerExpression, errors);
+        }
+    }
+
+    /**
+     * Appends a result to a results file, writing the header first if the file is new.
+     *
+     * @param results    the results file
+     * @param corpusName name of the corpus
+     * @param result     the result
+     * @throws IOException if the file cannot be written
+     */
+    public static void append(Path results, String corpusName, Result result) throws IOException {
+        StringBuilder text = new StringBuilder();
+        if (!Files.exists(results) || Files.size(results) == 0) text.append(HEADER).append('\n');
+        text.append(result.toCsv(corpusName)).append('\n');
+        Files.writeString(results, text, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Runs a corpus and appends the result to a results file.
+     *
+     * @param args the corpus file, the results file, and optionally the number of warmup passes (3), recorded
+     *             passes (5) and evaluations per build (10)
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 5) {
+            System.err.println("Usage: WorkloadHarness <corpus file> <results file> " +
+                    "[warmup passes] [passes] [evaluations]");
+            System.exit(2);
+        }
+        Path corpusFile = Path.of(args[0]);
+        int warmupPasses = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int passes = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        int evaluations = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+
+        WorkloadHarness harness = new WorkloadHarness(Corpus.read(corpusFile), evaluations);
+        Result result = harness.run(warmupPasses, passes);
+        append(Path.of(args[1]), corpusFile.getFileName().toString(), result);
+        System.out.println(result);
+    }
+}
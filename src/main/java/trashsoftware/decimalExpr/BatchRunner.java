@@ -0,0 +1,97 @@
+package trashsoftware.decimalExpr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Splits the rows of a batch into chunks, and evaluates the chunks in a {@code ForkJoinPool}.
+ * <p>
+ * Each chunk writes its own range of the output, so the order of results does not depend on scheduling.
+ */
+final class BatchRunner {
+
+    /**
+     * Batches smaller than this are evaluated on the calling thread.
+     */
+    static final int PARALLEL_THRESHOLD = 4096;
+
+    /**
+     * Smallest number of rows in a chunk.
+     */
+    static final int MIN_CHUNK_SIZE = 1024;
+
+    interface RangeTask {
+        /**
+         * Evaluates the rows in {@code [from, to)}.
+         */
+        void run(int from, int to);
+    }
+
+    private BatchRunner() {
+    }
+
+    static BatchStats run(int rows, RangeTask task) {
+        return run(rows, PARALLEL_THRESHOLD, MIN_CHUNK_SIZE, task);
+    }
+
+    /**
+     * Runs a batch whose rows are more or less expensive than evaluations.
+     *
+     * @param rows              number of rows
+     * @param parallelThreshold batches smaller than this are run on the calling thread
+     * @param minChunkSize      smallest number of rows in a chunk
+     * @param task              runs a range of rows
+     * @return statistics of the batch
+     */
+    static BatchStats run(int rows, int parallelThreshold, int minChunkSize, RangeTask task) {
+        long begin = System.nanoTime();
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int chunks = 1;
+        if (rows < parallelThreshold || pool.getParallelism() <= 1) {
+            task.run(0, rows);
+        } else {
+            int chunkSize = Math.max(minChunkSize, rows / (pool.getParallelism() * 4));
+            chunks = (rows + chunkSize - 1) / chunkSize;
+            List<RecursiveAction> actions = new ArrayList<>(chunks);
+            for (int from = 0; from < rows; from += chunkSize) {
+                int start = from;
+                int end = Math.min(rows, from + chunkSize);
+                actions.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        task.run(start, end);
+                    }
+                });
+            }
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    ForkJoinTask.invokeAll(actions);
+                }
+            });
+        }
+        return new BatchStats(rows, chunks, System.nanoTime() - begin);
+    }
+
+    /**
+     * Checks that all columns and the output have the same number of rows.
+     *
+     * @param columns   the input columns
+     * @param outLength length of the output
+     * @param length    gives the length of a column
+     */
+    static <T> void checkLengths(Map<String, T> columns, int outLength, ToIntFunction<T> length) {
+        for (Map.Entry<String, T> entry : columns.entrySet()) {
+            int columnLength = length.applyAsInt(entry.getValue());
+            if (columnLength != outLength) {
+                throw new IllegalArgumentException(String.format("Column '%s' has %d rows, but output has %d.",
+                        entry.getKey(), columnLength, outLength));
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package trashsoftware.decimalExpr;
+
+/**
+ * Statistics of a batch evaluation.
+ */
+public final class BatchStats {
+
+    private final long rows;
+    private final long chunks;
+    private final long elapsedNanos;
+
+    BatchStats(long rows, long chunks, long elapsedNanos) {
+        this.rows = rows;
+        this.chunks = chunks;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return number of evaluated rows
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return number of chunks the rows were split into, 1 if the batch was evaluated on the calling thread
+     */
+    public long getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return wall clock time of the batch, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return number of rows evaluated per second
+     */
+    public double getRowsPerSecond() {
+        return elapsedNanos == 0 ? Double.POSITIVE_INFINITY : rows * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BatchStats{rows=%d, chunks=%d, elapsed=%.3f ms, %.0f rows/s}",
+                rows, chunks, elapsedNanos / 1e6, getRowsPerSecond());
+    }
+}
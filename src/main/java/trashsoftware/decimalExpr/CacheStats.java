@@ -0,0 +1,61 @@
+package trashsoftware.decimalExpr;
+
+/**
+ * Statistics of an {@code ExpressionCache} or a {@code ResultCache}.
+ */
+public final class CacheStats {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int size;
+
+    CacheStats(long hits, long misses, long evictions, int size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+    }
+
+    /**
+     * @return number of lookups that found a cached value
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups that computed the value
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of entries removed to stay within the maximum size, or because they expired
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return number of entries when the statistics were taken
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the ratio of hits to lookups, 0 if there was no lookup
+     */
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CacheStats{hits=%d, misses=%d, evictions=%d, size=%d, hitRate=%.3f}",
+                hits, misses, evictions, size, getHitRate());
+    }
+}
@@ -0,0 +1,67 @@
+package trashsoftware.decimalExpr;
+
+import java.nio.file.Path;
+
+/**
+ * A file that holds one column of a batch, one value per row.
+ * <p>
+ * Column files are read and written through memory mapping, so batches can be much larger than the heap.
+ *
+ * @see CompiledExpr#evaluateFiles(java.util.Map, ColumnFile)
+ */
+public final class ColumnFile {
+
+    /**
+     * Layout of the values in a column file.
+     */
+    public enum Format {
+        /**
+         * Little-endian IEEE 754 doubles, 8 bytes per row.
+         */
+        DOUBLE,
+
+        /**
+         * Little-endian two's complement longs, 8 bytes per row.
+         */
+        LONG,
+
+        /**
+         * ASCII decimal strings, one row per line. Read as exact rationals and written with
+         * {@link trashsoftware.decimalExpr.numbers.Number#toDecimalString()}.
+         */
+        DECIMAL
+    }
+
+    private final Path path;
+    private final Format format;
+
+    public ColumnFile(Path path, Format format) {
+        this.path = path;
+        this.format = format;
+    }
+
+    public static ColumnFile ofDoubles(Path path) {
+        return new ColumnFile(path, Format.DOUBLE);
+    }
+
+    public static ColumnFile ofLongs(Path path) {
+        return new ColumnFile(path, Format.LONG);
+    }
+
+    public static ColumnFile ofDecimals(Path path) {
+        return new ColumnFile(path, Format.DECIMAL);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnFile{" + path + ", " + format + "}";
+    }
+}
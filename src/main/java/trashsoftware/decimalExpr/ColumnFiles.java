@@ -0,0 +1,363 @@
+package trashsoftware.decimalExpr;
+
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+import trashsoftware.decimalExpr.util.Utilities;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates batches whose columns are {@link ColumnFile}s.
+ * <p>
+ * Rows are processed in windows of {@link #WINDOW_ROWS}. For each window, the fixed width columns are mapped, the
+ * decimal columns are parsed, the rows are evaluated by {@link BatchRunner}, and the results are written to the
+ * mapped output. Only one window of values is on the heap at a time.
+ */
+final class ColumnFiles {
+
+    /**
+     * Number of rows in a window.
+     */
+    static final int WINDOW_ROWS = 1 << 16;
+
+    /**
+     * Largest region of a decimal file that is mapped at once. A line must fit in it.
+     */
+    static final int MAX_MAPPED_BYTES = 1 << 26;
+
+    private static final int FIXED_WIDTH = Long.BYTES;
+
+    interface WindowTask {
+        /**
+         * Evaluates the {@code count} rows of a window.
+         *
+         * @param inputs  the input columns, loaded with the rows of the window
+         * @param results receives the results, indexed by row in the window
+         * @param count   number of rows in the window
+         * @return statistics of the window
+         */
+        BatchStats run(Input[] inputs, Number[] results, int count);
+    }
+
+    private ColumnFiles() {
+    }
+
+    /**
+     * Evaluates all rows of {@code columns} into {@code out}.
+     *
+     * @param columns the input columns, in the order the task reads them
+     * @param out     the output file, created or truncated
+     * @param task    evaluates a window
+     * @return statistics of the whole batch
+     * @throws IOException if a file cannot be read or written
+     */
+    static BatchStats run(List<ColumnFile> columns, ColumnFile out, WindowTask task) throws IOException {
+        if (columns.isEmpty()) throw new IllegalArgumentException("Batch has no column.");
+        long begin = System.nanoTime();
+        List<Closeable> opened = new ArrayList<>();
+        try {
+            Input[] inputs = new Input[columns.size()];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = openInput(columns.get(i));
+                opened.add(inputs[i]);
+            }
+            long rows = inputs[0].rows();
+            for (int i = 1; i < inputs.length; i++) {
+                if (inputs[i].rows() != rows) {
+                    throw new IllegalArgumentException(String.format("Column %s has %d rows, but %s has %d.",
+                            columns.get(i), inputs[i].rows(), columns.get(0), rows));
+                }
+            }
+            Output output = openOutput(out);
+            opened.add(output);
+
+            Number[] results = new Number[(int) Math.min(WINDOW_ROWS, rows)];
+            long chunks = 0;
+            for (long from = 0; from < rows; from += WINDOW_ROWS) {
+                int count = (int) Math.min(WINDOW_ROWS, rows - from);
+                for (Input input : inputs) input.load(from, count);
+                chunks += task.run(inputs, results, count).getChunks();
+                output.write(from, results, count);
+            }
+            return new BatchStats(rows, chunks, System.nanoTime() - begin);
+        } finally {
+            for (Closeable closeable : opened) closeable.close();
+        }
+    }
+
+    /**
+     * Checks that the batch has a column for every variable it binds.
+     *
+     * @param columns the columns, by variable name
+     */
+    static void checkColumns(Map<String, ColumnFile> columns) {
+        for (Map.Entry<String, ColumnFile> entry : columns.entrySet()) {
+            if (entry.getValue() == null) {
+                throw new IllegalArgumentException("Missing column of variable '" + entry.getKey() + "'.");
+            }
+        }
+    }
+
+    private static Input openInput(ColumnFile file) throws IOException {
+        FileChannel channel = FileChannel.open(file.getPath(), StandardOpenOption.READ);
+        try {
+            if (file.getFormat() == ColumnFile.Format.DECIMAL) return new DecimalInput(file, channel);
+            return new FixedInput(file, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static Output openOutput(ColumnFile file) throws IOException {
+        FileChannel channel = FileChannel.open(file.getPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        if (file.getFormat() == ColumnFile.Format.DECIMAL) return new DecimalOutput(channel);
+        return new FixedOutput(file.getFormat(), channel);
+    }
+
+    /**
+     * An input column, which holds the values of one window at a time.
+     */
+    abstract static class Input implements Closeable {
+        final ColumnFile file;
+        final FileChannel channel;
+
+        Input(ColumnFile file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        abstract long rows();
+
+        /**
+         * Loads the rows {@code [from, from + count)}. Windows are loaded in order.
+         */
+        abstract void load(long from, int count) throws IOException;
+
+        /**
+         * Returns the value of a row of the loaded window. Can be called by several threads at once.
+         *
+         * @param index index of the row in the window
+         */
+        abstract Number get(int index);
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final class FixedInput extends Input {
+        private final long rows;
+        private MappedByteBuffer window;
+
+        FixedInput(ColumnFile file, FileChannel channel) throws IOException {
+            super(file, channel);
+            long size = channel.size();
+            if (size % FIXED_WIDTH != 0) {
+                throw new IOException(String.format("Size of %s is not a multiple of %d bytes.", file, FIXED_WIDTH));
+            }
+            this.rows = size / FIXED_WIDTH;
+        }
+
+        @Override
+        long rows() {
+            return rows;
+        }
+
+        @Override
+        void load(long from, int count) throws IOException {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, from * FIXED_WIDTH, (long) count * FIXED_WIDTH);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        Number get(int index) {
+            if (file.getFormat() == ColumnFile.Format.LONG) {
+                return Rational.valueOf(window.getLong(index * FIXED_WIDTH));
+            }
+            return Utilities.fromDouble(window.getDouble(index * FIXED_WIDTH));
+        }
+    }
+
+    private static final class DecimalInput extends Input {
+        private final long size;
+        private final long rows;
+        private MappedByteBuffer window;
+        private long windowStart;
+        private long position;
+        private long row;
+        private Number[] values = new Number[0];
+
+        DecimalInput(ColumnFile file, FileChannel channel) throws IOException {
+            super(file, channel);
+            this.size = channel.size();
+            this.rows = countLines();
+        }
+
+        private long countLines() throws IOException {
+            long lines = 0;
+            byte last = '\n';
+            for (long start = 0; start < size; start += MAX_MAPPED_BYTES) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(MAX_MAPPED_BYTES, size - start));
+                int limit = buffer.limit();
+                for (int i = 0; i < limit; i++) {
+                    if (buffer.get(i) == '\n') lines++;
+                }
+                last = buffer.get(limit - 1);
+            }
+            // the last line may have no line break
+            return last == '\n' ? lines : lines + 1;
+        }
+
+        @Override
+        long rows() {
+            return rows;
+        }
+
+        @Override
+        void load(long from, int count) throws IOException {
+            if (values.length < count) values = new Number[count];
+            for (int i = 0; i < count; i++) {
+                String line = nextLine();
+                try {
+                    values[i] = Rational.fromDecimalString(line);
+                } catch (RuntimeException e) {
+                    NumberFormatException nfe = new NumberFormatException(String.format(
+                            "Invalid decimal '%s' at row %d of %s", line, row, file));
+                    nfe.initCause(e);
+                    throw nfe;
+                }
+                row++;
+            }
+        }
+
+        private String nextLine() throws IOException {
+            int offset = ensureMapped();
+            int end = offset;
+            int limit = window.limit();
+            while (end < limit && window.get(end) != '\n') {
+                end++;
+                if (end == limit && windowStart + limit < size) {
+                    // the line crosses the end of the window, map again from its start
+                    if (offset == 0) throw new IOException("Line too long at row " + row + " of " + file);
+                    remap();
+                    end -= offset;
+                    offset = 0;
+                    limit = window.limit();
+                }
+            }
+            int length = end;
+            if (length > offset && window.get(length - 1) == '\r') length--;
+            byte[] bytes = new byte[length - offset];
+            for (int i = 0; i < bytes.length; i++) bytes[i] = window.get(offset + i);
+            position = windowStart + end + 1;
+            return new String(bytes, StandardCharsets.US_ASCII).trim();
+        }
+
+        /**
+         * Maps the window that contains {@link #position}.
+         *
+         * @return offset of {@code position} in the window
+         */
+        private int ensureMapped() throws IOException {
+            if (window == null || position >= windowStart + window.limit()) remap();
+            return (int) (position - windowStart);
+        }
+
+        private void remap() throws IOException {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_MAPPED_BYTES, size - position));
+        }
+
+        @Override
+        Number get(int index) {
+            return values[index];
+        }
+    }
+
+    private abstract static class Output implements Closeable {
+        final FileChannel channel;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Writes the results of the rows {@code [from, from + count)}. Windows are written in order.
+         */
+        abstract void write(long from, Number[] results, int count) throws IOException;
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final class FixedOutput extends Output {
+        private final ColumnFile.Format format;
+
+        FixedOutput(ColumnFile.Format format, FileChannel channel) {
+            super(channel);
+            this.format = format;
+        }
+
+        @Override
+        void write(long from, Number[] results, int count) throws IOException {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE, from * FIXED_WIDTH,
+                    (long) count * FIXED_WIDTH);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < count; i++) {
+                if (format == ColumnFile.Format.LONG) {
+                    window.putLong(i * FIXED_WIDTH, longValue(results[i], from + i));
+                } else {
+                    window.putDouble(i * FIXED_WIDTH, Utilities.toDouble(results[i]));
+                }
+            }
+            window.force();
+        }
+
+        private static long longValue(Number result, long row) {
+            if (result instanceof Rational && ((Rational) result).isInt()) {
+                try {
+                    return ((Rational) result).getNumerator().longValueExact();
+                } catch (ArithmeticException e) {
+                    // reported below
+                }
+            }
+            throw new ArithmeticException(String.format("Result %s of row %d is not a long.", result, row));
+        }
+    }
+
+    private static final class DecimalOutput extends Output {
+        private long position;
+
+        DecimalOutput(FileChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        void write(long from, Number[] results, int count) throws IOException {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                builder.append(results[i].toDecimalString()).append('\n');
+            }
+            byte[] bytes = builder.toString().getBytes(StandardCharsets.US_ASCII);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE, position, bytes.length);
+            window.put(bytes);
+            window.force();
+            position += bytes.length;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package trashsoftware.decimalExpr;
+
+import trashsoftware.decimalExpr.builder.Evaluator;
+import trashsoftware.decimalExpr.builder.Frame;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of a built {@code DecimalExpr}.
+ * <p>
+ * A compiled expression can be shared by any number of threads. Variable values are not stored in the expression,
+ * but passed to each evaluation, either as a map or as a {@code Bindings}. Variables that are not bound keep the
+ * values they had in the {@code DecimalExpr} when it was compiled, and macros are fixed at that time.
+ *
+ * <pre>
+ * CompiledExpr expr = new DecimalExpr.Builder()
+ *         .expression("2x+1")
+ *         .variable("x")
+ *         .build()
+ *         .compile();
+ * Number result = expr.evaluate(Map.of("x", Rational.valueOf(3)));
+ * </pre>
+ */
+public final class CompiledExpr {
+
+    private final Evaluator program;
+    private final Map<String, Integer> variableSlots;
+    private final Frame template;
+    private final int[] boundSlots;
+    private final boolean pure;
+
+    CompiledExpr(Evaluator program, Map<String, Integer> variableSlots, Frame template, boolean pure) {
+        this.program = program;
+        this.variableSlots = variableSlots;
+        this.template = template;
+        this.pure = pure;
+        this.boundSlots = variableSlots.values().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return names of all variables that can be bound, including the builtin constants
+     */
+    public Set<String> getVariableNames() {
+        return variableSlots.keySet();
+    }
+
+    public boolean hasVariable(String name) {
+        return variableSlots.containsKey(name);
+    }
+
+    /**
+     * Returns whether the result only depends on the values of variables, that is, the expression and its macros
+     * call only pure operators and functions.
+     *
+     * @return {@code true} if the expression is pure
+     */
+    public boolean isPure() {
+        return pure;
+    }
+
+    /**
+     * Creates an evaluation context that holds the values of variables.
+     * <p>
+     * A {@code Bindings} is cheap to create. It can be reused for consecutive evaluations, but must not be used by
+     * more than one thread at a time.
+     *
+     * @return the new bindings, with all variables at their compiled values
+     */
+    public Bindings newBindings() {
+        return new Bindings(this, template.copy());
+    }
+
+    public Number evaluate(Bindings bindings) {
+        if (bindings.owner != this) throw new BuildException("Bindings belong to another expression");
+        return program.eval(bindings.frame);
+    }
+
+    public Number evaluate(Map<String, ? extends Number> values) {
+        Bindings bindings = newBindings();
+        for (Map.Entry<String, ? extends Number> entry : values.entrySet()) {
+            bindings.set(entry.getKey(), entry.getValue());
+        }
+        return evaluate(bindings);
+    }
+
+    /**
+     * Evaluates with no variable bound.
+     *
+     * @return the result
+     */
+    public Number evaluate() {
+        return program.eval(template.copy());
+    }
+
+    /**
+     * Evaluates this expression once per row of {@code columns}.
+     * <p>
+     * Each column holds the values of a variable, and all columns must have the same length as {@code out}.
+     * Variables without a column keep their compiled values. Large batches are split across the common
+     * {@code ForkJoinPool}, and {@code out[i]} is always the result of row {@code i}.
+     *
+     * @param columns values of variables, by variable name
+     * @param out     the array that receives the results
+     * @return statistics of the batch
+     */
+    public BatchStats evaluateBatch(Map<String, Number[]> columns, Number[] out) {
+        BatchRunner.checkLengths(columns, out.length, column -> column.length);
+        int[] slots = new int[columns.size()];
+        Number[][] data = new Number[columns.size()][];
+        int index = 0;
+        for (Map.Entry<String, Number[]> entry : columns.entrySet()) {
+            slots[index] = slotOf(entry.getKey());
+            data[index++] = entry.getValue();
+        }
+        return BatchRunner.run(out.length, (from, to) -> {
+            Frame frame = template.copy();
+            for (int row = from; row < to; row++) {
+                for (int c = 0; c < slots.length; c++) frame.set(slots[c], data[c][row]);
+                out[row] = program.eval(frame);
+            }
+        });
+    }
+
+    /**
+     * Evaluates this expression once per row of integer {@code columns}.
+     *
+     * @param columns values of variables, by variable name
+     * @param out     the array that receives the results
+     * @return statistics of the batch
+     * @see #evaluateBatch(Map, Number[])
+     */
+    public BatchStats evaluateLongBatch(Map<String, long[]> columns, Number[] out) {
+        BatchRunner.checkLengths(columns, out.length, column -> column.length);
+        int[] slots = new int[columns.size()];
+        long[][] data = new long[columns.size()][];
+        int index = 0;
+        for (Map.Entry<String, long[]> entry : columns.entrySet()) {
+            slots[index] = slotOf(entry.getKey());
+            data[index++] = entry.getValue();
+        }
+        return BatchRunner.run(out.length, (from, to) -> {
+            Frame frame = template.copy();
+            for (int row = from; row < to; row++) {
+                for (int c = 0; c < slots.length; c++) frame.set(slots[c], Rational.valueOf(data[c][row]));
+                out[row] = program.eval(frame);
+            }
+        });
+    }
+
+    /**
+     * Evaluates this expression once per row of the column files.
+     * <p>
+     * Column files are memory mapped and processed in windows, so only a window of values is on the heap at a time.
+     * All columns must have the same number of rows, and {@code out} is created or truncated. Variables without a
+     * column keep their compiled values. Rows of a window are evaluated as in {@link #evaluateBatch(Map, Number[])}.
+     *
+     * @param columns column files of variables, by variable name
+     * @param out     the file that receives the results
+     * @return statistics of the batch
+     * @throws IOException if a file cannot be read or written
+     */
+    public BatchStats evaluateFiles(Map<String, ColumnFile> columns, ColumnFile out) throws IOException {
+        ColumnFiles.checkColumns(columns);
+        int[] slots = new int[columns.size()];
+        List<ColumnFile> files = new ArrayList<>(columns.size());
+        int index = 0;
+        for (Map.Entry<String, ColumnFile> entry : columns.entrySet()) {
+            slots[index++] = slotOf(entry.getKey());
+            files.add(entry.getValue());
+        }
+        return ColumnFiles.run(files, out, (inputs, results, count) -> BatchRunner.run(count, (from, to) -> {
+            Frame frame = template.copy();
+            for (int row = from; row < to; row++) {
+                for (int c = 0; c < slots.length; c++) frame.set(slots[c], inputs[c].get(row));
+                results[row] = program.eval(frame);
+            }
+        }));
+    }
+
+    /**
+     * Returns the values of all variables in {@code bindings}, in an order fixed for this expression.
+     */
+    Number[] boundValues(Bindings bindings) {
+        if (bindings.owner != this) throw new BuildException("Bindings belong to another expression");
+        Number[] values = new Number[boundSlots.length];
+        for (int i = 0; i < values.length; i++) values[i] = bindings.frame.get(boundSlots[i]);
+        return values;
+    }
+
+    int slotOf(String varName) {
+        Integer slot = variableSlots.get(varName);
+        if (slot == null) throw new BuildException("Unknown variable '" + varName + "'");
+        return slot;
+    }
+
+    /**
+     * Values of variables for evaluating a {@code CompiledExpr}.
+     */
+    public static final class Bindings {
+
+        private final CompiledExpr owner;
+        private final Frame frame;
+
+        private Bindings(CompiledExpr owner, Frame frame) {
+            this.owner = owner;
+            this.frame = frame;
+        }
+
+        public Bindings set(String varName, Number value) {
+            frame.set(owner.slotOf(varName), value);
+            return this;
+        }
+
+        public Bindings set(String varName, long longValue) {
+            return set(varName, Rational.fromBigInt(BigInteger.valueOf(longValue)));
+        }
+
+        public Number get(String varName) {
+            return frame.get(owner.slotOf(varName));
+        }
+    }
+}
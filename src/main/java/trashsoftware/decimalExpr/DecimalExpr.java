@@ -5,11 +5,34 @@ import trashsoftware.decimalExpr.expression.*;
 import trashsoftware.decimalExpr.numbers.*;
 import trashsoftware.decimalExpr.numbers.Number;
 
+import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-public class DecimalExpr {
+public class DecimalExpr implements Evaluable {
+
+    /**
+     * Default number of evaluations before an expression is compiled to bytecode.
+     */
+    public static final int DEFAULT_COMPILE_THRESHOLD = 10_000;
+
+    /**
+     * Expressions deeper than this are always evaluated as postfix programs, since evaluating them as trees
+     * might overflow the call stack.
+     */
+    public static final int MAX_TREE_DEPTH = 1000;
+
+    /**
+     * Default number of memoized subexpressions of an expression built with {@code Builder.memoize()}.
+     */
+    public static final int DEFAULT_MEMO_LIMIT = 32;
 
     public static final Map<String, BinaryOperator> BUILTIN_BINARY_OPS = Map.of(
             "+", Operators.ADD,
@@ -39,11 +62,50 @@ public class DecimalExpr {
     private Node.BlockStmt root;
 
     /**
-     * Whether to deal decimal numbers as rational.
+     * The compiled form of {@code root}, and the storage it evaluates on.
      * <p>
-     * For example, if this value is set to {@code true}, then 0.999 would be store as 999/1000
+     * An expression and the macros set on it share the same compiler, while only the outermost expression
+     * has a frame.
+     */
+    private AstCompiler compiler;
+    private Evaluator program;
+    private Frame frame;
+
+    /**
+     * Number of interpreted evaluations before the expression is compiled to bytecode, negative to never compile.
      */
-    private boolean approxRational = true;
+    private int compileThreshold = DEFAULT_COMPILE_THRESHOLD;
+
+    /**
+     * Whether to evaluate as a postfix program instead of an evaluator tree.
+     */
+    private boolean postfix;
+
+    /**
+     * Maximum number of memoized subexpressions, 0 to not memoize.
+     */
+    private int memoLimit;
+
+    /**
+     * Whether the tree is too deep to evaluate recursively, and is evaluated as a postfix program.
+     */
+    private boolean deep;
+
+    /**
+     * Profiles one evaluation in this many, 0 to not profile.
+     */
+    private int profileInterval;
+
+    /**
+     * The profiler, and the program that records to it, if the expression is profiled.
+     */
+    private Profiler profiler;
+    private Evaluator profiledProgram;
+
+    /**
+     * Variables declared with {@code Builder.variable}, in order.
+     */
+    private final Set<String> declaredVariables = new LinkedHashSet<>();
 
     private DecimalExpr() {
         unaryOperators = new HashMap<>();
@@ -68,8 +130,10 @@ public class DecimalExpr {
 
         values = subValues;
 
-        approxRational = parent.approxRational;
+        compileThreshold = parent.compileThreshold;
+        postfix = parent.postfix;
         root = null;
+        compiler = parent.compiler;
     }
 
     public Map<String, BinaryOperator> getBinaryOperators() {
@@ -100,18 +164,28 @@ public class DecimalExpr {
         return values.hasMacro(name);
     }
 
+    /**
+     * Returns whether to deal decimal numbers as rational.
+     * <p>
+     * For example, if this value is {@code true}, then 0.999 would be store as 999/1000
+     *
+     * @return whether decimal literals are rational
+     */
     public boolean isApproxRational() {
-        return approxRational;
+        return values.isApproxRational();
     }
 
+    @Override
     public void setVariable(String varName, Number value) {
         if (values.hasVariable(varName)) {
             values.setVariable(varName, value);
+            frame.set(compiler.variableSlot(varName), value);
         } else {
             throw new BuildException("Unknown variable '" + varName + "'");
         }
     }
 
+    @Override
     public void setVariable(String varName, long longValue) {
         setVariable(varName, Rational.fromBigInt(BigInteger.valueOf(longValue)));
     }
@@ -126,19 +200,209 @@ public class DecimalExpr {
 //            System.out.println(subExpr.root);
 
             values.setMacro(macroName, macro);
+            frame = frame.ensureCapacity(compiler);
+            frame.setMacro(compiler.macroSlot(macroName), subExpr.program);
         } else {
             throw new BuildException("Unknown macro name '" + macroName + "'");
         }
     }
 
+    /**
+     * Sets a macro to a constant value.
+     *
+     * @param macroName name of the macro
+     * @param value     the value
+     */
+    public void setMacro(String macroName, Number value) {
+        if (!values.hasMacro(macroName)) throw new BuildException("Unknown macro name '" + macroName + "'");
+        Node.BlockStmt macroRoot = Node.BlockStmt.of(value);
+        values.setMacro(macroName, new Macro(macroRoot, new Values.MacroValues(values)));
+        frame = frame.ensureCapacity(compiler);
+        frame.setMacro(compiler.macroSlot(macroName), compiler.compile(macroRoot));
+    }
+
+    /**
+     * Returns the variables and macros this expression reads, not including those read by the macros.
+     *
+     * @return the references
+     */
+    public References getReferences() {
+        return References.of(root);
+    }
+
+    @Override
     public Number evaluate() {
-        return root.eval(values);
+        if (profiler != null && profiler.sample()) return profiledProgram.eval(frame);
+        return program.eval(frame);
+    }
+
+    /**
+     * Returns whether the evaluations of this expression are profiled. An expression built with
+     * {@code Builder.profile} is not profiled if it is deeper than {@code MAX_TREE_DEPTH}.
+     *
+     * @return {@code true} if {@code getProfiler} returns a profiler
+     */
+    public boolean isProfiled() {
+        return profiler != null;
+    }
+
+    /**
+     * Returns the profiler of this expression, which records the evaluations sampled since it was built.
+     *
+     * @return the profiler
+     * @throws BuildException if the expression is not profiled, see {@code isProfiled}
+     */
+    public Profiler getProfiler() {
+        if (profiler != null) return profiler;
+        if (profileInterval > 0) {
+            throw new BuildException("Expression is deeper than " + MAX_TREE_DEPTH + " and cannot be profiled");
+        }
+        throw new BuildException("Expression is not profiled");
+    }
+
+    /**
+     * Returns an immutable snapshot of this expression, which can be evaluated by many threads at once.
+     * <p>
+     * The snapshot takes the current values of variables as defaults and the current macros. Later changes to this
+     * expression do not affect the snapshot.
+     *
+     * @return the compiled expression
+     */
+    public CompiledExpr compile() {
+        if (frame == null) throw new BuildException("Only the outermost expression can be compiled");
+        return new CompiledExpr(program, compiler.variableSlots(), frame.snapshot(), isPure());
+    }
+
+    /**
+     * @return whether this expression and the macros it reads, as currently set, call only pure operators and
+     * functions
+     */
+    private boolean isPure() {
+        Set<String> visitedMacros = new HashSet<>();
+        List<Node.BlockStmt> pending = new ArrayList<>(List.of(root));
+        while (!pending.isEmpty()) {
+            References references = References.of(pending.remove(pending.size() - 1));
+            if (!references.isPure()) return false;
+            for (String macroName : references.getMacros()) {
+                if (!visitedMacros.add(macroName) || !values.hasMacro(macroName)) continue;
+                Node macroRoot = values.getMacro(macroName).getRoot();
+                if (macroRoot instanceof Node.BlockStmt) pending.add((Node.BlockStmt) macroRoot);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the simplified tree of this expression, for writing it to an {@code ExpressionArchive}.
+     */
+    Node.BlockStmt archivedRoot() {
+        if (frame == null) throw new BuildException("Only the outermost expression can be archived");
+        return root;
+    }
+
+    boolean isDeep() {
+        return deep;
+    }
+
+    /**
+     * Evaluates this expression once per row of {@code columns}, on a snapshot taken by {@code compile}.
+     *
+     * @param columns values of variables, by variable name
+     * @param out     the array that receives the results
+     * @return statistics of the batch
+     * @see CompiledExpr#evaluateBatch(Map, Number[])
+     */
+    public BatchStats evaluateBatch(Map<String, Number[]> columns, Number[] out) {
+        return compile().evaluateBatch(columns, out);
+    }
+
+    /**
+     * Evaluates this expression once per row of integer {@code columns}, on a snapshot taken by {@code compile}.
+     *
+     * @param columns values of variables, by variable name
+     * @param out     the array that receives the results
+     * @return statistics of the batch
+     * @see CompiledExpr#evaluateLongBatch(Map, Number[])
+     */
+    public BatchStats evaluateLongBatch(Map<String, long[]> columns, Number[] out) {
+        return compile().evaluateLongBatch(columns, out);
+    }
+
+    /**
+     * Evaluates this expression once per row of the column files, on a snapshot taken by {@code compile}.
+     *
+     * @param columns column files of variables, by variable name
+     * @param out     the file that receives the results
+     * @return statistics of the batch
+     * @throws IOException if a file cannot be read or written
+     * @see CompiledExpr#evaluateFiles(Map, ColumnFile)
+     */
+    public BatchStats evaluateFiles(Map<String, ColumnFile> columns, ColumnFile out) throws IOException {
+        return compile().evaluateFiles(columns, out);
+    }
+
+    /**
+     * Evaluates this expression in double mode once per row of {@code columns}.
+     *
+     * @param columns values of variables, by variable name
+     * @param out     the array that receives the results
+     * @return statistics of the batch
+     * @see DoubleExpr#evaluateBatch(Map, double[])
+     */
+    public BatchStats evaluateDoubleBatch(Map<String, double[]> columns, double[] out) {
+        return toDoubleExpr().evaluateBatch(columns, out);
+    }
+
+    /**
+     * Compiles this expression to evaluate on {@code double}s.
+     * <p>
+     * The declared variables become the arguments of {@code DoubleExpr.evaluate}, in the order they are declared.
+     * Other variables, such as {@code pi}, are taken as constants of their current values, and macros are taken as
+     * currently set.
+     *
+     * @return the double expression
+     */
+    public DoubleExpr toDoubleExpr() {
+        if (frame == null) throw new BuildException("Only the outermost expression can be compiled");
+        List<String> variables = new ArrayList<>(declaredVariables);
+        DoubleCompiler doubleCompiler = new DoubleCompiler(variables);
+        for (String varName : values.varNames()) {
+            if (!declaredVariables.contains(varName)) doubleCompiler.constant(varName, values.getVariable(varName));
+        }
+        for (String macroName : values.macroNames()) {
+            doubleCompiler.macro(macroName, values.getMacro(macroName).getRoot());
+        }
+        DoubleEvaluator program = doubleCompiler.compile(root);
+        return new DoubleExpr(program, variables, doubleCompiler.slotCount());
+    }
+
+    /**
+     * Generates the source of a class that evaluates this expression, for {@code SourceGenerator}.
+     * <p>
+     * All variables, including {@code pi}, become fields initialized to their current values, and macros are
+     * inlined as currently set.
+     */
+    String toJavaSource(String packageName, String className, String comment, Map<Object, String> references) {
+        if (frame == null) throw new BuildException("Only the outermost expression can be compiled");
+        JavaSourceCompiler sourceCompiler = new JavaSourceCompiler(values.isApproxRational());
+        for (String varName : values.varNames()) sourceCompiler.variable(varName, values.getVariable(varName));
+        for (String macroName : values.macroNames()) {
+            sourceCompiler.macro(macroName, values.getMacro(macroName).getRoot());
+        }
+        for (Map.Entry<Object, String> reference : references.entrySet()) {
+            if (reference.getKey() instanceof Operator) {
+                sourceCompiler.reference((Operator) reference.getKey(), reference.getValue());
+            } else {
+                sourceCompiler.reference((AbstractFunction) reference.getKey(), reference.getValue());
+            }
+        }
+        return sourceCompiler.compile(root, packageName, className, comment);
     }
 
     public static class Builder {
 
         private final DecimalExpr decimalExpr;
-        private String expression;
+        private CharSequence expression;
         private boolean showAst;
         private boolean showTokens;
 
@@ -155,10 +419,24 @@ public class DecimalExpr {
             return this;
         }
 
+        /**
+         * Sets the expression to the characters of a sequence, which are read when the expression is built.
+         * <p>
+         * The sequence is not copied, so it must not change until then.
+         *
+         * @param expression the expression
+         * @return this builder
+         */
+        public Builder expression(CharSequence expression) {
+            this.expression = expression;
+            return this;
+        }
+
         public Builder variable(String varName) {
             if (varName == null || varName.length() == 0)
                 throw new BuildException("Name must not be empty");
             decimalExpr.values.setVariable(varName, NaN.NaN);
+            decimalExpr.declaredVariables.add(varName);
             return this;
         }
 
@@ -203,6 +481,82 @@ public class DecimalExpr {
             return this;
         }
 
+        /**
+         * Sets the number of evaluations after which the expression is compiled to JVM bytecode.
+         * <p>
+         * Until then, the expression is interpreted. Set to 0 to compile at build time, or a negative value
+         * to always interpret. Macros set on the expression follow the same threshold.
+         *
+         * @param compileThreshold number of interpreted evaluations
+         * @return builder itself
+         */
+        public Builder compileThreshold(int compileThreshold) {
+            decimalExpr.compileThreshold = compileThreshold;
+            return this;
+        }
+
+        /**
+         * Whether to evaluate the expression as a flat postfix program on an operand stack.
+         * <p>
+         * A postfix program has no recursion limit and a compact memory layout, which suits very large
+         * expressions. Expressions deeper than {@code MAX_TREE_DEPTH} use it regardless of this option.
+         * Postfix programs are never compiled to bytecode.
+         *
+         * @param postfix whether to use postfix program
+         * @return builder itself
+         */
+        public Builder postfix(boolean postfix) {
+            decimalExpr.postfix = postfix;
+            return this;
+        }
+
+        public Builder postfix() {
+            return postfix(true);
+        }
+
+        /**
+         * Memoizes subexpressions of the expression between evaluations.
+         * <p>
+         * A memoized subexpression keeps its last value, and is only evaluated again after a variable it reads is
+         * set. This suits expressions of many variables of which only a few change between evaluations. Only pure
+         * subexpressions that read no macro are memoized, and at most {@code memoLimit} of them, each keeping one
+         * value per evaluation context. Postfix programs are not memoized.
+         *
+         * @param memoLimit the maximum number of memoized subexpressions, 0 to not memoize
+         * @return builder itself
+         */
+        public Builder memoize(int memoLimit) {
+            if (memoLimit < 0) throw new BuildException("Memo limit must not be negative");
+            decimalExpr.memoLimit = memoLimit;
+            return this;
+        }
+
+        public Builder memoize() {
+            return memoize(DEFAULT_MEMO_LIMIT);
+        }
+
+        /**
+         * Profiles the evaluations of the expression, see {@code Profiler} and {@code DecimalExpr.getProfiler}.
+         * <p>
+         * Every node of a profiled evaluation records its calls, its time and the size of its results. Only one
+         * evaluation in {@code sampleInterval} is profiled, the others cost little more than usual. Postfix
+         * programs cannot be profiled: combining this option with {@code postfix} fails to build, while
+         * expressions deeper than {@code MAX_TREE_DEPTH} are built without a profiler, see
+         * {@code DecimalExpr.isProfiled}. Snapshots made by {@code DecimalExpr.compile} are not profiled.
+         *
+         * @param sampleInterval profiles one evaluation in this many
+         * @return builder itself
+         */
+        public Builder profile(int sampleInterval) {
+            if (sampleInterval < 1) throw new BuildException("Sample interval must be positive");
+            decimalExpr.profileInterval = sampleInterval;
+            return this;
+        }
+
+        public Builder profile() {
+            return profile(1);
+        }
+
         /**
          * Whether to convert decimal input to rational.
          * <p>
@@ -219,6 +573,27 @@ public class DecimalExpr {
             return this;
         }
 
+        /**
+         * Returns a key that is equal for builders that would build the same expression.
+         * <p>
+         * The key is made of the expression, the names of variables and macros, the operators and functions, and
+         * the build options. Operators and functions are compared by identity.
+         *
+         * @return the key
+         */
+        Object cacheKey() {
+            return Arrays.asList(expression.toString(),
+                    new ArrayList<>(decimalExpr.values.varNames()),
+                    new ArrayList<>(decimalExpr.values.macroNames()),
+                    new HashMap<>(decimalExpr.unaryOperators),
+                    new HashMap<>(decimalExpr.binaryOperators),
+                    new HashMap<>(decimalExpr.functions),
+                    decimalExpr.values.isApproxRational(),
+                    decimalExpr.postfix,
+                    decimalExpr.compileThreshold,
+                    decimalExpr.memoLimit);
+        }
+
         public DecimalExpr build() {
             Tokenizer tokenizer = new Tokenizer(expression);
             Element.CollectiveElement rootEle = tokenizer.tokenize();
@@ -227,10 +602,83 @@ public class DecimalExpr {
 
             Parser parser = new Parser(rootEle, decimalExpr);
             decimalExpr.root = parser.parse();
+            ConstantFolder.fold(decimalExpr.root, decimalExpr.values.isApproxRational());
+            Simplifier.simplify(decimalExpr.root, decimalExpr.values.isApproxRational());
 
             if (showAst) System.out.println(decimalExpr.root);
 
+            boolean deep = PostfixProgram.treeDepth(decimalExpr.root) > MAX_TREE_DEPTH;
+            CommonSubexpressions.eliminate(decimalExpr.root);
+            return compile(deep);
+        }
+
+        /**
+         * @return the expression being built, which holds the declared names, operators and functions
+         */
+        DecimalExpr environment() {
             return decimalExpr;
         }
+
+        /**
+         * Builds the expression from a tree read from an {@code ExpressionArchive}, which is already simplified and
+         * has its common subexpressions merged.
+         *
+         * @param root the tree
+         * @param deep whether the tree was too deep to evaluate recursively when it was built
+         * @return the expression
+         */
+        DecimalExpr build(Node.BlockStmt root, boolean deep) {
+            decimalExpr.root = root;
+            if (showAst) System.out.println(decimalExpr.root);
+            return compile(deep);
+        }
+
+        private DecimalExpr compile(boolean deep) {
+            if (decimalExpr.profileInterval > 0 && decimalExpr.postfix) {
+                throw new BuildException("Postfix programs cannot be profiled");
+            }
+            decimalExpr.deep = deep;
+            boolean outermost = decimalExpr.compiler == null;
+            if (outermost) {
+                decimalExpr.compiler = new AstCompiler(decimalExpr.values.isApproxRational(), decimalExpr.memoLimit);
+            }
+            if (decimalExpr.postfix || deep) {
+                decimalExpr.program = PostfixProgram.compile(decimalExpr.root, decimalExpr.compiler);
+            } else {
+                decimalExpr.program = BytecodeCompiler.tiered(decimalExpr.compiler.compile(decimalExpr.root),
+                        decimalExpr.compileThreshold);
+            }
+            if (decimalExpr.profileInterval > 0 && !deep) {
+                decimalExpr.profiler = new Profiler(decimalExpr.root, decimalExpr.profileInterval);
+                decimalExpr.profiledProgram = decimalExpr.compiler.compile(decimalExpr.root, decimalExpr.profiler);
+            }
+            if (outermost) decimalExpr.frame = createFrame();
+
+            return decimalExpr;
+        }
+
+        /**
+         * Builds the expression and compiles it to evaluate on {@code double}s.
+         * <p>
+         * Macros cannot be set on the result, use {@code DecimalExpr.toDoubleExpr} after setting them instead.
+         *
+         * @return the double expression
+         */
+        public DoubleExpr buildDouble() {
+            return build().toDoubleExpr();
+        }
+
+        private Frame createFrame() {
+            AstCompiler compiler = decimalExpr.compiler;
+            Values values = decimalExpr.values;
+            for (String macroName : values.macroNames()) compiler.macroSlot(macroName);
+            for (String varName : values.varNames()) compiler.variableSlot(varName);
+
+            Frame frame = compiler.createFrame();
+            for (String varName : values.varNames()) {
+                frame.set(compiler.variableSlot(varName), values.getVariable(varName));
+            }
+            return frame;
+        }
     }
 }
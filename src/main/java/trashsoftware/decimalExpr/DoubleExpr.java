@@ -0,0 +1,106 @@
+package trashsoftware.decimalExpr;
+
+import trashsoftware.decimalExpr.builder.ColumnKernel;
+import trashsoftware.decimalExpr.builder.ColumnKernels;
+import trashsoftware.decimalExpr.builder.DoubleEvaluator;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An expression that evaluates on primitive {@code double}s.
+ * <p>
+ * Evaluation is fast and allocation free for builtin operators and functions, but has the precision of
+ * {@code double}. Complex numbers are not supported: operations that would give one give {@code NaN}.
+ * <p>
+ * A double expression is immutable and can be evaluated by many threads at once.
+ *
+ * <pre>
+ * DoubleExpr expr = new DecimalExpr.Builder()
+ *         .expression("sqrt(x^2+y^2)")
+ *         .variable("x")
+ *         .variable("y")
+ *         .buildDouble();
+ * double result = expr.evaluate(3, 4);
+ * </pre>
+ */
+public final class DoubleExpr {
+
+    private final DoubleEvaluator program;
+    private final List<String> variableNames;
+    private final int slotCount;
+    private final ThreadLocal<double[]> slots;
+    private final ColumnKernel kernel;
+
+    DoubleExpr(DoubleEvaluator program, List<String> variableNames, int slotCount) {
+        this.program = program;
+        this.variableNames = Collections.unmodifiableList(variableNames);
+        this.slotCount = slotCount;
+        this.slots = ThreadLocal.withInitial(() -> new double[slotCount]);
+        this.kernel = ColumnKernels.compile(program, variableNames.size(), slotCount);
+    }
+
+    /**
+     * @return names of the variables, in the order of the arguments of {@code evaluate}
+     */
+    public List<String> getVariableNames() {
+        return variableNames;
+    }
+
+    /**
+     * Evaluates the expression.
+     *
+     * @param vars values of the variables, in the order they are declared
+     * @return the result
+     */
+    public double evaluate(double... vars) {
+        if (vars.length != variableNames.size()) {
+            throw new IllegalArgumentException(String.format("Expression expects %d variables %s, got %d.",
+                    variableNames.size(), variableNames, vars.length));
+        }
+        // the variables are only read, so the arguments are used as slots if no other slot is needed
+        if (slotCount == vars.length) return program.eval(vars);
+        double[] frame = slots.get();
+        System.arraycopy(vars, 0, frame, 0, vars.length);
+        return program.eval(frame);
+    }
+
+    /**
+     * Evaluates this expression once per row of {@code columns}.
+     * <p>
+     * Each column holds the values of a variable, and all columns must have the same length as {@code out}. Every
+     * variable needs a column. Large batches are split across the common {@code ForkJoinPool}, and {@code out[i]}
+     * is always the result of row {@code i}.
+     * <p>
+     * On Java 17+ with the {@code jdk.incubator.vector} module, rows are evaluated in blocks with SIMD instructions,
+     * see {@link ColumnKernels}.
+     *
+     * @param columns values of variables, by variable name
+     * @param out     the array that receives the results
+     * @return statistics of the batch
+     */
+    public BatchStats evaluateBatch(Map<String, double[]> columns, double[] out) {
+        BatchRunner.checkLengths(columns, out.length, column -> column.length);
+        for (String name : columns.keySet()) {
+            if (!variableNames.contains(name)) throw new BuildException("Unknown variable '" + name + "'");
+        }
+        double[][] data = new double[variableNames.size()][];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = columns.get(variableNames.get(i));
+            if (data[i] == null) {
+                throw new IllegalArgumentException("Missing column of variable '" + variableNames.get(i) + "'.");
+            }
+        }
+        if (kernel != null) {
+            return BatchRunner.run(out.length, (from, to) -> kernel.evaluate(data, from, to, out));
+        }
+        return BatchRunner.run(out.length, (from, to) -> {
+            double[] frame = new double[slotCount];
+            for (int row = from; row < to; row++) {
+                for (int v = 0; v < data.length; v++) frame[v] = data[v][row];
+                out[row] = program.eval(frame);
+            }
+        });
+    }
+}
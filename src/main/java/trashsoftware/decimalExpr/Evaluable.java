@@ -0,0 +1,28 @@
+package trashsoftware.decimalExpr;
+
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+
+import java.math.BigInteger;
+
+/**
+ * An expression that is evaluated on the current values of its variables.
+ * <p>
+ * Implemented by {@code DecimalExpr}, and by the classes generated by {@code SourceGenerator}, so that an
+ * interpreted expression and a generated one can replace each other.
+ */
+public interface Evaluable {
+
+    /**
+     * @param varName name of the variable
+     * @param value   the new value
+     * @throws BuildException if the expression has no such variable
+     */
+    void setVariable(String varName, Number value);
+
+    default void setVariable(String varName, long longValue) {
+        setVariable(varName, Rational.fromBigInt(BigInteger.valueOf(longValue)));
+    }
+
+    Number evaluate();
+}
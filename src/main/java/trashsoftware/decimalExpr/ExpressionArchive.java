@@ -0,0 +1,179 @@
+package trashsoftware.decimalExpr;
+
+import trashsoftware.decimalExpr.builder.Node;
+import trashsoftware.decimalExpr.builder.NodeCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * A file of built expressions, which are loaded without tokenizing, parsing or simplifying them again.
+ * <p>
+ * An archive stores the simplified tree of each expression, with its common subexpressions merged, and a pool of
+ * the names and constants of all expressions. Operators and functions are stored by name, so an archive only
+ * holds the structure of expressions, not their behavior. An expression is loaded in an environment, a builder that
+ * declares the variables, macros, functions and operators the expression was built with, and loading fails if the
+ * environment does not declare one of them. Variable values and macros set on the archived expressions are not
+ * stored.
+ * <p>
+ * The file is memory-mapped when opened, and can be loaded by many threads at once.
+ *
+ * <pre>
+ * ExpressionArchive.write(path, expressions);
+ * ExpressionArchive archive = ExpressionArchive.open(path);
+ * DecimalExpr expr = archive.load(0, new DecimalExpr.Builder().variable("x"));
+ * </pre>
+ *
+ * <h2>Format</h2>
+ * All fixed width integers are big-endian.
+ * <ol>
+ *     <li>The magic number {@code "DXAR"} and the version, as two 4 byte integers.</li>
+ *     <li>The length of the pool as a 4 byte integer, then the pool.</li>
+ *     <li>The number of expressions as a 4 byte integer, then the file offset of each expression as an 8 byte
+ *     integer.</li>
+ *     <li>The expressions, in the format of {@link NodeCodec}.</li>
+ * </ol>
+ */
+public final class ExpressionArchive {
+
+    static final int MAGIC = 0x44584152;  // "DXAR"
+
+    /**
+     * Version of the format written by this class, which is the only version it reads.
+     */
+    public static final int VERSION = 1;
+
+    private final ByteBuffer buffer;
+    private final NodeCodec.Pool pool;
+    private final long[] offsets;
+
+    private ExpressionArchive(ByteBuffer buffer, NodeCodec.Pool pool, long[] offsets) {
+        this.buffer = buffer;
+        this.pool = pool;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Writes expressions to an archive.
+     *
+     * @param path        the file, created or truncated
+     * @param expressions the outermost expressions
+     * @throws IOException    if the file cannot be written
+     * @throws BuildException if an expression is not an outermost expression
+     */
+    public static void write(Path path, List<DecimalExpr> expressions) throws IOException {
+        NodeCodec.Pool pool = new NodeCodec.Pool();
+        List<byte[]> encoded = new ArrayList<>(expressions.size());
+        for (DecimalExpr expr : expressions) {
+            encoded.add(NodeCodec.encode(expr.archivedRoot(), expr.isDeep(), pool));
+        }
+        byte[] poolBytes = pool.encode();
+
+        int headerSize = Integer.BYTES * 4 + poolBytes.length + Long.BYTES * expressions.size();
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.putInt(poolBytes.length).put(poolBytes);
+        header.putInt(expressions.size());
+        long offset = headerSize;
+        for (byte[] bytes : encoded) {
+            header.putLong(offset);
+            offset += bytes.length;
+        }
+        header.flip();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header);
+            for (byte[] bytes : encoded) writeFully(channel, ByteBuffer.wrap(bytes));
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    /**
+     * Maps an archive and reads its pool.
+     *
+     * @param path the file
+     * @return the archive
+     * @throws IOException if the file cannot be read, is larger than 2 GB, or is not an archive of this version
+     */
+    public static ExpressionArchive open(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Archive is larger than 2 GB: " + path);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buffer.getInt() != MAGIC) throw new IOException("Not an expression archive: " + path);
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Archive %s has version %d, expected %d.", path, version, VERSION));
+            }
+            int poolLength = buffer.getInt();
+            ByteBuffer poolBytes = buffer.slice();
+            poolBytes.limit(poolLength);
+            NodeCodec.Pool pool = NodeCodec.Pool.decode(poolBytes);
+            buffer.position(buffer.position() + poolLength);
+
+            long[] offsets = new long[buffer.getInt()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = buffer.getLong();
+                if (offsets[i] < buffer.position() || offsets[i] >= buffer.limit()) {
+                    throw new IOException("Offset of expression " + i + " is out of the archive: " + path);
+                }
+            }
+            return new ExpressionArchive(buffer, pool, offsets);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted archive: " + path, e);
+        }
+    }
+
+    /**
+     * @return number of expressions in this archive
+     */
+    public int size() {
+        return offsets.length;
+    }
+
+    /**
+     * Loads an expression.
+     *
+     * @param index       index of the expression, in the order it was written
+     * @param environment a builder without expression, declaring what the expression uses
+     * @return the expression, built by {@code environment}
+     * @throws BuildException if the expression uses something that {@code environment} does not declare
+     */
+    public DecimalExpr load(int index, DecimalExpr.Builder environment) {
+        ByteBuffer in = buffer.duplicate();
+        in.position((int) offsets[index]);
+        boolean[] deep = new boolean[1];
+        Node.BlockStmt root = NodeCodec.decode(in, pool, environment.environment(), deep);
+        return environment.build(root, deep[0]);
+    }
+
+    /**
+     * Loads all expressions, in parallel.
+     *
+     * @param environment creates a builder without expression, declaring what the expressions use
+     * @return the expressions, in the order they were written
+     * @throws BuildException if an expression uses something that the environment does not declare
+     */
+    public List<DecimalExpr> loadAll(Supplier<DecimalExpr.Builder> environment) {
+        DecimalExpr[] loaded = new DecimalExpr[offsets.length];
+        BatchRunner.run(loaded.length, ExpressionLoader.PARALLEL_THRESHOLD, ExpressionLoader.MIN_CHUNK_SIZE,
+                (from, to) -> {
+                    for (int i = from; i < to; i++) loaded[i] = load(i, environment.get());
+                });
+        return Arrays.asList(loaded);
+    }
+}
@@ -0,0 +1,101 @@
+package trashsoftware.decimalExpr;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of compiled expressions, shared by any number of threads.
+ * <p>
+ * Expressions are keyed by their text and their environment: declared variables and macros, operators, functions
+ * and build options. A lookup that hits skips tokenizing, parsing and compiling, and returns the same
+ * {@code CompiledExpr}, which is immutable and is bound per evaluation. When the cache is full, the least recently
+ * used expression is evicted.
+ * <p>
+ * Operators and functions are compared by identity, so builders should reuse the same instances for the cache to hit.
+ *
+ * <pre>
+ * ExpressionCache cache = new ExpressionCache(256);
+ * CompiledExpr expr = cache.get(new DecimalExpr.Builder().expression("2x+1").variable("x"));
+ * Number result = expr.evaluate(Map.of("x", Rational.valueOf(3)));
+ * </pre>
+ */
+public final class ExpressionCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 1024;
+
+    private final int maximumSize;
+    private final Map<Object, CompiledExpr> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ExpressionCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * @param maximumSize the maximum number of cached expressions
+     */
+    public ExpressionCache(int maximumSize) {
+        if (maximumSize <= 0) throw new IllegalArgumentException("Maximum size must be positive");
+        this.maximumSize = maximumSize;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, CompiledExpr> eldest) {
+                if (size() <= ExpressionCache.this.maximumSize) return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled expression of a builder, building it if it is not cached.
+     * <p>
+     * The builder is not built on a hit, so it must not be used afterwards. Expressions are built outside the lock
+     * of the cache, so two threads that miss the same key at once may both build it, and the first one is kept.
+     *
+     * @param builder the builder of the expression
+     * @return the compiled expression
+     */
+    public CompiledExpr get(DecimalExpr.Builder builder) {
+        Object key = builder.cacheKey();
+        synchronized (entries) {
+            CompiledExpr cached = entries.get(key);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+        }
+        misses.increment();
+        CompiledExpr compiled = builder.build().compile();
+        synchronized (entries) {
+            CompiledExpr raced = entries.putIfAbsent(key, compiled);
+            return raced == null ? compiled : raced;
+        }
+    }
+
+    /**
+     * Removes all cached expressions. Statistics are kept.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public CacheStats getStats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), size());
+    }
+}
@@ -0,0 +1,280 @@
+package trashsoftware.decimalExpr;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Builds many expressions, one per line, in parallel.
+ * <p>
+ * Each line is built with a new builder from the environment, so all expressions declare the same variables,
+ * macros, functions and operators. Lines are tokenized from the decoded buffer directly, without copying them into
+ * strings. Files are read through memory mapping, one window at a time, and the lines of a window are built in the
+ * common {@code ForkJoinPool}. Blank lines are skipped, and a line that fails to build is reported as a
+ * {@link LineError} instead of aborting the load.
+ *
+ * <pre>
+ * ExpressionLoader loader = new ExpressionLoader(() -&gt; new DecimalExpr.Builder().variable("x").variable("y"));
+ * ExpressionLoader.Result result = loader.load(Path.of("formulas.txt"));
+ * for (ExpressionLoader.LineError error : result.getErrors()) System.err.println(error);
+ * DecimalExpr first = result.get(1);
+ * </pre>
+ */
+public final class ExpressionLoader {
+
+    /**
+     * Largest region of a file that is mapped and decoded at once. A line must fit in it.
+     */
+    static final int MAX_MAPPED_BYTES = 1 << 26;
+
+    /**
+     * Initial number of characters read from a reader at once. The buffer grows for longer lines.
+     */
+    static final int READ_CHARS = 1 << 16;
+
+    /**
+     * Building an expression costs about as much as thousands of evaluations, so batches of lines are split much
+     * finer than batches of rows.
+     */
+    static final int PARALLEL_THRESHOLD = 64;
+    static final int MIN_CHUNK_SIZE = 8;
+
+    private final Supplier<DecimalExpr.Builder> environment;
+
+    /**
+     * @param environment creates a builder with the environment of all expressions, but no expression
+     */
+    public ExpressionLoader(Supplier<DecimalExpr.Builder> environment) {
+        this.environment = Objects.requireNonNull(environment);
+    }
+
+    /**
+     * Builds the expressions of a UTF-8 file.
+     *
+     * @param path the file
+     * @return the expressions and errors, by line
+     * @throws IOException if the file cannot be read, is not valid UTF-8, or has a line longer than
+     *                     {@link #MAX_MAPPED_BYTES} bytes
+     */
+    public Result load(Path path) throws IOException {
+        Result result = new Result();
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(MAX_MAPPED_BYTES, size - position);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int end = (int) length;
+                if (position + length < size) {
+                    // cut after the last line feed, which is never part of a multi-byte character
+                    while (end > 0 && mapped.get(end - 1) != '\n') end--;
+                    if (end == 0) {
+                        throw new IOException(String.format("Line at byte %d is longer than %d bytes.",
+                                position, MAX_MAPPED_BYTES));
+                    }
+                    mapped.limit(end);
+                }
+                buildLines(decoder.decode(mapped), result);
+                position += end;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds the expressions read from a reader, until its end. The reader is not closed.
+     *
+     * @param reader the reader
+     * @return the expressions and errors, by line
+     * @throws IOException if the reader fails
+     */
+    public Result load(Reader reader) throws IOException {
+        Result result = new Result();
+        char[] buffer = new char[READ_CHARS];
+        int length = 0;
+        int read;
+        while ((read = reader.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            int end = length;
+            while (end > 0 && buffer[end - 1] != '\n') end--;
+            if (end == 0) {
+                if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                continue;
+            }
+            buildLines(CharBuffer.wrap(buffer, 0, end), result);
+            System.arraycopy(buffer, end, buffer, 0, length - end);
+            length -= end;
+        }
+        if (length > 0) buildLines(CharBuffer.wrap(buffer, 0, length), result);
+        return result;
+    }
+
+    /**
+     * Builds the expressions of a text, one per line.
+     *
+     * @param text the text
+     * @return the expressions and errors, by line
+     */
+    public Result load(CharSequence text) {
+        Result result = new Result();
+        if (text.length() > 0) buildLines(CharBuffer.wrap(text), result);
+        return result;
+    }
+
+    /**
+     * Builds the complete lines of {@code chars}, from its position to its limit, and appends them to
+     * {@code result}. The last line may or may not end with a line feed.
+     */
+    private void buildLines(CharBuffer chars, Result result) {
+        int length = chars.remaining();
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (chars.get(i + chars.position()) == '\n') count++;
+        }
+        if (length > 0 && chars.get(chars.position() + length - 1) != '\n') count++;
+
+        // bounds of the lines, relative to the position
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        int line = 0;
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length ? start < length : chars.get(i + chars.position()) == '\n') {
+                int end = i;
+                if (end > start && chars.get(end - 1 + chars.position()) == '\r') end--;
+                starts[line] = start;
+                ends[line++] = end;
+                start = i + 1;
+            }
+        }
+
+        int firstLine = result.lineCount() + 1;
+        DecimalExpr[] built = new DecimalExpr[count];
+        LineError[] failed = new LineError[count];
+        BatchRunner.run(count, PARALLEL_THRESHOLD, MIN_CHUNK_SIZE, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                CharSequence text = chars.subSequence(starts[i], ends[i]);
+                if (isBlank(text)) continue;
+                try {
+                    built[i] = environment.get().expression(text).build();
+                } catch (RuntimeException e) {
+                    failed[i] = new LineError(firstLine + i, text.toString(), e);
+                }
+            }
+        });
+        result.append(built, failed);
+    }
+
+    private static boolean isBlank(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The expressions built by a load, and the lines that failed.
+     */
+    public static final class Result {
+
+        private final List<DecimalExpr> byLine = new ArrayList<>();
+        private final List<DecimalExpr> expressions = new ArrayList<>();
+        private final List<LineError> errors = new ArrayList<>();
+
+        private Result() {
+        }
+
+        private void append(DecimalExpr[] built, LineError[] failed) {
+            for (int i = 0; i < built.length; i++) {
+                byLine.add(built[i]);
+                if (built[i] != null) expressions.add(built[i]);
+                if (failed[i] != null) errors.add(failed[i]);
+            }
+        }
+
+        /**
+         * @return number of lines read, including blank and failed lines
+         */
+        public int lineCount() {
+            return byLine.size();
+        }
+
+        /**
+         * @param lineNumber number of a line, starting from 1
+         * @return the expression of the line, or {@code null} if the line is blank or failed
+         */
+        public DecimalExpr get(int lineNumber) {
+            return byLine.get(lineNumber - 1);
+        }
+
+        /**
+         * @return the expressions built, in line order
+         */
+        public List<DecimalExpr> getExpressions() {
+            return Collections.unmodifiableList(expressions);
+        }
+
+        /**
+         * @return the lines that failed, in line order
+         */
+        public List<LineError> getErrors() {
+            return Collections.unmodifiableList(errors);
+        }
+
+        public boolean hasErrors() {
+            return !errors.isEmpty();
+        }
+    }
+
+    /**
+     * A line that failed to build.
+     */
+    public static final class LineError {
+
+        private final int lineNumber;
+        private final String text;
+        private final RuntimeException cause;
+
+        LineError(int lineNumber, String text, RuntimeException cause) {
+            this.lineNumber = lineNumber;
+            this.text = text;
+            this.cause = cause;
+        }
+
+        /**
+         * @return number of the line, starting from 1
+         */
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * @return the exception thrown by the builder
+         */
+        public RuntimeException getCause() {
+            return cause;
+        }
+
+        @Override
+        public String toString() {
+            return "Line " + lineNumber + ": " + cause.getMessage() + " in '" + text + "'";
+        }
+    }
+}
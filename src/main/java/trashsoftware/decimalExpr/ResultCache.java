@@ -0,0 +1,210 @@
+package trashsoftware.decimalExpr;
+
+import trashsoftware.decimalExpr.numbers.Number;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of evaluation results, shared by any number of threads.
+ * <p>
+ * Results are keyed by the {@code CompiledExpr} instance and the values of all its variables, so a compiled
+ * expression should be reused, for example through an {@code ExpressionCache}. When the cache is full, the least
+ * recently used result is evicted, and results older than the time to live are evaluated again. If several threads
+ * evaluate the same key at once, only one of them evaluates the expression and the others wait for its result.
+ * Evaluations that throw are not cached. Expressions that call an operator or function that is not pure, whose
+ * result may change while the variables do not, are always evaluated and never cached, see
+ * {@code CompiledExpr.isPure}.
+ *
+ * <pre>
+ * ResultCache results = new ResultCache(4096, Duration.ofMinutes(5));
+ * Number result = results.evaluate(expr, Map.of("x", Rational.valueOf(3)));
+ * </pre>
+ */
+public final class ResultCache {
+
+    private final int maximumSize;
+    private final long timeToLiveNanos;
+    private final Map<Key, CachedResult> entries;
+    private final Map<Key, CompletableFuture<Number>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maximumSize the maximum number of cached results, which never expire
+     */
+    public ResultCache(int maximumSize) {
+        this(maximumSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maximumSize the maximum number of cached results
+     * @param timeToLive  how long a result is kept after it is evaluated
+     */
+    public ResultCache(int maximumSize, Duration timeToLive) {
+        this(maximumSize, timeToLive.toNanos());
+        if (timeToLive.isNegative() || timeToLive.isZero()) {
+            throw new IllegalArgumentException("Time to live must be positive");
+        }
+    }
+
+    private ResultCache(int maximumSize, long timeToLiveNanos) {
+        if (maximumSize <= 0) throw new IllegalArgumentException("Maximum size must be positive");
+        this.maximumSize = maximumSize;
+        this.timeToLiveNanos = timeToLiveNanos;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+                if (size() <= ResultCache.this.maximumSize) return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    private static final class Key {
+        final CompiledExpr expr;
+        final Number[] values;
+        final int hash;
+
+        Key(CompiledExpr expr, Number[] values) {
+            this.expr = expr;
+            this.values = values;
+            this.hash = System.identityHashCode(expr) * 31 + Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return expr == key.expr && Arrays.equals(values, key.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class CachedResult {
+        final Number value;
+        final long evaluatedAt;
+
+        CachedResult(Number value, long evaluatedAt) {
+            this.value = value;
+            this.evaluatedAt = evaluatedAt;
+        }
+    }
+
+    /**
+     * Returns the result of an expression, evaluating it if it is not cached.
+     *
+     * @param expr     the expression
+     * @param bindings values of variables, owned by {@code expr}
+     * @return the result
+     */
+    public Number evaluate(CompiledExpr expr, CompiledExpr.Bindings bindings) {
+        if (!expr.isPure()) return expr.evaluate(bindings);
+        Key key = new Key(expr, expr.boundValues(bindings));
+        Number cached = lookup(key);
+        if (cached != null) return cached;
+
+        CompletableFuture<Number> future = new CompletableFuture<>();
+        CompletableFuture<Number> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            hits.increment();
+            return await(running);
+        }
+        try {
+            // the evaluation that was in flight may have finished since the lookup
+            cached = lookup(key);
+            if (cached != null) {
+                future.complete(cached);
+                return cached;
+            }
+            misses.increment();
+            Number result = expr.evaluate(bindings);
+            synchronized (entries) {
+                entries.put(key, new CachedResult(result, System.nanoTime()));
+            }
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Returns the result of an expression, evaluating it if it is not cached.
+     *
+     * @param expr   the expression
+     * @param values values of variables, by name
+     * @return the result
+     */
+    public Number evaluate(CompiledExpr expr, Map<String, ? extends Number> values) {
+        CompiledExpr.Bindings bindings = expr.newBindings();
+        for (Map.Entry<String, ? extends Number> entry : values.entrySet()) {
+            bindings.set(entry.getKey(), entry.getValue());
+        }
+        return evaluate(expr, bindings);
+    }
+
+    private Number lookup(Key key) {
+        synchronized (entries) {
+            CachedResult cached = entries.get(key);
+            if (cached == null) return null;
+            if (System.nanoTime() - cached.evaluatedAt >= timeToLiveNanos) {
+                entries.remove(key);
+                evictions.increment();
+                return null;
+            }
+            hits.increment();
+            return cached.value;
+        }
+    }
+
+    private static Number await(CompletableFuture<Number> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Removes all cached results. Statistics are kept.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public CacheStats getStats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), size());
+    }
+}
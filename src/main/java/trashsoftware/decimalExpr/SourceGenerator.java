@@ -0,0 +1,174 @@
+package trashsoftware.decimalExpr;
+
+import trashsoftware.decimalExpr.expression.Function;
+import trashsoftware.decimalExpr.expression.Operator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates Java classes that evaluate expressions fixed at build time, without tokenizing, parsing or interpreting
+ * them at runtime.
+ * <p>
+ * A generated class implements {@link Evaluable}, like {@code DecimalExpr}. Its variables are fields, and its
+ * {@code evaluate} method calls the operations of {@code trashsoftware.decimalExpr.numbers} in evaluation order, on
+ * the simplified expression with its common subexpressions merged. Expressions that call macro functions, such as
+ * {@code sum}, cannot be generated. Operators and functions that are not builtin must be registered with a reference,
+ * a Java expression that evaluates to them in the generated class, such as a public static field.
+ *
+ * <pre>
+ * SourceGenerator generator = new SourceGenerator("com.example.formulas")
+ *         .function(Formulas.HYPOT, "com.example.Formulas.HYPOT");
+ * generator.generate(Path.of("src/main/formulas/shapes.txt"), Path.of("target/generated-sources/formulas"));
+ * </pre>
+ *
+ * <h2>Formula files</h2>
+ * Each line of a formula file, in UTF-8, defines one class as its name, the variables of the expression in
+ * parentheses, and the expression:
+ * <pre>
+ * # comment
+ * Hypotenuse(a, b) = sqrt(a^2 + b^2)
+ * Circumference(r) = 2 pi r
+ * </pre>
+ * Blank lines and lines starting with {@code #} are skipped. The builtin variables {@code i}, {@code e} and
+ * {@code pi} are always available.
+ * <p>
+ * The {@code main} method generates the classes of one file, so a build can run it before compiling, for example
+ * with the {@code exec-maven-plugin} in the {@code generate-sources} phase:
+ * <pre>
+ * java -cp DecimalExpr2.jar trashsoftware.decimalExpr.SourceGenerator formulas.txt target/generated-sources com.example
+ * </pre>
+ */
+public final class SourceGenerator {
+
+    private static final Pattern DEFINITION =
+            Pattern.compile("\\s*([^\\s(=]+)\\s*(?:\\(([^)]*)\\))?\\s*=(.*)");
+
+    private final String packageName;
+    private final Map<Object, String> references = new LinkedHashMap<>();
+    private final List<Function> functions = new ArrayList<>();
+    private final List<Operator> operators = new ArrayList<>();
+
+    /**
+     * @param packageName package of the generated classes, or an empty string for the default package
+     */
+    public SourceGenerator(String packageName) {
+        this.packageName = packageName;
+    }
+
+    /**
+     * Registers a function for formula files, and the way generated classes refer to it.
+     *
+     * @param function  the function
+     * @param reference a Java expression that evaluates to {@code function} in the generated classes
+     * @return this generator
+     */
+    public SourceGenerator function(Function function, String reference) {
+        functions.add(function);
+        references.put(function, reference);
+        return this;
+    }
+
+    /**
+     * Registers an operator for formula files, and the way generated classes refer to it.
+     *
+     * @param operator  the operator
+     * @param reference a Java expression that evaluates to {@code operator} in the generated classes
+     * @return this generator
+     */
+    public SourceGenerator operator(Operator operator, String reference) {
+        operators.add(operator);
+        references.put(operator, reference);
+        return this;
+    }
+
+    /**
+     * Generates the source of a class that evaluates an expression.
+     * <p>
+     * All variables of the expression, including {@code pi}, become fields initialized to their current values, and
+     * macros are inlined as currently set.
+     *
+     * @param className simple name of the class
+     * @param expr      the outermost expression
+     * @return the source of the class
+     * @throws BuildException if the expression cannot be generated
+     */
+    public String generate(String className, DecimalExpr expr) {
+        return expr.toJavaSource(packageName, className, null, references);
+    }
+
+    /**
+     * Generates one source file per line of a formula file.
+     *
+     * @param formulas        the formula file
+     * @param outputDirectory root of the generated sources, under which the directory of the package is created
+     * @return the generated files, in line order
+     * @throws IOException    if a file cannot be read or written
+     * @throws BuildException if a line is invalid, with its line number
+     */
+    public List<Path> generate(Path formulas, Path outputDirectory) throws IOException {
+        List<String> lines = Files.readAllLines(formulas, StandardCharsets.UTF_8);
+        Path directory = packageName.isEmpty() ?
+                outputDirectory : outputDirectory.resolve(packageName.replace('.', '/'));
+        Set<String> classNames = new HashSet<>();
+        List<String> sources = new ArrayList<>();
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            try {
+                Matcher matcher = DEFINITION.matcher(line);
+                if (!matcher.matches()) throw new BuildException("Expected 'Name(variables) = expression'");
+                String className = matcher.group(1);
+                if (!classNames.add(className)) throw new BuildException("Duplicate class " + className);
+
+                DecimalExpr.Builder builder = new DecimalExpr.Builder().expression(matcher.group(3));
+                if (matcher.group(2) != null && !matcher.group(2).isBlank()) {
+                    for (String variable : matcher.group(2).split(",")) builder.variable(variable.trim());
+                }
+                for (Function function : functions) builder.function(function);
+                for (Operator operator : operators) builder.operator(operator);
+                sources.add(builder.build().toJavaSource(packageName, className, line, references));
+                paths.add(directory.resolve(className + ".java"));
+            } catch (RuntimeException e) {
+                throw new BuildException("Line " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+
+        Files.createDirectories(directory);
+        for (int i = 0; i < paths.size(); i++) {
+            Files.writeString(paths.get(i), sources.get(i), StandardCharsets.UTF_8);
+        }
+        return paths;
+    }
+
+    /**
+     * Generates the classes of a formula file.
+     *
+     * @param args the formula file, the output directory, and optionally the package
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: SourceGenerator <formula file> <output directory> [package]");
+            System.exit(2);
+        }
+        SourceGenerator generator = new SourceGenerator(args.length == 3 ? args[2] : "");
+        try {
+            List<Path> generated = generator.generate(Path.of(args[0]), Path.of(args[1]));
+            System.out.println("Generated " + generated.size() + " classes in " + args[1]);
+        } catch (BuildException e) {
+            System.err.println(args[0] + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
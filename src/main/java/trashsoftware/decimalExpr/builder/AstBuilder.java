@@ -55,6 +55,119 @@ public class AstBuilder {
     }
 
     private void buildExpr() {
+        if (!buildLinear()) buildByPrecedence();
+    }
+
+    /**
+     * Builds the expression of a well-formed line in one pass, with an operator stack.
+     * <p>
+     * The result is the same as {@link #buildByPrecedence()}: binary operators are left-associative, a unary operator
+     * is reduced before a binary operator of the same precedence, and of two unary operators of the same precedence
+     * the right one is reduced first. A prefix operator takes the operand up to the next binary operator of lower or
+     * equal precedence, and a postfix operator takes everything before it that has higher or equal precedence.
+     * <p>
+     * A line is well-formed if it is a series of operands separated by binary operators, each operand with its
+     * prefix and postfix operators, and if {@code buildByPrecedence} never reduces an operator next to another one
+     * that is not reduced yet. Other lines are left untouched.
+     *
+     * @return whether the line was well-formed and is built
+     */
+    private boolean buildLinear() {
+        if (!isWellFormed()) return false;
+
+        List<Node.Expression> operands = new ArrayList<>();
+        List<Node.TreeExpr> operators = new ArrayList<>();
+        for (Node node : stack) {
+            if (isPrefix(node)) {
+                operators.add((Node.TreeExpr) node);
+            } else if (isPostfix(node)) {
+                Node.UnaryOperatorNode postfix = (Node.UnaryOperatorNode) node;
+                int pre = postfix.precedence();
+                while (!operators.isEmpty() && pre < operators.get(operators.size() - 1).precedence()) {
+                    reduceTop(operators, operands);
+                }
+                postfix.setOperand(operands.remove(operands.size() - 1));
+                operands.add(postfix);
+            } else if (isBinary(node)) {
+                int pre = ((Node.TreeExpr) node).precedence();
+                while (!operators.isEmpty() && pre <= operators.get(operators.size() - 1).precedence()) {
+                    reduceTop(operators, operands);
+                }
+                operators.add((Node.TreeExpr) node);
+            } else {
+                operands.add((Node.Expression) node);
+            }
+        }
+        while (!operators.isEmpty()) reduceTop(operators, operands);
+
+        stack.clear();
+        stack.add(operands.get(0));
+        return true;
+    }
+
+    private static void reduceTop(List<Node.TreeExpr> operators, List<Node.Expression> operands) {
+        Node.TreeExpr expr = operators.remove(operators.size() - 1);
+        Node.Expression right = operands.remove(operands.size() - 1);
+        if (expr instanceof Node.UnaryOperatorNode) {
+            ((Node.UnaryOperatorNode) expr).setOperand(right);
+        } else {
+            Node.BinaryOperatorNode bo = (Node.BinaryOperatorNode) expr;
+            bo.setLeft(operands.remove(operands.size() - 1));
+            bo.setRight(right);
+        }
+        operands.add(expr);
+    }
+
+    private boolean isWellFormed() {
+        boolean expectOperand = true;
+        Node last = null;
+        for (Node node : stack) {
+            if (node instanceof Node.TreeExpr && ((Node.TreeExpr) node).notFulfilled()) {
+                int pre = ((Node.TreeExpr) node).precedence();
+                if (pre < 0) return false;
+                if (isPrefix(node)) {
+                    // the right one must be reduced first
+                    if (!expectOperand || (last != null && pre < ((Node.TreeExpr) last).precedence())) return false;
+                } else if (isPostfix(node)) {
+                    // the left one must be reduced first
+                    if (expectOperand || (isPostfix(last) && pre >= ((Node.TreeExpr) last).precedence()))
+                        return false;
+                } else if (isBinary(node)) {
+                    if (expectOperand || (isPostfix(last) && pre > ((Node.TreeExpr) last).precedence()))
+                        return false;
+                    expectOperand = true;
+                } else {
+                    return false;
+                }
+            } else {
+                if (!expectOperand || !(node instanceof Node.Expression)) return false;
+                expectOperand = false;
+            }
+            last = node;
+        }
+        return !expectOperand;
+    }
+
+    private static boolean isPrefix(Node node) {
+        return node instanceof Node.UnaryOperatorNode && ((Node.UnaryOperatorNode) node).notFulfilled() &&
+                ((Node.UnaryOperatorNode) node).operator.operatorAtLeft;
+    }
+
+    private static boolean isPostfix(Node node) {
+        return node instanceof Node.UnaryOperatorNode && ((Node.UnaryOperatorNode) node).notFulfilled() &&
+                !((Node.UnaryOperatorNode) node).operator.operatorAtLeft;
+    }
+
+    private static boolean isBinary(Node node) {
+        return node instanceof Node.BinaryOperatorNode && ((Node.BinaryOperatorNode) node).notFulfilled();
+    }
+
+    /**
+     * Builds the expression by reducing the operator of the highest precedence, until none is left.
+     * <p>
+     * This takes quadratic time, and is only used for lines that {@link #buildLinear()} rejects.
+     */
+    private void buildByPrecedence() {
         while (true) {
 //                System.out.println(list);
             int maxPre = -1;
@@ -0,0 +1,248 @@
+package trashsoftware.decimalExpr.builder;
+
+import trashsoftware.decimalExpr.BuildException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles a {@code Node} tree into a tree of {@code Evaluator}s.
+ * <p>
+ * The compiler owns the slot layout of an expression. Global variables and macros are given slots in the order
+ * they are first seen, and each loop invariant of a macro function call gets a slot of its own. The layout is shared
+ * by an expression and the macros that are set on it.
+ */
+public class AstCompiler {
+
+    private final Map<String, Integer> variableSlots = new LinkedHashMap<>();
+    private final Map<String, Integer> macroSlots = new LinkedHashMap<>();
+    private final boolean approxRational;
+    private final int memoLimit;
+    private int slotCount;
+    private int memoCount;
+
+    /**
+     * Common subexpressions of the block being compiled, and the slots of those already compiled.
+     */
+    private Set<Node> shared = Set.of();
+    private Map<Node, Integer> storedSlots = Map.of();
+
+    /**
+     * Memoized subexpressions of the block being compiled, with the variables they read.
+     */
+    private Map<Node, Set<String>> memoized = Map.of();
+
+    /**
+     * The profiler of the block being compiled, or null if it is not profiled.
+     */
+    private Profiler profiler;
+
+    public AstCompiler(boolean approxRational) {
+        this(approxRational, 0);
+    }
+
+    /**
+     * @param approxRational whether decimal literals are rational
+     * @param memoLimit      the maximum number of memoized subexpressions of the expression and its macros
+     */
+    public AstCompiler(boolean approxRational, int memoLimit) {
+        this.approxRational = approxRational;
+        this.memoLimit = memoLimit;
+    }
+
+    /**
+     * Compiles the first expression of a block.
+     *
+     * @param root the parsed block
+     * @return the compiled expression
+     */
+    public Evaluator compile(Node.BlockStmt root) {
+        return compile(root, (Profiler) null);
+    }
+
+    /**
+     * Compiles the first expression of a block, recording the evaluation of every node to a profiler.
+     *
+     * @param root     the parsed block
+     * @param profiler the profiler, or null to not profile
+     * @return the compiled expression
+     */
+    public Evaluator compile(Node.BlockStmt root, Profiler profiler) {
+        this.profiler = profiler;
+        shared = CommonSubexpressions.sharedNodes(root);
+        storedSlots = new IdentityHashMap<>();
+        memoized = Memoization.plan(root, memoLimit - memoCount);
+        return compileBlock(root);
+    }
+
+    private Evaluator compileBlock(Node.BlockStmt block) {
+        if (block.size() == 0) return new Evaluator.UndefinedEval("<empty expression>");
+        return compile(block.get(0), Map.of());
+    }
+
+    private Evaluator compile(Node node, Map<String, Integer> locals) {
+        Integer stored = storedSlots.get(node);
+        if (stored != null) return new Evaluator.SlotEval(stored);
+        Evaluator evaluator = compileNode(node, locals);
+        if (profiler != null) evaluator = new Evaluator.ProfileEval(profiler, profiler.stats(node), evaluator);
+        Set<String> dependencies = memoized.get(node);
+        if (dependencies != null) {
+            int[] slots = new int[dependencies.size()];
+            int index = 0;
+            for (String name : dependencies) slots[index++] = variableSlot(name);
+            evaluator = new Evaluator.MemoEval(memoCount++, slots, evaluator);
+        }
+        if (shared.contains(node)) {
+            int slot = newSlot();
+            storedSlots.put(node, slot);
+            return new Evaluator.StoreEval(slot, evaluator);
+        }
+        return evaluator;
+    }
+
+    private Evaluator compileNode(Node node, Map<String, Integer> locals) {
+        if (node instanceof Node.BlockStmt) {
+            return compileBlock((Node.BlockStmt) node);
+        } else if (node instanceof Node.IntNode) {
+            return new Evaluator.ConstantEval(((Node.IntNode) node).value);
+        } else if (node instanceof Node.ConstNode) {
+            return new Evaluator.ConstantEval(((Node.ConstNode) node).value);
+        } else if (node instanceof Node.DecimalNode) {
+            return new Evaluator.DecimalEval(((Node.DecimalNode) node).literal, approxRational);
+        } else if (node instanceof Node.NameNode) {
+            return compileName((Node.NameNode) node, locals);
+        } else if (node instanceof Node.UnaryOperatorNode) {
+            Node.UnaryOperatorNode uon = (Node.UnaryOperatorNode) node;
+            return new Evaluator.UnaryEval(uon.operator, compile(uon.operand, locals));
+        } else if (node instanceof Node.BinaryOperatorNode) {
+            Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+            return new Evaluator.BinaryEval(bon.operator, compile(bon.left, locals), compile(bon.right, locals));
+        } else if (node instanceof Node.FunctionCall) {
+            Node.FunctionCall call = (Node.FunctionCall) node;
+            return new Evaluator.FunctionEval(call.function, compileAll(call.args, 0, locals));
+        } else if (node instanceof Node.MacroFunctionCall) {
+            return compileMacroFunctionCall((Node.MacroFunctionCall) node, locals);
+        }
+        throw new BuildException("Unexpected node " + node + ".");
+    }
+
+    private Evaluator compileName(Node.NameNode node, Map<String, Integer> locals) {
+        Integer local = locals.get(node.name);
+        if (local != null) return new Evaluator.SlotEval(local);
+        if (node instanceof Node.VarNameNode) {
+            return new Evaluator.SlotEval(variableSlot(node.name));
+        } else if (node instanceof Node.MacroNameNode) {
+            return new Evaluator.MacroEval(node.name, macroSlot(node.name));
+        } else {
+            return new Evaluator.UndefinedEval(node.name);
+        }
+    }
+
+    private Evaluator compileMacroFunctionCall(Node.MacroFunctionCall call, Map<String, Integer> locals) {
+        if (call.args.size() < 2)
+            throw new BuildException("Function '" + call.function.name + "' expects an invariant and a macro.");
+        Node invariantNode = call.args.get(0);
+        if (!(invariantNode instanceof Node.NameNode)) {
+            throw new BuildException("Invariant must be name, got " + invariantNode.getClass().getName());
+        }
+        String invariant = ((Node.NameNode) invariantNode).name;
+        int invariantSlot = newSlot();
+
+        Map<String, Integer> bodyLocals = new HashMap<>(locals);
+        bodyLocals.put(invariant, invariantSlot);
+        Evaluator body = compile(call.args.get(1), bodyLocals);
+
+        return new Evaluator.MacroFunctionEval(call.function, invariant, invariantSlot, body,
+                compileAll(call.args, 2, locals));
+    }
+
+    private Evaluator[] compileAll(Node.BlockStmt args, int from, Map<String, Integer> locals) {
+        Evaluator[] res = new Evaluator[args.size() - from];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = compile(args.get(i + from), locals);
+        }
+        return res;
+    }
+
+    /**
+     * Allocates an anonymous slot, such as the slot of a loop invariant.
+     *
+     * @return the slot index
+     */
+    int newSlot() {
+        return slotCount++;
+    }
+
+    /**
+     * Returns the slot of a global variable, allocating one if the variable is not seen before.
+     *
+     * @param name name of the variable
+     * @return the slot index
+     */
+    public int variableSlot(String name) {
+        Integer slot = variableSlots.get(name);
+        if (slot == null) {
+            slot = slotCount++;
+            variableSlots.put(name, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the slot of a macro, allocating one if the macro is not seen before.
+     *
+     * @param name name of the macro
+     * @return the macro slot index
+     */
+    public int macroSlot(String name) {
+        Integer slot = macroSlots.get(name);
+        if (slot == null) {
+            slot = macroSlots.size();
+            macroSlots.put(name, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * @return an immutable copy of the slots of global variables
+     */
+    public Map<String, Integer> variableSlots() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(variableSlots));
+    }
+
+    /**
+     * @return names of global variables, in the order of their slots
+     */
+    public Set<String> variableNames() {
+        return variableSlots.keySet();
+    }
+
+    public boolean isApproxRational() {
+        return approxRational;
+    }
+
+    int slotCount() {
+        return slotCount;
+    }
+
+    int macroCount() {
+        return macroSlots.size();
+    }
+
+    int memoCount() {
+        return memoCount;
+    }
+
+    /**
+     * Creates a frame that fits the current layout.
+     *
+     * @return the new frame
+     */
+    public Frame createFrame() {
+        return new Frame(slotCount, macroSlots.size(), memoCount);
+    }
+}
@@ -0,0 +1,266 @@
+package trashsoftware.decimalExpr.builder;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import trashsoftware.decimalExpr.expression.BinaryOperator;
+import trashsoftware.decimalExpr.expression.Function;
+import trashsoftware.decimalExpr.expression.Operators;
+import trashsoftware.decimalExpr.expression.UnaryOperator;
+import trashsoftware.decimalExpr.numbers.Number;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates a JVM class for a compiled expression.
+ * <p>
+ * The generated {@code eval} method is the straight-line form of the evaluator tree. The builtin binary operators
+ * are emitted as direct calls to the {@code Number} operations, and other operators and functions are called
+ * through their own call sites, so that the JIT can profile and inline each of them. Macros, macro function calls
+ * and decimal literals are delegated to their interpreted evaluators.
+ * <p>
+ * Classes are defined as hidden classes if the runtime supports them (Java 15+), so they can be unloaded together
+ * with the expression. Otherwise they are defined as normal classes of this package.
+ */
+public class BytecodeCompiler {
+
+    /**
+     * Expressions larger than this are left to the interpreter, to stay away from the method size limit.
+     */
+    public static final int MAX_NODES = 4000;
+
+    private static final String CLASS_NAME = "trashsoftware/decimalExpr/builder/GeneratedEvaluator";
+    private static final String EVALUATOR = Type.getInternalName(Evaluator.class);
+    private static final String FRAME = Type.getInternalName(Frame.class);
+    private static final String NUMBER = Type.getInternalName(Number.class);
+    private static final String NUMBER_DESC = Type.getDescriptor(Number.class);
+    private static final String BINARY_DESC = "(" + NUMBER_DESC + ")" + NUMBER_DESC;
+    private static final String OBJECT_ARRAY_DESC = "[Ljava/lang/Object;";
+
+    private static final Map<BinaryOperator, String> DIRECT_BINARY_OPS = Map.of(
+            Operators.ADD, "add",
+            Operators.SUB, "sub",
+            Operators.MUL, "mul",
+            Operators.DIV, "div",
+            Operators.EXP, "pow"
+    );
+
+    private static final AtomicInteger CLASS_COUNTER = new AtomicInteger();
+    private static final Method DEFINE_HIDDEN_CLASS = findDefineHiddenClass();
+
+    private final List<Object> constants = new ArrayList<>();
+    private int nodeCount;
+
+    private BytecodeCompiler() {
+    }
+
+    /**
+     * Wraps an evaluator so that it switches to generated bytecode after being evaluated {@code threshold} times.
+     *
+     * @param evaluator the interpreted evaluator
+     * @param threshold number of interpreted evaluations, 0 to compile immediately, negative to never compile
+     * @return the tiered evaluator
+     */
+    public static Evaluator tiered(Evaluator evaluator, int threshold) {
+        if (threshold < 0) return evaluator;
+        return new Evaluator.TieredEval(evaluator, threshold);
+    }
+
+    /**
+     * Generates a class for the evaluator.
+     *
+     * @param evaluator the interpreted evaluator
+     * @return the generated evaluator, or {@code null} if the expression cannot be compiled
+     */
+    public static Evaluator compile(Evaluator evaluator) {
+        if (evaluator instanceof Evaluator.TieredEval) evaluator = ((Evaluator.TieredEval) evaluator).interpreted;
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        try {
+            byte[] bytes = compiler.generate(evaluator);
+            if (bytes == null) return null;
+            return instantiate(bytes, compiler.constants.toArray());
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private byte[] generate(Evaluator evaluator) {
+        String className = DEFINE_HIDDEN_CLASS == null ?
+                CLASS_NAME + "$" + CLASS_COUNTER.incrementAndGet() : CLASS_NAME;
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V11, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER,
+                className, null, EVALUATOR, null);
+        cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "k", OBJECT_ARRAY_DESC, null, null).visitEnd();
+
+        MethodVisitor init = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "(" + OBJECT_ARRAY_DESC + ")V",
+                null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, EVALUATOR, "<init>", "()V", false);
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitVarInsn(Opcodes.ALOAD, 1);
+        init.visitFieldInsn(Opcodes.PUTFIELD, className, "k", OBJECT_ARRAY_DESC);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        // local 0: this, 1: frame, 2: constants, 3: frame slots
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "eval",
+                "(" + Type.getDescriptor(Frame.class) + ")" + NUMBER_DESC, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, className, "k", OBJECT_ARRAY_DESC);
+        mv.visitVarInsn(Opcodes.ASTORE, 2);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitFieldInsn(Opcodes.GETFIELD, FRAME, "slots", "[" + NUMBER_DESC);
+        mv.visitVarInsn(Opcodes.ASTORE, 3);
+        if (!emit(mv, evaluator)) return null;
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * Emits the code that pushes the value of {@code evaluator}.
+     *
+     * @return {@code false} if the expression is too large
+     */
+    private boolean emit(MethodVisitor mv, Evaluator evaluator) {
+        if (++nodeCount > MAX_NODES) return false;
+        if (evaluator instanceof Evaluator.ConstantEval) {
+            emitConstant(mv, ((Evaluator.ConstantEval) evaluator).value, NUMBER);
+        } else if (evaluator instanceof Evaluator.SlotEval) {
+            mv.visitVarInsn(Opcodes.ALOAD, 3);
+            pushInt(mv, ((Evaluator.SlotEval) evaluator).slot);
+            mv.visitInsn(Opcodes.AALOAD);
+        } else if (evaluator instanceof Evaluator.StoreEval) {
+            Evaluator.StoreEval se = (Evaluator.StoreEval) evaluator;
+            if (!emit(mv, se.value)) return false;
+            // value, value -> value, slots, index, value
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitVarInsn(Opcodes.ALOAD, 3);
+            mv.visitInsn(Opcodes.SWAP);
+            pushInt(mv, se.slot);
+            mv.visitInsn(Opcodes.SWAP);
+            mv.visitInsn(Opcodes.AASTORE);
+        } else if (evaluator instanceof Evaluator.BinaryEval) {
+            Evaluator.BinaryEval be = (Evaluator.BinaryEval) evaluator;
+            String direct = DIRECT_BINARY_OPS.get(be.operator);
+            if (direct != null) {
+                if (!emit(mv, be.left) || !emit(mv, be.right)) return false;
+                mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, NUMBER, direct, BINARY_DESC, true);
+            } else {
+                String owner = Type.getInternalName(BinaryOperator.class);
+                emitConstant(mv, be.operator, owner);
+                if (!emit(mv, be.left) || !emit(mv, be.right)) return false;
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, owner, "eval",
+                        "(" + NUMBER_DESC + NUMBER_DESC + ")" + NUMBER_DESC, false);
+            }
+        } else if (evaluator instanceof Evaluator.UnaryEval) {
+            Evaluator.UnaryEval ue = (Evaluator.UnaryEval) evaluator;
+            String owner = Type.getInternalName(UnaryOperator.class);
+            emitConstant(mv, ue.operator, owner);
+            if (!emit(mv, ue.operand)) return false;
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, owner, "eval", BINARY_DESC, false);
+        } else if (evaluator instanceof Evaluator.FunctionEval) {
+            Evaluator.FunctionEval fe = (Evaluator.FunctionEval) evaluator;
+            String owner = Type.getInternalName(Function.class);
+            emitConstant(mv, fe.function, owner);
+            pushInt(mv, fe.args.length);
+            mv.visitTypeInsn(Opcodes.ANEWARRAY, NUMBER);
+            for (int i = 0; i < fe.args.length; i++) {
+                mv.visitInsn(Opcodes.DUP);
+                pushInt(mv, i);
+                if (!emit(mv, fe.args[i])) return false;
+                mv.visitInsn(Opcodes.AASTORE);
+            }
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, owner, "eval",
+                    "([" + NUMBER_DESC + ")" + NUMBER_DESC, false);
+        } else if (evaluator instanceof Evaluator.MacroFunctionEval) {
+            // the macro body is compiled separately, and the call itself is interpreted
+            Evaluator.MacroFunctionEval mfe = (Evaluator.MacroFunctionEval) evaluator;
+            Evaluator body = compile(mfe.body);
+            emitInterpreted(mv, body == null ? mfe :
+                    new Evaluator.MacroFunctionEval(mfe.function, mfe.invariant, mfe.invariantSlot, body, mfe.args));
+        } else if (evaluator instanceof Evaluator.MemoEval) {
+            // likewise, the memoized value is compiled separately
+            Evaluator.MemoEval me = (Evaluator.MemoEval) evaluator;
+            Evaluator value = compile(me.value);
+            emitInterpreted(mv, value == null ? me : new Evaluator.MemoEval(me.memoSlot, me.dependencies, value));
+        } else {
+            emitInterpreted(mv, evaluator);
+        }
+        return true;
+    }
+
+    private void emitInterpreted(MethodVisitor mv, Evaluator evaluator) {
+        emitConstant(mv, evaluator, EVALUATOR);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, EVALUATOR, "eval",
+                "(" + Type.getDescriptor(Frame.class) + ")" + NUMBER_DESC, false);
+    }
+
+    private void emitConstant(MethodVisitor mv, Object constant, String internalName) {
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        pushInt(mv, constants.size());
+        mv.visitInsn(Opcodes.AALOAD);
+        mv.visitTypeInsn(Opcodes.CHECKCAST, internalName);
+        constants.add(constant);
+    }
+
+    private static void pushInt(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    private static Evaluator instantiate(byte[] bytes, Object[] constants) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        Class<?> clazz;
+        if (DEFINE_HIDDEN_CLASS != null) {
+            Object options = Array.newInstance(DEFINE_HIDDEN_CLASS.getParameterTypes()[2].getComponentType(), 0);
+            lookup = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(lookup, bytes, true, options);
+            clazz = lookup.lookupClass();
+        } else {
+            clazz = lookup.defineClass(bytes);
+        }
+        try {
+            return (Evaluator) lookup.findConstructor(clazz, MethodType.methodType(void.class, Object[].class))
+                    .invoke(constants);
+        } catch (ReflectiveOperationException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable throwable) {
+            throw new ReflectiveOperationException(throwable);
+        }
+    }
+
+    /**
+     * @return {@code Lookup.defineHiddenClass} if the runtime has it, otherwise {@code null}
+     */
+    private static Method findDefineHiddenClass() {
+        try {
+            Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            return MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                    byte[].class, boolean.class, Array.newInstance(optionClass, 0).getClass());
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package trashsoftware.decimalExpr.builder;
+
+/**
+ * A double expression lowered to work on blocks of rows at once.
+ */
+public interface ColumnKernel {
+
+    /**
+     * Evaluates the rows in {@code [from, to)}.
+     *
+     * @param columns values of the variables, by variable slot
+     * @param from    first row, inclusive
+     * @param to      last row, exclusive
+     * @param out     the array that receives the results, indexed by row
+     */
+    void evaluate(double[][] columns, int from, int to, double[] out);
+}
@@ -0,0 +1,33 @@
+package trashsoftware.decimalExpr.builder;
+
+/**
+ * Lowers double expressions to column kernels.
+ * <p>
+ * This is the Java 11 version, which has no kernels, so batches are evaluated row by row. The multi-release jar
+ * replaces it on Java 17+ with a version that uses the Vector API if the {@code jdk.incubator.vector} module is
+ * present.
+ */
+public final class ColumnKernels {
+
+    private ColumnKernels() {
+    }
+
+    /**
+     * @return whether this runtime has column kernels
+     */
+    public static boolean isAvailable() {
+        return false;
+    }
+
+    /**
+     * Lowers a double expression to a column kernel.
+     *
+     * @param program       the double expression
+     * @param variableCount number of variables, which take the first slots
+     * @param slotCount     number of slots of the expression
+     * @return the kernel, or {@code null} if the expression is evaluated row by row
+     */
+    public static ColumnKernel compile(DoubleEvaluator program, int variableCount, int slotCount) {
+        return null;
+    }
+}
@@ -0,0 +1,153 @@
+package trashsoftware.decimalExpr.builder;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns a tree into a DAG in which structurally equal pure subexpressions are one node.
+ * <p>
+ * Each scope has its own table of unique nodes. The outermost expression is a scope, and so is the body of every
+ * macro function call, since the body is evaluated once per value of its invariant. Nodes are never shared between
+ * scopes. A subexpression is pure if all operators and functions in it are pure. Impure subexpressions are never
+ * merged, so that each of them is still called once per occurrence.
+ * <p>
+ * The compilers find the nodes with more than one parent with {@code sharedNodes}, compute them at their first
+ * occurrence and store the value in a slot of the frame, and load the slot at later occurrences. Evaluation within a
+ * scope always runs from left to right without branches, so the first occurrence is always computed first.
+ */
+public final class CommonSubexpressions {
+
+    private final Map<Node, Node> replacements = new IdentityHashMap<>();
+    private final Set<Node> impure = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private CommonSubexpressions() {
+    }
+
+    /**
+     * Merges the common subexpressions of {@code root} in place.
+     * <p>
+     * This is the last pass over the tree, since the other passes expect every node to have a single parent.
+     *
+     * @param root the simplified block
+     */
+    public static void eliminate(Node.BlockStmt root) {
+        new CommonSubexpressions().eliminateTree(root);
+    }
+
+    /**
+     * Returns the operator and function nodes that have more than one parent.
+     *
+     * @param root the root of a DAG
+     * @return the shared nodes, compared by identity
+     */
+    public static Set<Node> sharedNodes(Node root) {
+        Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Node> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (!seen.add(node)) {
+                if (!(node instanceof Node.LeafExpr)) shared.add(node);
+                continue;
+            }
+            for (Node child : children(node)) stack.push(child);
+        }
+        return shared;
+    }
+
+    private void eliminateTree(Node.BlockStmt root) {
+        // each entry is a node, the table of its scope, and whether its children are already visited
+        Deque<Object[]> stack = new ArrayDeque<>();
+        stack.push(new Object[]{root, new HashMap<Node, Node>(), false});
+        while (!stack.isEmpty()) {
+            Object[] entry = stack.pop();
+            Node node = (Node) entry[0];
+            @SuppressWarnings("unchecked")
+            Map<Node, Node> scope = (Map<Node, Node>) entry[1];
+            if ((Boolean) entry[2]) {
+                visit(node, scope);
+                continue;
+            }
+            entry[2] = true;
+            stack.push(entry);
+            List<Node> children = children(node);
+            for (int i = 0; i < children.size(); i++) {
+                boolean body = node instanceof Node.MacroFunctionCall && i == 1;
+                stack.push(new Object[]{children.get(i), body ? new HashMap<Node, Node>() : scope, false});
+            }
+        }
+    }
+
+    static List<Node> children(Node node) {
+        if (node instanceof Node.BlockStmt) {
+            return ((Node.BlockStmt) node).getNodes();
+        } else if (node instanceof Node.FunctionCall) {
+            return ((Node.FunctionCall) node).args.getNodes();
+        } else if (node instanceof Node.MacroFunctionCall) {
+            return ((Node.MacroFunctionCall) node).args.getNodes();
+        } else if (node instanceof Node.UnaryOperatorNode) {
+            return List.of(((Node.UnaryOperatorNode) node).operand);
+        } else if (node instanceof Node.BinaryOperatorNode) {
+            Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+            return List.of(bon.left, bon.right);
+        }
+        return List.of();
+    }
+
+    private void visit(Node node, Map<Node, Node> scope) {
+        boolean pure;
+        if (node instanceof Node.BlockStmt) {
+            replaceAll((Node.BlockStmt) node);
+            return;
+        } else if (node instanceof Node.FunctionCall) {
+            Node.FunctionCall call = (Node.FunctionCall) node;
+            replaceAll(call.args);
+            pure = call.function.isPure() && allPure(call.args);
+        } else if (node instanceof Node.MacroFunctionCall) {
+            Node.MacroFunctionCall call = (Node.MacroFunctionCall) node;
+            replaceAll(call.args);
+            pure = call.function.isPure() && allPure(call.args);
+        } else if (node instanceof Node.UnaryOperatorNode) {
+            Node.UnaryOperatorNode uon = (Node.UnaryOperatorNode) node;
+            uon.setOperand((Node.Expression) replacement(uon.operand));
+            pure = uon.operator.isPure() && !impure.contains(uon.operand);
+        } else if (node instanceof Node.BinaryOperatorNode) {
+            Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+            bon.setLeft((Node.Expression) replacement(bon.left));
+            bon.setRight((Node.Expression) replacement(bon.right));
+            pure = bon.operator.isPure() && !impure.contains(bon.left) && !impure.contains(bon.right);
+        } else {
+            return;  // leaves are cheap to evaluate, and equal leaves need not be the same node
+        }
+        if (!pure) {
+            impure.add(node);
+            return;
+        }
+        Node unique = scope.putIfAbsent(node, node);
+        if (unique != null) replacements.put(node, unique);
+    }
+
+    private boolean allPure(Node.BlockStmt block) {
+        for (Node node : block.getNodes()) {
+            if (impure.contains(node)) return false;
+        }
+        return true;
+    }
+
+    private void replaceAll(Node.BlockStmt block) {
+        for (int i = 0; i < block.size(); i++) {
+            block.set(i, replacement(block.get(i)));
+        }
+    }
+
+    private Node replacement(Node child) {
+        return replacements.getOrDefault(child, child);
+    }
+}
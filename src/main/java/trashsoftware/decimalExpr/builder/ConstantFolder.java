@@ -0,0 +1,153 @@
+package trashsoftware.decimalExpr.builder;
+
+import trashsoftware.decimalExpr.numbers.Decimal;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optimizes a parsed tree before it is compiled.
+ * <p>
+ * Decimal literals are converted to numbers once, and subtrees that consist only of literals and pure operators or
+ * functions are replaced by their values. Variables are never folded, including the builtin {@code pi} and
+ * {@code e}, since they can be reassigned.
+ * <p>
+ * A subtree whose evaluation throws, such as {@code 1/0} or a recurring decimal that is not rational, is left as is,
+ * so that the error is still raised when the expression is evaluated.
+ */
+public final class ConstantFolder {
+
+    private final boolean approxRational;
+
+    /**
+     * Values of the constant nodes that are already visited.
+     */
+    private final Map<Node, Number> constants = new IdentityHashMap<>();
+
+    private ConstantFolder(boolean approxRational) {
+        this.approxRational = approxRational;
+    }
+
+    /**
+     * Folds the constant subtrees of {@code root} in place.
+     *
+     * @param root           the parsed block
+     * @param approxRational whether decimal literals are converted to rational
+     */
+    public static void fold(Node.BlockStmt root, boolean approxRational) {
+        new ConstantFolder(approxRational).foldTree(root);
+    }
+
+    private void foldTree(Node root) {
+        // post-order with an explicit stack, since parsed trees can be very deep
+        Deque<Object[]> stack = new ArrayDeque<>();
+        stack.push(new Object[]{root, false});
+        while (!stack.isEmpty()) {
+            Object[] entry = stack.pop();
+            Node node = (Node) entry[0];
+            if ((Boolean) entry[1]) {
+                visit(node);
+                continue;
+            }
+            entry[1] = true;
+            stack.push(entry);
+            for (Node child : children(node)) {
+                stack.push(new Object[]{child, false});
+            }
+        }
+    }
+
+    private static List<Node> children(Node node) {
+        if (node instanceof Node.BlockStmt) {
+            return ((Node.BlockStmt) node).getNodes();
+        } else if (node instanceof Node.FunctionCall) {
+            return ((Node.FunctionCall) node).args.getNodes();
+        } else if (node instanceof Node.MacroFunctionCall) {
+            return ((Node.MacroFunctionCall) node).args.getNodes();
+        } else if (node instanceof Node.UnaryOperatorNode) {
+            return List.of(((Node.UnaryOperatorNode) node).operand);
+        } else if (node instanceof Node.BinaryOperatorNode) {
+            Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+            return List.of(bon.left, bon.right);
+        }
+        return List.of();
+    }
+
+    /**
+     * Computes the value of {@code node} if it is constant, otherwise replaces its constant children.
+     *
+     * @param node a node whose children are all visited
+     */
+    private void visit(Node node) {
+        Number value = valueOf(node);
+        if (value != null) {
+            constants.put(node, value);
+            return;
+        }
+        if (node instanceof Node.BlockStmt) {
+            replaceAll((Node.BlockStmt) node);
+        } else if (node instanceof Node.FunctionCall) {
+            replaceAll(((Node.FunctionCall) node).args);
+        } else if (node instanceof Node.MacroFunctionCall) {
+            replaceAll(((Node.MacroFunctionCall) node).args);
+        } else if (node instanceof Node.UnaryOperatorNode) {
+            Node.UnaryOperatorNode uon = (Node.UnaryOperatorNode) node;
+            uon.setOperand((Node.Expression) replacement(uon.operand));
+        } else if (node instanceof Node.BinaryOperatorNode) {
+            Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+            bon.setLeft((Node.Expression) replacement(bon.left));
+            bon.setRight((Node.Expression) replacement(bon.right));
+        }
+    }
+
+    private Number valueOf(Node node) {
+        try {
+            if (node instanceof Node.IntNode) {
+                return ((Node.IntNode) node).value;
+            } else if (node instanceof Node.ConstNode) {
+                return ((Node.ConstNode) node).value;
+            } else if (node instanceof Node.DecimalNode) {
+                String literal = ((Node.DecimalNode) node).literal;
+                return approxRational ? Rational.fromDecimalString(literal) : Decimal.fromDecimalString(literal);
+            } else if (node instanceof Node.UnaryOperatorNode) {
+                Node.UnaryOperatorNode uon = (Node.UnaryOperatorNode) node;
+                Number operand = constants.get(uon.operand);
+                if (operand != null && uon.operator.isPure()) return uon.operator.eval(operand);
+            } else if (node instanceof Node.BinaryOperatorNode) {
+                Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+                Number left = constants.get(bon.left);
+                Number right = constants.get(bon.right);
+                if (left != null && right != null && bon.operator.isPure()) return bon.operator.eval(left, right);
+            } else if (node instanceof Node.FunctionCall) {
+                Node.FunctionCall call = (Node.FunctionCall) node;
+                if (!call.function.isPure()) return null;
+                Number[] args = new Number[call.args.size()];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = constants.get(call.args.get(i));
+                    if (args[i] == null) return null;
+                }
+                return call.function.eval(args);
+            }
+        } catch (RuntimeException e) {
+            // keep the subtree, it throws again at evaluation
+        }
+        return null;
+    }
+
+    private void replaceAll(Node.BlockStmt block) {
+        for (int i = 0; i < block.size(); i++) {
+            block.set(i, replacement(block.get(i)));
+        }
+    }
+
+    private Node replacement(Node child) {
+        Number value = constants.get(child);
+        if (value == null || child instanceof Node.IntNode || child instanceof Node.ConstNode) return child;
+        return new Node.ConstNode(value);
+    }
+}
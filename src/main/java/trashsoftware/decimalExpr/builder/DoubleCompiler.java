@@ -0,0 +1,201 @@
+package trashsoftware.decimalExpr.builder;
+
+import trashsoftware.decimalExpr.BuildException;
+import trashsoftware.decimalExpr.expression.Functions;
+import trashsoftware.decimalExpr.expression.Operators;
+import trashsoftware.decimalExpr.numbers.Decimal;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+import trashsoftware.decimalExpr.numbers.Real;
+import trashsoftware.decimalExpr.util.Utilities;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles a {@code Node} tree into a tree of {@code DoubleEvaluator}s.
+ * <p>
+ * The variables given to the constructor take the first slots, in order. Other variables, such as {@code pi}, are
+ * compiled as constants of their current values, and macros are inlined where they are used.
+ */
+public class DoubleCompiler {
+
+    private final Map<String, Integer> variableSlots = new HashMap<>();
+    private final Map<String, Number> constants = new HashMap<>();
+    private final Map<String, Node> macros = new HashMap<>();
+    private final Set<String> inlining = new HashSet<>();
+    private int slotCount;
+
+    /**
+     * @param variables names of variables, which are the arguments of the compiled expression
+     */
+    public DoubleCompiler(List<String> variables) {
+        for (String variable : variables) variableSlots.put(variable, slotCount++);
+    }
+
+    public void constant(String name, Number value) {
+        constants.put(name, value);
+    }
+
+    public void macro(String name, Node root) {
+        macros.put(name, root);
+    }
+
+    /**
+     * @return number of slots used by the compiled expressions, including the variables
+     */
+    public int slotCount() {
+        return slotCount;
+    }
+
+    /**
+     * Compiles the first expression of a block.
+     *
+     * @param root the parsed block
+     * @return the compiled expression
+     */
+    public DoubleEvaluator compile(Node.BlockStmt root) {
+        return compile(root, new Scope(root, Map.of()));
+    }
+
+    private DoubleEvaluator compile(Node node, Scope scope) {
+        Integer stored = scope.storedSlots.get(node);
+        if (stored != null) return new DoubleEvaluator.Slot(stored);
+        DoubleEvaluator evaluator = compileNode(node, scope);
+        if (scope.shared.contains(node)) {
+            int slot = slotCount++;
+            scope.storedSlots.put(node, slot);
+            return new DoubleEvaluator.Store(slot, evaluator);
+        }
+        return evaluator;
+    }
+
+    private DoubleEvaluator compileNode(Node node, Scope scope) {
+        if (node instanceof Node.BlockStmt) {
+            Node.BlockStmt block = (Node.BlockStmt) node;
+            if (block.size() == 0) throw new BuildException("Empty expression.");
+            return compile(block.get(0), scope);
+        } else if (node instanceof Node.IntNode) {
+            return new DoubleEvaluator.Constant(((Node.IntNode) node).value.doubleValue());
+        } else if (node instanceof Node.ConstNode) {
+            // folded constants that are not real, such as sqrt(-1), are NaN like in Math.sqrt
+            return new DoubleEvaluator.Constant(Utilities.toDouble(((Node.ConstNode) node).value));
+        } else if (node instanceof Node.DecimalNode) {
+            return new DoubleEvaluator.Constant(decimalValue(((Node.DecimalNode) node).literal));
+        } else if (node instanceof Node.NameNode) {
+            return compileName((Node.NameNode) node, scope);
+        } else if (node instanceof Node.UnaryOperatorNode) {
+            Node.UnaryOperatorNode uon = (Node.UnaryOperatorNode) node;
+            DoubleEvaluator operand = compile(uon.operand, scope);
+            if (uon.operator == Operators.NEG) return new DoubleEvaluator.Neg(operand);
+            return new DoubleEvaluator.Unary(uon.operator, operand);
+        } else if (node instanceof Node.BinaryOperatorNode) {
+            return compileBinary((Node.BinaryOperatorNode) node, scope);
+        } else if (node instanceof Node.FunctionCall) {
+            Node.FunctionCall call = (Node.FunctionCall) node;
+            DoubleEvaluator[] args = compileAll(call.args, 0, scope);
+            if (args.length == 1 && call.function == Functions.ABS) return new DoubleEvaluator.Abs(args[0]);
+            if (args.length == 1 && call.function == Functions.SQRT) return new DoubleEvaluator.Sqrt(args[0]);
+            return new DoubleEvaluator.Call(call.function, args);
+        } else if (node instanceof Node.MacroFunctionCall) {
+            return compileMacroFunctionCall((Node.MacroFunctionCall) node, scope);
+        }
+        throw new BuildException("Unexpected node " + node + ".");
+    }
+
+    private DoubleEvaluator compileBinary(Node.BinaryOperatorNode bon, Scope scope) {
+        DoubleEvaluator left = compile(bon.left, scope);
+        DoubleEvaluator right = compile(bon.right, scope);
+        if (bon.operator == Operators.ADD) return new DoubleEvaluator.Add(left, right);
+        if (bon.operator == Operators.SUB) return new DoubleEvaluator.Sub(left, right);
+        if (bon.operator == Operators.MUL) return new DoubleEvaluator.Mul(left, right);
+        if (bon.operator == Operators.DIV) return new DoubleEvaluator.Div(left, right);
+        if (bon.operator == Operators.EXP) return new DoubleEvaluator.Pow(left, right);
+        return new DoubleEvaluator.Binary(bon.operator, left, right);
+    }
+
+    private DoubleEvaluator compileName(Node.NameNode node, Scope scope) {
+        Integer slot = scope.locals.get(node.name);
+        if (slot == null) slot = variableSlots.get(node.name);
+        if (slot != null) return new DoubleEvaluator.Slot(slot);
+        if (node instanceof Node.MacroNameNode) {
+            return inlineMacro(node.name);
+        } else if (node instanceof Node.VarNameNode && constants.containsKey(node.name)) {
+            return new DoubleEvaluator.Constant(realValue(constants.get(node.name), node.name));
+        }
+        throw new BuildException("Unexpected name " + node.name + ".");
+    }
+
+    private DoubleEvaluator inlineMacro(String name) {
+        Node root = macros.get(name);
+        if (root == null) throw new BuildException("Macro is declared but not set.");
+        if (!inlining.add(name)) throw new BuildException("Macro '" + name + "' refers to itself.");
+        try {
+            // macros see the global variables only, and have their own common subexpressions
+            return compile(root, new Scope(root, Map.of()));
+        } finally {
+            inlining.remove(name);
+        }
+    }
+
+    private DoubleEvaluator compileMacroFunctionCall(Node.MacroFunctionCall call, Scope scope) {
+        if (call.args.size() < 2)
+            throw new BuildException("Function '" + call.function.name + "' expects an invariant and a macro.");
+        Node invariantNode = call.args.get(0);
+        if (!(invariantNode instanceof Node.NameNode)) {
+            throw new BuildException("Invariant must be name, got " + invariantNode.getClass().getName());
+        }
+        int invariantSlot = slotCount++;
+        Map<String, Integer> bodyLocals = new HashMap<>(scope.locals);
+        bodyLocals.put(((Node.NameNode) invariantNode).name, invariantSlot);
+        DoubleEvaluator body = compile(call.args.get(1), new Scope(scope, bodyLocals));
+
+        return new DoubleEvaluator.MacroCall(call.function, invariantSlot, body, compileAll(call.args, 2, scope));
+    }
+
+    private DoubleEvaluator[] compileAll(Node.BlockStmt args, int from, Scope scope) {
+        DoubleEvaluator[] res = new DoubleEvaluator[args.size() - from];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = compile(args.get(i + from), scope);
+        }
+        return res;
+    }
+
+    private static double realValue(Number value, String name) {
+        if (!(value instanceof Real)) throw new BuildException("'" + name + "' is not a real number.");
+        return ((Real) value).doubleValue();
+    }
+
+    private static double decimalValue(String literal) {
+        try {
+            return Rational.fromDecimalString(literal).doubleValue();
+        } catch (RuntimeException e) {
+            return Decimal.fromDecimalString(literal).doubleValue();
+        }
+    }
+
+    /**
+     * Names and common subexpressions visible to a node.
+     */
+    private static final class Scope {
+        final Set<Node> shared;
+        final Map<Node, Integer> storedSlots;
+        final Map<String, Integer> locals;
+
+        Scope(Node root, Map<String, Integer> locals) {
+            this.shared = CommonSubexpressions.sharedNodes(root);
+            this.storedSlots = new IdentityHashMap<>();
+            this.locals = locals;
+        }
+
+        Scope(Scope outer, Map<String, Integer> locals) {
+            this.shared = outer.shared;
+            this.storedSlots = outer.storedSlots;
+            this.locals = locals;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package trashsoftware.decimalExpr.builder;
+
+import trashsoftware.decimalExpr.expression.BinaryOperator;
+import trashsoftware.decimalExpr.expression.Function;
+import trashsoftware.decimalExpr.expression.MacroFunction;
+import trashsoftware.decimalExpr.expression.UnaryOperator;
+
+/**
+ * A compiled expression that evaluates on primitive {@code double}s.
+ * <p>
+ * The slots hold the variables of the expression, followed by the invariants of macro function calls and the
+ * values of common subexpressions. Builtin operators and functions are evaluated without allocation.
+ */
+public abstract class DoubleEvaluator {
+
+    public abstract double eval(double[] slots);
+
+    static final class Constant extends DoubleEvaluator {
+        final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            return value;
+        }
+    }
+
+    static final class Slot extends DoubleEvaluator {
+        final int slot;
+
+        Slot(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            return slots[slot];
+        }
+    }
+
+    static final class Store extends DoubleEvaluator {
+        final int slot;
+        final DoubleEvaluator value;
+
+        Store(int slot, DoubleEvaluator value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            double result = value.eval(slots);
+            slots[slot] = result;
+            return result;
+        }
+    }
+
+    static final class Add extends DoubleEvaluator {
+        final DoubleEvaluator left;
+        final DoubleEvaluator right;
+
+        Add(DoubleEvaluator left, DoubleEvaluator right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            return left.eval(slots) + right.eval(slots);
+        }
+    }
+
+    static final class Sub extends DoubleEvaluator {
+        final DoubleEvaluator left;
+        final DoubleEvaluator right;
+
+        Sub(DoubleEvaluator left, DoubleEvaluator right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            return left.eval(slots) - right.eval(slots);
+        }
+    }
+
+    static final class Mul extends DoubleEvaluator {
+        final DoubleEvaluator left;
+        final DoubleEvaluator right;
+
+        Mul(DoubleEvaluator left, DoubleEvaluator right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            return left.eval(slots) * right.eval(slots);
+        }
+    }
+
+    static final class Div extends DoubleEvaluator {
+        final DoubleEvaluator left;
+        final DoubleEvaluator right;
+
+        Div(DoubleEvaluator left, DoubleEvaluator right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            return left.eval(slots) / right.eval(slots);
+        }
+    }
+
+    static final class Pow extends DoubleEvaluator {
+        final DoubleEvaluator left;
+        final DoubleEvaluator right;
+
+        Pow(DoubleEvaluator left, DoubleEvaluator right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            return Math.pow(left.eval(slots), right.eval(slots));
+        }
+    }
+
+    static final class Neg extends DoubleEvaluator {
+        final DoubleEvaluator operand;
+
+        Neg(DoubleEvaluator operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            return -operand.eval(slots);
+        }
+    }
+
+    static final class Abs extends DoubleEvaluator {
+        final DoubleEvaluator operand;
+
+        Abs(DoubleEvaluator operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            return Math.abs(operand.eval(slots));
+        }
+    }
+
+    static final class Sqrt extends DoubleEvaluator {
+        final DoubleEvaluator operand;
+
+        Sqrt(DoubleEvaluator operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            return Math.sqrt(operand.eval(slots));
+        }
+    }
+
+    static final class Unary extends DoubleEvaluator {
+        final UnaryOperator operator;
+        final DoubleEvaluator operand;
+
+        Unary(UnaryOperator operator, DoubleEvaluator operand) {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            return operator.evalDouble(operand.eval(slots));
+        }
+    }
+
+    static final class Binary extends DoubleEvaluator {
+        final BinaryOperator operator;
+        final DoubleEvaluator left;
+        final DoubleEvaluator right;
+
+        Binary(BinaryOperator operator, DoubleEvaluator left, DoubleEvaluator right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            return operator.evalDouble(left.eval(slots), right.eval(slots));
+        }
+    }
+
+    static final class Call extends DoubleEvaluator {
+        final Function function;
+        final DoubleEvaluator[] args;
+
+        Call(Function function, DoubleEvaluator[] args) {
+            this.function = function;
+            this.args = args;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            return function.evalDouble(evalAll(args, slots));
+        }
+    }
+
+    static final class MacroCall extends DoubleEvaluator {
+        final MacroFunction function;
+        final int invariantSlot;
+        final DoubleEvaluator body;
+        final DoubleEvaluator[] args;
+
+        MacroCall(MacroFunction function, int invariantSlot, DoubleEvaluator body, DoubleEvaluator[] args) {
+            this.function = function;
+            this.invariantSlot = invariantSlot;
+            this.body = body;
+            this.args = args;
+        }
+
+        @Override
+        public double eval(double[] slots) {
+            double[] argValues = evalAll(args, slots);
+            double saved = slots[invariantSlot];
+            try {
+                return function.evalDouble(invariant -> {
+                    slots[invariantSlot] = invariant;
+                    return body.eval(slots);
+                }, argValues);
+            } finally {
+                slots[invariantSlot] = saved;
+            }
+        }
+    }
+
+    static double[] evalAll(DoubleEvaluator[] evaluators, double[] slots) {
+        double[] res = new double[evaluators.length];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = evaluators[i].eval(slots);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,331 @@
+package trashsoftware.decimalExpr.builder;
+
+import trashsoftware.decimalExpr.BuildException;
+import trashsoftware.decimalExpr.expression.*;
+import trashsoftware.decimalExpr.numbers.Decimal;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+
+/**
+ * A node of the compiled expression.
+ * <p>
+ * Evaluators are created by {@code AstCompiler} from the {@code Node} tree. All names are already resolved to slots
+ * of a {@code Frame}, so an evaluation does no hashing or string comparison.
+ */
+public abstract class Evaluator {
+
+    public abstract Number eval(Frame frame);
+
+    static class ConstantEval extends Evaluator {
+        final Number value;
+
+        ConstantEval(Number value) {
+            this.value = value;
+        }
+
+        @Override
+        public Number eval(Frame frame) {
+            return value;
+        }
+    }
+
+    static class DecimalEval extends Evaluator {
+        final String literal;
+        final boolean approxRational;
+
+        DecimalEval(String literal, boolean approxRational) {
+            this.literal = literal;
+            this.approxRational = approxRational;
+        }
+
+        @Override
+        public Number eval(Frame frame) {
+            if (approxRational) {
+                return Rational.fromDecimalString(literal);
+            } else {
+                return Decimal.fromDecimalString(literal);
+            }
+        }
+    }
+
+    static class SlotEval extends Evaluator {
+        final int slot;
+
+        SlotEval(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public Number eval(Frame frame) {
+            return frame.slots[slot];
+        }
+    }
+
+    /**
+     * Evaluates a common subexpression, and stores its value for the later occurrences, which are {@code SlotEval}s.
+     */
+    static class StoreEval extends Evaluator {
+        final int slot;
+        final Evaluator value;
+
+        StoreEval(int slot, Evaluator value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        public Number eval(Frame frame) {
+            Number result = value.eval(frame);
+            frame.slots[slot] = result;
+            return result;
+        }
+    }
+
+    /**
+     * A memoized subexpression, which is only evaluated again after one of the variables it reads is set.
+     */
+    static class MemoEval extends Evaluator {
+        final int memoSlot;
+        final int[] dependencies;
+        final Evaluator value;
+
+        MemoEval(int memoSlot, int[] dependencies, Evaluator value) {
+            this.memoSlot = memoSlot;
+            this.dependencies = dependencies;
+            this.value = value;
+        }
+
+        @Override
+        public Number eval(Frame frame) {
+            Number result = frame.memoized(memoSlot, dependencies);
+            if (result == null) {
+                result = value.eval(frame);
+                frame.memoize(memoSlot, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Records the calls, the time and the result sizes of a node, for a {@code Profiler}.
+     */
+    static class ProfileEval extends Evaluator {
+        final Profiler profiler;
+        final Profiler.NodeStats stats;
+        final Evaluator value;
+
+        ProfileEval(Profiler profiler, Profiler.NodeStats stats, Evaluator value) {
+            this.profiler = profiler;
+            this.stats = stats;
+            this.value = value;
+        }
+
+        @Override
+        public Number eval(Frame frame) {
+            long outerChildNanos = profiler.childNanos;
+            profiler.childNanos = 0;
+            long start = System.nanoTime();
+            Number result;
+            try {
+                result = value.eval(frame);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                long self = elapsed - profiler.childNanos;
+                profiler.childNanos = outerChildNanos + elapsed;
+                stats.record(elapsed, self);
+            }
+            stats.recordSize(result);
+            return result;
+        }
+    }
+
+    static class MacroEval extends Evaluator {
+        final String name;
+        final int macroSlot;
+
+        MacroEval(String name, int macroSlot) {
+            this.name = name;
+            this.macroSlot = macroSlot;
+        }
+
+        @Override
+        public Number eval(Frame frame) {
+            Evaluator macro = frame.macros[macroSlot];
+            if (macro == null) throw new BuildException("Macro '" + name + "' is declared but not set.");
+            return macro.eval(frame);
+        }
+    }
+
+    static class UndefinedEval extends Evaluator {
+        final String name;
+
+        UndefinedEval(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Number eval(Frame frame) {
+            throw new BuildException("Unexpected name " + name + ".");
+        }
+    }
+
+    static class UnaryEval extends Evaluator {
+        final UnaryOperator operator;
+        final Evaluator operand;
+
+        UnaryEval(UnaryOperator operator, Evaluator operand) {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        public Number eval(Frame frame) {
+            return operator.eval(operand.eval(frame));
+        }
+    }
+
+    static class BinaryEval extends Evaluator {
+        final BinaryOperator operator;
+        final Evaluator left;
+        final Evaluator right;
+
+        BinaryEval(BinaryOperator operator, Evaluator left, Evaluator right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Number eval(Frame frame) {
+            return operator.eval(left.eval(frame), right.eval(frame));
+        }
+    }
+
+    static class FunctionEval extends Evaluator {
+        final Function function;
+        final Evaluator[] args;
+
+        FunctionEval(Function function, Evaluator[] args) {
+            this.function = function;
+            this.args = args;
+        }
+
+        @Override
+        public Number eval(Frame frame) {
+            return function.eval(evalAll(args, frame));
+        }
+    }
+
+    static class MacroFunctionEval extends Evaluator {
+        final MacroFunction function;
+        final String invariant;
+        final int invariantSlot;
+        final Evaluator body;
+        final Evaluator[] args;
+
+        MacroFunctionEval(MacroFunction function, String invariant, int invariantSlot,
+                          Evaluator body, Evaluator[] args) {
+            this.function = function;
+            this.invariant = invariant;
+            this.invariantSlot = invariantSlot;
+            this.body = body;
+            this.args = args;
+        }
+
+        @Override
+        public Number eval(Frame frame) {
+            return invoke(frame, evalAll(args, frame));
+        }
+
+        /**
+         * Calls the macro function with arguments that are already evaluated.
+         *
+         * @param frame     the frame
+         * @param arguments the arguments that follow the invariant and the macro
+         * @return the return value of the macro function
+         */
+        Number invoke(Frame frame, Number[] arguments) {
+            Number saved = frame.slots[invariantSlot];  // in case of recursive macros
+            try {
+                return function.eval(invariant, new InvariantMacro(this, frame), arguments);
+            } finally {
+                frame.slots[invariantSlot] = saved;
+            }
+        }
+    }
+
+    /**
+     * The macro that is passed to a {@code MacroFunction}, whose only local variable is the invariant.
+     */
+    static class InvariantMacro extends Macro {
+        private final MacroFunctionEval call;
+        private final Frame frame;
+
+        InvariantMacro(MacroFunctionEval call, Frame frame) {
+            super(null, null);
+            this.call = call;
+            this.frame = frame;
+        }
+
+        @Override
+        public Number eval() {
+            return call.body.eval(frame);
+        }
+
+        @Override
+        public void setVariable(String name, Number value) {
+            if (!name.equals(call.invariant))
+                throw new UnknownSymbolException("Variable '" + name + "' is not the invariant of " +
+                        call.function.name + ".");
+            frame.slots[call.invariantSlot] = value;
+        }
+
+        @Override
+        public String toString() {
+            return "Macro{" + call.invariant + "}";
+        }
+    }
+
+    /**
+     * An evaluator that interprets until it has been evaluated a number of times, then switches to the
+     * generated bytecode of the expression.
+     * <p>
+     * The counter is not synchronized. Under concurrent evaluation the switch may happen a little later, or the
+     * bytecode may be generated twice, both of which are harmless.
+     */
+    static class TieredEval extends Evaluator {
+        final Evaluator interpreted;
+        private volatile Evaluator current;
+        private int remaining;
+
+        TieredEval(Evaluator interpreted, int threshold) {
+            this.interpreted = interpreted;
+            this.current = interpreted;
+            this.remaining = threshold;
+            if (threshold == 0) tierUp();
+        }
+
+        @Override
+        public Number eval(Frame frame) {
+            if (remaining > 0 && --remaining == 0) tierUp();
+            return current.eval(frame);
+        }
+
+        private void tierUp() {
+            Evaluator compiled = BytecodeCompiler.compile(interpreted);
+            if (compiled != null) current = compiled;
+        }
+
+        boolean isCompiled() {
+            return current != interpreted;
+        }
+    }
+
+    static Number[] evalAll(Evaluator[] evaluators, Frame frame) {
+        Number[] res = new Number[evaluators.length];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = evaluators[i].eval(frame);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,122 @@
+package trashsoftware.decimalExpr.builder;
+
+import trashsoftware.decimalExpr.numbers.Number;
+
+import java.util.Arrays;
+
+/**
+ * The runtime storage of a compiled expression.
+ * <p>
+ * Every variable and loop invariant is resolved to an index of {@code slots} at build time, and every macro to an
+ * index of {@code macros}, so that evaluation needs no name lookup.
+ * <p>
+ * A frame also counts the changes of its slots. Each {@link #set} stamps the slot with a new version, which memoized
+ * subexpressions compare with the version they were computed at.
+ */
+public final class Frame {
+
+    final Number[] slots;
+    final Evaluator[] macros;
+
+    /**
+     * Version of the last {@code set} of each slot, 0 if never set.
+     */
+    private final long[] versions;
+    private long clock;
+
+    /**
+     * Values of memoized subexpressions, and the version they were computed at, -1 if not computed.
+     */
+    private final Number[] memoValues;
+    private final long[] memoVersions;
+
+    Frame(int slotCount, int macroCount, int memoCount) {
+        this(new Number[slotCount], new Evaluator[macroCount], memoCount);
+    }
+
+    private Frame(Number[] slots, Evaluator[] macros, int memoCount) {
+        this.slots = slots;
+        this.macros = macros;
+        this.versions = new long[slots.length];
+        this.memoValues = new Number[memoCount];
+        this.memoVersions = new long[memoCount];
+        Arrays.fill(memoVersions, -1);
+    }
+
+    public Number get(int slot) {
+        return slots[slot];
+    }
+
+    public void set(int slot, Number value) {
+        slots[slot] = value;
+        versions[slot] = ++clock;
+    }
+
+    public void setMacro(int macroSlot, Evaluator macro) {
+        macros[macroSlot] = macro;
+    }
+
+    /**
+     * Returns the memoized value of a subexpression, if none of its dependencies is set since it was computed.
+     *
+     * @param memoSlot     index of the memoized subexpression
+     * @param dependencies slots the subexpression reads
+     * @return the value, or {@code null} if it must be computed again
+     */
+    Number memoized(int memoSlot, int[] dependencies) {
+        long computedAt = memoVersions[memoSlot];
+        if (computedAt < 0) return null;
+        for (int slot : dependencies) {
+            if (versions[slot] > computedAt) return null;
+        }
+        return memoValues[memoSlot];
+    }
+
+    void memoize(int memoSlot, Number value) {
+        memoValues[memoSlot] = value;
+        memoVersions[memoSlot] = clock;
+    }
+
+    /**
+     * Returns a copy of this frame that shares the macros.
+     * <p>
+     * Compiled macros are immutable, so only the slots need to be copied. Memoized values are not copied.
+     *
+     * @return the copy
+     */
+    public Frame copy() {
+        return new Frame(slots.clone(), macros, memoValues.length);
+    }
+
+    /**
+     * Returns a copy of this frame with its own macro table.
+     *
+     * @return the copy
+     */
+    public Frame snapshot() {
+        return new Frame(slots.clone(), macros.clone(), memoValues.length);
+    }
+
+    /**
+     * Returns a frame that is large enough for the current layout of {@code compiler}.
+     * <p>
+     * The frame only grows when a macro that is set after building introduces new loop invariants or memoized
+     * subexpressions.
+     *
+     * @param compiler the compiler that owns the slot layout
+     * @return this frame if it is large enough, otherwise an enlarged copy
+     */
+    public Frame ensureCapacity(AstCompiler compiler) {
+        int slotCount = compiler.slotCount();
+        int macroCount = compiler.macroCount();
+        int memoCount = compiler.memoCount();
+        if (slots.length >= slotCount && macros.length >= macroCount && memoValues.length >= memoCount) return this;
+        Frame frame = new Frame(Arrays.copyOf(slots, Math.max(slots.length, slotCount)),
+                Arrays.copyOf(macros, Math.max(macros.length, macroCount)), Math.max(memoValues.length, memoCount));
+        frame.clock = clock;
+        System.arraycopy(versions, 0, frame.versions, 0, versions.length);
+        System.arraycopy(memoValues, 0, frame.memoValues, 0, memoValues.length);
+        System.arraycopy(memoVersions, 0, frame.memoVersions, 0, memoVersions.length);
+        return frame;
+    }
+}
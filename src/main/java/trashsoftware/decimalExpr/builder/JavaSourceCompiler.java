@@ -0,0 +1,456 @@
+package trashsoftware.decimalExpr.builder;
+
+import trashsoftware.decimalExpr.BuildException;
+import trashsoftware.decimalExpr.expression.AbstractFunction;
+import trashsoftware.decimalExpr.expression.BinaryOperator;
+import trashsoftware.decimalExpr.expression.Functions;
+import trashsoftware.decimalExpr.expression.Operator;
+import trashsoftware.decimalExpr.expression.Operators;
+import trashsoftware.decimalExpr.expression.UnaryOperator;
+import trashsoftware.decimalExpr.numbers.Complex;
+import trashsoftware.decimalExpr.numbers.Decimal;
+import trashsoftware.decimalExpr.numbers.Infinity;
+import trashsoftware.decimalExpr.numbers.NaN;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+
+import javax.lang.model.SourceVersion;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Translates a {@code Node} tree into the Java source of a class that evaluates it.
+ * <p>
+ * Each operator and function node becomes one statement, in evaluation order, that calls the {@code numbers}
+ * operation or the operator or function object on the results of its operands. Common subexpressions are computed
+ * once. Constants are static fields, and variables are instance fields, initialized to the values given to
+ * {@code variable} and assigned by {@code setVariable}. Macros are inlined and computed once per evaluation. Macro
+ * function calls cannot be translated, since their body is evaluated by the interpreter.
+ * <p>
+ * Builtin operators and functions are referred to by their constants in {@code Operators} and {@code Functions}.
+ * Any other operator or function needs a reference, a Java expression that evaluates to it in the generated class.
+ */
+public final class JavaSourceCompiler {
+
+    /**
+     * Larger expressions keep their temporaries in an array and are split into several methods, since a method
+     * is limited to 64 KB of bytecode. Likewise, the constants of expressions with more distinct literals than this
+     * are kept in an array, initialized by several methods.
+     */
+    public static final int MAX_STATEMENTS_PER_METHOD = 1000;
+
+    private static final Map<BinaryOperator, String> DIRECT_BINARY_OPS = Map.of(
+            Operators.ADD, "add",
+            Operators.SUB, "sub",
+            Operators.MUL, "mul",
+            Operators.DIV, "div",
+            Operators.EXP, "pow"
+    );
+
+    private static final Map<Object, String> BUILTINS = Map.of(
+            Operators.NEG, "Operators.NEG",
+            Functions.ABS, "Functions.ABS",
+            Functions.SQRT, "Functions.SQRT"
+    );
+
+    /**
+     * Simple names the generated class refers to, which a field of the same name would obscure.
+     */
+    private static final Set<String> RESERVED_NAMES = Set.of(
+            "BigInteger", "BigDecimal", "BuildException", "Evaluable", "Override", "String", "Object",
+            "Number", "Rational", "Decimal", "Complex", "NaN", "Infinity",
+            "Operators", "Functions", "Function", "UnaryOperator", "BinaryOperator", "java", "trashsoftware"
+    );
+
+    private static final Pattern TEMPORARY = Pattern.compile("t\\$(\\d+)");
+    private static final Pattern CONSTANT = Pattern.compile("\\bC\\$(\\d+)");
+    private static final Pattern IDENTIFIER =
+            Pattern.compile("[\\p{javaJavaIdentifierStart}][\\p{javaJavaIdentifierPart}]*");
+
+    private final boolean approxRational;
+    private final Map<String, Number> variables = new LinkedHashMap<>();
+    private final Map<String, Node> macros = new HashMap<>();
+    private final Map<Object, String> references = new IdentityHashMap<>();
+
+    private final Map<String, String> variableFields = new HashMap<>();
+    private final Map<String, String> constantFields = new LinkedHashMap<>();
+    private final Map<Object, String> referenceFields = new LinkedHashMap<>();
+    private final Map<String, String> macroValues = new HashMap<>();
+    private final Set<String> inlining = new HashSet<>();
+    private final List<String> statements = new ArrayList<>();
+
+    /**
+     * @param approxRational whether decimal literals are rational, as in the expression being translated
+     */
+    public JavaSourceCompiler(boolean approxRational) {
+        this.approxRational = approxRational;
+    }
+
+    /**
+     * Declares a variable, which becomes a field of the generated class.
+     *
+     * @param name         name of the variable
+     * @param initialValue value of the field before {@code setVariable} is called
+     */
+    public void variable(String name, Number initialValue) {
+        variables.put(name, initialValue);
+    }
+
+    public void macro(String name, Node root) {
+        macros.put(name, root);
+    }
+
+    /**
+     * @param operator   an operator that is not builtin
+     * @param expression a Java expression that evaluates to {@code operator} in the generated class
+     */
+    public void reference(Operator operator, String expression) {
+        references.put(operator, expression);
+    }
+
+    /**
+     * @param function   a function that is not builtin
+     * @param expression a Java expression that evaluates to {@code function} in the generated class
+     */
+    public void reference(AbstractFunction function, String expression) {
+        references.put(function, expression);
+    }
+
+    /**
+     * Translates the first expression of a block into a class.
+     *
+     * @param root        the simplified block
+     * @param packageName package of the class, or an empty string for the default package
+     * @param className   simple name of the class
+     * @param comment     a line written above the class, or {@code null}
+     * @return the source of the class
+     */
+    public String compile(Node.BlockStmt root, String packageName, String className, String comment) {
+        if (!SourceVersion.isName(className) || RESERVED_NAMES.contains(className) || className.contains("$")) {
+            throw new BuildException("Invalid class name '" + className + "'");
+        }
+        if (!packageName.isEmpty() && !SourceVersion.isName(packageName)) {
+            throw new BuildException("Invalid package name '" + packageName + "'");
+        }
+        Set<String> reserved = new HashSet<>(RESERVED_NAMES);
+        reserved.add(className);
+        for (String expression : references.values()) {
+            Matcher identifiers = IDENTIFIER.matcher(expression);
+            while (identifiers.find()) reserved.add(identifiers.group());
+        }
+        for (String name : variables.keySet()) {
+            boolean usable = SourceVersion.isName(name) && !reserved.contains(name) && !name.contains("$");
+            variableFields.put(name, usable ? name : "v$" + variableFields.size());
+        }
+
+        if (root.size() == 0) throw new BuildException("Empty expression.");
+        String result = translate(root.get(0), new IdentityHashMap<>());
+        return write(packageName, className, comment, result);
+    }
+
+    /**
+     * Appends the statements that compute {@code top}, in post-order and without recursion, since trees may be
+     * deeper than the stack.
+     *
+     * @return the Java expression of the value of {@code top}
+     */
+    private String translate(Node top, Map<Node, String> scope) {
+        Deque<Object[]> stack = new ArrayDeque<>();
+        stack.push(new Object[]{top, false});
+        while (!stack.isEmpty()) {
+            Object[] entry = stack.peek();
+            Node node = (Node) entry[0];
+            if (scope.containsKey(node)) {
+                stack.pop();
+            } else if (node instanceof Node.LeafExpr) {
+                stack.pop();
+                scope.put(node, leaf((Node.LeafExpr) node));
+            } else if (!(Boolean) entry[1]) {
+                entry[1] = true;
+                List<Node> children = children(node);
+                for (int i = children.size() - 1; i >= 0; i--) stack.push(new Object[]{children.get(i), false});
+            } else {
+                stack.pop();
+                scope.put(node, statement(node, scope));
+            }
+        }
+        return scope.get(top);
+    }
+
+    private static List<Node> children(Node node) {
+        if (node instanceof Node.BlockStmt) {
+            Node.BlockStmt block = (Node.BlockStmt) node;
+            if (block.size() == 0) throw new BuildException("Empty expression.");
+            return List.of(block.get(0));
+        } else if (node instanceof Node.MacroFunctionCall) {
+            throw new BuildException("Macro function '" + ((Node.MacroFunctionCall) node).function.name +
+                    "' cannot be translated to Java.");
+        }
+        return CommonSubexpressions.children(node);
+    }
+
+    private String leaf(Node.LeafExpr node) {
+        if (node instanceof Node.IntNode) {
+            return constant(((Node.IntNode) node).value);
+        } else if (node instanceof Node.ConstNode) {
+            return constant(((Node.ConstNode) node).value);
+        } else if (node instanceof Node.DecimalNode) {
+            String literal = ((Node.DecimalNode) node).literal;
+            return constant(approxRational ? Rational.fromDecimalString(literal) : Decimal.fromDecimalString(literal));
+        } else if (node instanceof Node.VarNameNode) {
+            String field = variableFields.get(((Node.VarNameNode) node).name);
+            if (field == null) throw new BuildException("Unknown variable '" + ((Node.VarNameNode) node).name + "'");
+            return field;
+        } else if (node instanceof Node.MacroNameNode) {
+            return inlineMacro(((Node.MacroNameNode) node).name);
+        }
+        throw new BuildException("Unexpected name " + node + ".");
+    }
+
+    private String inlineMacro(String name) {
+        String value = macroValues.get(name);
+        if (value != null) return value;
+        Node root = macros.get(name);
+        if (root == null) throw new BuildException("Macro is declared but not set.");
+        if (!inlining.add(name)) throw new BuildException("Macro '" + name + "' refers to itself.");
+        try {
+            // macros see the global variables only, and have their own common subexpressions
+            value = translate(root, new IdentityHashMap<>());
+        } finally {
+            inlining.remove(name);
+        }
+        macroValues.put(name, value);
+        return value;
+    }
+
+    private String statement(Node node, Map<Node, String> scope) {
+        String expression;
+        if (node instanceof Node.BlockStmt) {
+            return scope.get(((Node.BlockStmt) node).get(0));
+        } else if (node instanceof Node.UnaryOperatorNode) {
+            Node.UnaryOperatorNode uon = (Node.UnaryOperatorNode) node;
+            expression = reference(uon.operator) + ".eval(" + scope.get(uon.operand) + ")";
+        } else if (node instanceof Node.BinaryOperatorNode) {
+            Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+            String method = DIRECT_BINARY_OPS.get(bon.operator);
+            if (method != null) {
+                expression = scope.get(bon.left) + "." + method + "(" + scope.get(bon.right) + ")";
+            } else {
+                expression = reference(bon.operator) + ".eval(" + scope.get(bon.left) + ", " +
+                        scope.get(bon.right) + ")";
+            }
+        } else if (node instanceof Node.FunctionCall) {
+            Node.FunctionCall call = (Node.FunctionCall) node;
+            List<String> args = new ArrayList<>();
+            for (Node arg : call.args.getNodes()) args.add(scope.get(arg));
+            expression = reference(call.function) + ".eval(" + String.join(", ", args) + ")";
+        } else {
+            throw new BuildException("Unexpected node " + node + ".");
+        }
+        String temporary = "t$" + statements.size();
+        statements.add(expression);
+        return temporary;
+    }
+
+    private String reference(Object operatorOrFunction) {
+        String builtin = BUILTINS.get(operatorOrFunction);
+        if (builtin != null) return builtin;
+        String field = referenceFields.get(operatorOrFunction);
+        if (field != null) return field;
+        if (!references.containsKey(operatorOrFunction)) {
+            throw new BuildException("No reference to " + describe(operatorOrFunction) +
+                    " in the generated class.");
+        }
+        field = "F$" + referenceFields.size();
+        referenceFields.put(operatorOrFunction, field);
+        return field;
+    }
+
+    private static String describe(Object operatorOrFunction) {
+        if (operatorOrFunction instanceof AbstractFunction) {
+            return "function '" + ((AbstractFunction) operatorOrFunction).name + "'";
+        }
+        return "operator '" + ((Operator) operatorOrFunction).symbol + "'";
+    }
+
+    private static String typeOf(Object operatorOrFunction) {
+        if (operatorOrFunction instanceof UnaryOperator) return "UnaryOperator";
+        if (operatorOrFunction instanceof BinaryOperator) return "BinaryOperator";
+        return "Function";
+    }
+
+    private String constant(Number value) {
+        return constantFields.computeIfAbsent(newInstance(value), expression -> "C$" + constantFields.size());
+    }
+
+    /**
+     * @return a Java expression that creates {@code value}
+     */
+    private static String newInstance(Number value) {
+        if (value == Decimal.PI) return "Decimal.PI";
+        if (value == Decimal.E) return "Decimal.E";
+        if (value == Complex.I) return "Complex.I";
+        if (value instanceof Rational) {
+            BigInteger numerator = ((Rational) value).getNumerator();
+            BigInteger denominator = ((Rational) value).getDenominator();
+            if (numerator.bitLength() < Long.SIZE && denominator.bitLength() < Long.SIZE) {
+                if (denominator.equals(BigInteger.ONE)) return "Rational.valueOf(" + numerator + "L)";
+                return "Rational.fromFraction(" + numerator + "L, " + denominator + "L)";
+            }
+            return "Rational.fromFraction(new BigInteger(\"" + numerator + "\"), new BigInteger(\"" +
+                    denominator + "\"))";
+        } else if (value instanceof Decimal) {
+            return "Decimal.createDecimal(new BigDecimal(\"" + ((Decimal) value).bigDecimalValue() + "\"))";
+        } else if (value instanceof Complex) {
+            return "Complex.createComplex(" + newInstance(((Complex) value).real) + ", " +
+                    newInstance(((Complex) value).imaginary) + ")";
+        } else if (value == NaN.NaN) {
+            return "NaN.NaN";
+        } else if (value == Infinity.POSITIVE_INFINITY) {
+            return "Infinity.POSITIVE_INFINITY";
+        } else if (value == Infinity.NEGATIVE_INFINITY) {
+            return "Infinity.NEGATIVE_INFINITY";
+        }
+        throw new BuildException("Cannot translate constant " + value);
+    }
+
+    private String write(String packageName, String className, String comment, String result) {
+        StringBuilder out = new StringBuilder();
+        if (comment != null) out.append("// ").append(escape(comment.replaceAll("[\\r\\n]+", " "))).append("\n");
+        if (!packageName.isEmpty()) out.append("package ").append(packageName).append(";\n\n");
+        out.append("import trashsoftware.decimalExpr.BuildException;\n")
+                .append("import trashsoftware.decimalExpr.Evaluable;\n")
+                .append("import trashsoftware.decimalExpr.expression.*;\n")
+                .append("import trashsoftware.decimalExpr.numbers.*;\n")
+                .append("import trashsoftware.decimalExpr.numbers.Number;\n\n")
+                .append("import java.math.BigDecimal;\n")
+                .append("import java.math.BigInteger;\n\n");
+        out.append("public final class ").append(className).append(" implements Evaluable {\n\n");
+
+        boolean constantArray = constantFields.size() > MAX_STATEMENTS_PER_METHOD;
+        int constantParts = (constantFields.size() + MAX_STATEMENTS_PER_METHOD - 1) / MAX_STATEMENTS_PER_METHOD;
+        if (constantArray) {
+            out.append("    private static final Number[] C$ = new Number[").append(constantFields.size())
+                    .append("];\n\n")
+                    .append("    static {\n");
+            for (int part = 0; part < constantParts; part++) out.append("        init").append(part).append("();\n");
+            out.append("    }\n\n");
+        } else {
+            for (Map.Entry<String, String> constant : constantFields.entrySet()) {
+                out.append("    private static final Number ").append(constant.getValue()).append(" = ")
+                        .append(constant.getKey()).append(";\n");
+            }
+        }
+        for (Map.Entry<Object, String> reference : referenceFields.entrySet()) {
+            String type = typeOf(reference.getKey());
+            out.append("    private static final ").append(type).append(" ").append(reference.getValue())
+                    .append(" = (").append(type).append(") ").append(references.get(reference.getKey()))
+                    .append(";\n");
+        }
+        if (!constantFields.isEmpty() || !referenceFields.isEmpty()) out.append("\n");
+
+        for (Map.Entry<String, Number> variable : variables.entrySet()) {
+            out.append("    private Number ").append(variableFields.get(variable.getKey())).append(" = ")
+                    .append(newInstance(variable.getValue())).append(";\n");
+        }
+        if (!variables.isEmpty()) out.append("\n");
+
+        out.append("    @Override\n")
+                .append("    public void setVariable(String varName, Number value) {\n")
+                .append("        switch (varName) {\n");
+        for (String name : variables.keySet()) {
+            out.append("            case \"").append(escape(name)).append("\":\n")
+                    .append("                this.").append(variableFields.get(name)).append(" = value;\n")
+                    .append("                break;\n");
+        }
+        out.append("            default:\n")
+                .append("                throw new BuildException(\"Unknown variable '\" + varName + \"'\");\n")
+                .append("        }\n")
+                .append("    }\n\n");
+
+        if (constantArray) {
+            statements.replaceAll(JavaSourceCompiler::inConstantArray);
+            result = inConstantArray(result);
+        }
+        out.append("    @Override\n")
+                .append("    public Number evaluate() {\n");
+        if (statements.size() <= MAX_STATEMENTS_PER_METHOD) {
+            for (int i = 0; i < statements.size(); i++) {
+                out.append("        Number t$").append(i).append(" = ").append(statements.get(i)).append(";\n");
+            }
+            out.append("        return ").append(result).append(";\n")
+                    .append("    }\n");
+        } else {
+            int parts = (statements.size() + MAX_STATEMENTS_PER_METHOD - 1) / MAX_STATEMENTS_PER_METHOD;
+            out.append("        Number[] t$ = new Number[").append(statements.size()).append("];\n");
+            for (int part = 0; part < parts; part++) out.append("        evaluate").append(part).append("(t$);\n");
+            out.append("        return ").append(inArray(result)).append(";\n")
+                    .append("    }\n");
+            for (int part = 0; part < parts; part++) {
+                out.append("\n    private void evaluate").append(part).append("(Number[] t$) {\n");
+                int end = Math.min(statements.size(), (part + 1) * MAX_STATEMENTS_PER_METHOD);
+                for (int i = part * MAX_STATEMENTS_PER_METHOD; i < end; i++) {
+                    out.append("        t$[").append(i).append("] = ").append(inArray(statements.get(i)))
+                            .append(";\n");
+                }
+                out.append("    }\n");
+            }
+        }
+        if (constantArray) {
+            List<String> constants = new ArrayList<>(constantFields.keySet());
+            for (int part = 0; part < constantParts; part++) {
+                out.append("\n    private static void init").append(part).append("() {\n");
+                int end = Math.min(constants.size(), (part + 1) * MAX_STATEMENTS_PER_METHOD);
+                for (int i = part * MAX_STATEMENTS_PER_METHOD; i < end; i++) {
+                    out.append("        C$[").append(i).append("] = ").append(constants.get(i)).append(";\n");
+                }
+                out.append("    }\n");
+            }
+        }
+        out.append("}\n");
+        return out.toString();
+    }
+
+    /**
+     * Replaces the constant fields of an expression by elements of the constant array.
+     */
+    private static String inConstantArray(String expression) {
+        return CONSTANT.matcher(expression).replaceAll("C\\$[$1]");
+    }
+
+    /**
+     * Replaces the local temporaries of an expression by elements of the temporary array.
+     */
+    private static String inArray(String expression) {
+        return TEMPORARY.matcher(expression).replaceAll("t\\$[$1]");
+    }
+
+    /**
+     * Escapes a text for a string literal or a comment, in which {@code \}u would also start an escape.
+     */
+    private static String escape(String text) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
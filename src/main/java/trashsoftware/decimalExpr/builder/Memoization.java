@@ -0,0 +1,149 @@
+package trashsoftware.decimalExpr.builder;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Chooses the subexpressions of an expression that are memoized.
+ * <p>
+ * A subexpression can be memoized if it is pure and reads no macro, so its value only depends on the variables it
+ * reads. It is worth memoizing if it reads fewer variables than its parent, since it is then reused when only the
+ * other variables of the parent change. The whole expression is memoized as well.
+ */
+final class Memoization {
+
+    private static final Info IMPURE = new Info(false, Set.of());
+    private static final Info CONSTANT = new Info(true, Set.of());
+
+    private final Map<Node, Info> infos = new IdentityHashMap<>();
+
+    private static final class Info {
+        final boolean pure;
+        final Set<String> dependencies;
+
+        Info(boolean pure, Set<String> dependencies) {
+            this.pure = pure;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private Memoization() {
+    }
+
+    /**
+     * Chooses the memoized subexpressions of the first expression of a block.
+     * <p>
+     * Subexpressions are chosen from the root down, so that the largest are kept if there are more than
+     * {@code limit}. Bodies of macro function calls are not memoized, only the calls themselves.
+     *
+     * @param root  the block
+     * @param limit the maximum number of memoized subexpressions
+     * @return the memoized nodes, with the names of the variables they read
+     */
+    static Map<Node, Set<String>> plan(Node.BlockStmt root, int limit) {
+        Map<Node, Set<String>> plan = new IdentityHashMap<>();
+        if (limit <= 0 || root.size() == 0) return plan;
+        Memoization memoization = new Memoization();
+        Node expression = root.get(0);
+        memoization.analyze(expression, Set.of());
+
+        // breadth first, with the dependencies of the parent, or null if the parent is not memoizable
+        Deque<Object[]> queue = new ArrayDeque<>();
+        Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        queue.add(new Object[]{expression, null});
+        while (!queue.isEmpty() && plan.size() < limit) {
+            Object[] entry = queue.poll();
+            Node node = (Node) entry[0];
+            @SuppressWarnings("unchecked")
+            Set<String> parentDependencies = (Set<String>) entry[1];
+            if (!visited.add(node)) continue;
+
+            Info info = memoization.infos.get(node);
+            Set<String> dependencies = info.pure ? info.dependencies : null;
+            if (node instanceof Node.BlockStmt) {
+                // parentheses, which evaluate to their content
+                dependencies = parentDependencies;
+            } else if (info.pure && !(node instanceof Node.LeafExpr) &&
+                    !info.dependencies.equals(parentDependencies)) {
+                plan.put(node, info.dependencies);
+            }
+            for (Node child : outerChildren(node)) {
+                queue.add(new Object[]{child, dependencies});
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the children of a node that are evaluated in the scope of the node.
+     */
+    private static List<Node> outerChildren(Node node) {
+        if (node instanceof Node.MacroFunctionCall) {
+            Node.BlockStmt args = ((Node.MacroFunctionCall) node).args;
+            return args.size() < 2 ? List.of() : args.getNodes().subList(2, args.size());
+        }
+        return CommonSubexpressions.children(node);
+    }
+
+    private Info analyze(Node node, Set<String> locals) {
+        Info info = infos.get(node);
+        if (info == null) {
+            info = compute(node, locals);
+            infos.put(node, info);
+        }
+        return info;
+    }
+
+    private Info compute(Node node, Set<String> locals) {
+        if (node instanceof Node.BlockStmt) {
+            Node.BlockStmt block = (Node.BlockStmt) node;
+            return block.size() == 0 ? IMPURE : analyze(block.get(0), locals);
+        } else if (node instanceof Node.IntNode || node instanceof Node.ConstNode ||
+                node instanceof Node.DecimalNode) {
+            return CONSTANT;
+        } else if (node instanceof Node.NameNode && locals.contains(((Node.NameNode) node).name)) {
+            // an invariant, which is not a dependency of the macro function call
+            return CONSTANT;
+        } else if (node instanceof Node.VarNameNode) {
+            return new Info(true, Set.of(((Node.VarNameNode) node).name));
+        } else if (node instanceof Node.UnaryOperatorNode) {
+            Node.UnaryOperatorNode uon = (Node.UnaryOperatorNode) node;
+            return combine(uon.operator.isPure(), analyze(uon.operand, locals));
+        } else if (node instanceof Node.BinaryOperatorNode) {
+            Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+            return combine(bon.operator.isPure(), analyze(bon.left, locals), analyze(bon.right, locals));
+        } else if (node instanceof Node.FunctionCall) {
+            Node.FunctionCall call = (Node.FunctionCall) node;
+            Info[] args = new Info[call.args.size()];
+            for (int i = 0; i < args.length; i++) args[i] = analyze(call.args.get(i), locals);
+            return combine(call.function.isPure(), args);
+        } else if (node instanceof Node.MacroFunctionCall) {
+            Node.MacroFunctionCall call = (Node.MacroFunctionCall) node;
+            if (call.args.size() < 2 || !(call.args.get(0) instanceof Node.NameNode)) return IMPURE;
+            Set<String> bodyLocals = new HashSet<>(locals);
+            bodyLocals.add(((Node.NameNode) call.args.get(0)).name);
+            Info[] args = new Info[call.args.size() - 1];
+            args[0] = analyze(call.args.get(1), bodyLocals);
+            for (int i = 2; i < call.args.size(); i++) args[i - 1] = analyze(call.args.get(i), locals);
+            return combine(call.function.isPure(), args);
+        }
+        // macros can be set again after building
+        return IMPURE;
+    }
+
+    private static Info combine(boolean pure, Info... operands) {
+        if (!pure) return IMPURE;
+        Set<String> dependencies = new HashSet<>();
+        for (Info operand : operands) {
+            if (!operand.pure) return IMPURE;
+            dependencies.addAll(operand.dependencies);
+        }
+        return new Info(true, Collections.unmodifiableSet(dependencies));
+    }
+}
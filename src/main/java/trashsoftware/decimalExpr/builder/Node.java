@@ -11,10 +11,37 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+/**
+ * A node of the parsed tree.
+ * <p>
+ * Nodes are compared by structure. The hash of a node is cached when it is first computed, so the children of a
+ * node should not be changed after the node is put into a hash table.
+ */
 public abstract class Node {
 
+    private int hash;
+
     public abstract Number eval(Values values);
 
+    @Override
+    public final int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = structureHash();
+            if (h == 0) h = 1;
+            hash = h;
+        }
+        return h;
+    }
+
+    int structureHash() {
+        return System.identityHashCode(this);
+    }
+
+    void invalidateHash() {
+        hash = 0;
+    }
+
     public static abstract class Expression extends Node {
 
     }
@@ -23,14 +50,32 @@ public abstract class Node {
 
         private final List<Node> nodes = new ArrayList<>();
 
+        /**
+         * Returns a block whose only expression is a constant.
+         *
+         * @param value the constant
+         * @return the new block
+         */
+        public static BlockStmt of(Number value) {
+            BlockStmt block = new BlockStmt();
+            block.add(new ConstNode(value));
+            return block;
+        }
+
         public void add(Node node) {
             nodes.add(node);
+            invalidateHash();
         }
 
         public Node get(int index) {
             return nodes.get(index);
         }
 
+        void set(int index, Node node) {
+            nodes.set(index, node);
+            invalidateHash();
+        }
+
         public int size() {
             return nodes.size();
         }
@@ -44,6 +89,18 @@ public abstract class Node {
             return nodes.get(0).eval(values);
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return nodes.equals(((BlockStmt) o).nodes);
+        }
+
+        @Override
+        int structureHash() {
+            return nodes.hashCode();
+        }
+
         @Override
         public String toString() {
             return "BlockStmt" + nodes;
@@ -71,6 +128,7 @@ public abstract class Node {
 
         void setOperand(Expression operand) {
             this.operand = operand;
+            invalidateHash();
         }
 
         @Override
@@ -88,6 +146,19 @@ public abstract class Node {
             return operator.eval(operand.eval(values));
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            UnaryOperatorNode that = (UnaryOperatorNode) o;
+            return operator == that.operator && operand.equals(that.operand);
+        }
+
+        @Override
+        int structureHash() {
+            return operator.hashCode() * 31 + operand.hashCode();
+        }
+
         @Override
         public String toString() {
             return operator.operatorAtLeft ?
@@ -107,10 +178,12 @@ public abstract class Node {
 
         void setLeft(Expression left) {
             this.left = left;
+            invalidateHash();
         }
 
         void setRight(Expression right) {
             this.right = right;
+            invalidateHash();
         }
 
         @Override
@@ -128,6 +201,19 @@ public abstract class Node {
             return operator.eval(left.eval(values), right.eval(values));
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            BinaryOperatorNode that = (BinaryOperatorNode) o;
+            return operator == that.operator && left.equals(that.left) && right.equals(that.right);
+        }
+
+        @Override
+        int structureHash() {
+            return (operator.hashCode() * 31 + left.hashCode()) * 31 + right.hashCode();
+        }
+
         @Override
         public String toString() {
             return String.format("Binary(%s %s %s)", left, operator, right);
@@ -141,6 +227,18 @@ public abstract class Node {
             this.name = name;
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return name.equals(((NameNode) o).name);
+        }
+
+        @Override
+        int structureHash() {
+            return getClass().hashCode() * 31 + name.hashCode();
+        }
+
         @Override
         public String toString() {
             return name;
@@ -184,7 +282,11 @@ public abstract class Node {
         final Rational value;
 
         IntNode(String literal) {
-            value = Rational.fromBigInt(new BigInteger(literal));
+            this(Rational.fromBigInt(new BigInteger(literal)));
+        }
+
+        IntNode(Rational value) {
+            this.value = value;
         }
 
         @Override
@@ -192,12 +294,57 @@ public abstract class Node {
             return value;
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return value.equals(((IntNode) o).value);
+        }
+
+        @Override
+        int structureHash() {
+            return value.hashCode();
+        }
+
         @Override
         public String toString() {
             return value.toString();
         }
     }
 
+    /**
+     * A value computed at build time, either a decimal literal or a folded constant subtree.
+     */
+    static class ConstNode extends LeafExpr {
+        final Number value;
+
+        ConstNode(Number value) {
+            this.value = value;
+        }
+
+        @Override
+        public Number eval(Values values) {
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return value.equals(((ConstNode) o).value);
+        }
+
+        @Override
+        int structureHash() {
+            return value.hashCode() * 31 + 1;
+        }
+
+        @Override
+        public String toString() {
+            return "Const{" + value + '}';
+        }
+    }
+
     static class DecimalNode extends LeafExpr {
         final String literal;
 
@@ -214,6 +361,18 @@ public abstract class Node {
             }
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return literal.equals(((DecimalNode) o).literal);
+        }
+
+        @Override
+        int structureHash() {
+            return literal.hashCode();
+        }
+
         @Override
         public String toString() {
             return "DecimalNode{" + literal + '}';
@@ -243,6 +402,19 @@ public abstract class Node {
             return res;
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            FunctionCall that = (FunctionCall) o;
+            return function == that.function && args.equals(that.args);
+        }
+
+        @Override
+        int structureHash() {
+            return function.hashCode() * 31 + args.hashCode();
+        }
+
         @Override
         public String toString() {
             return function.name + "(" + args + ")";
@@ -282,6 +454,19 @@ public abstract class Node {
             return res;
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            MacroFunctionCall that = (MacroFunctionCall) o;
+            return function == that.function && args.equals(that.args);
+        }
+
+        @Override
+        int structureHash() {
+            return function.hashCode() * 31 + args.hashCode();
+        }
+
         @Override
         public String toString() {
             return function.name + "(" + args + ")";
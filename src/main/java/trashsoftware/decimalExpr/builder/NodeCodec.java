@@ -0,0 +1,430 @@
+package trashsoftware.decimalExpr.builder;
+
+import trashsoftware.decimalExpr.BuildException;
+import trashsoftware.decimalExpr.DecimalExpr;
+import trashsoftware.decimalExpr.expression.AbstractFunction;
+import trashsoftware.decimalExpr.expression.BinaryOperator;
+import trashsoftware.decimalExpr.expression.Function;
+import trashsoftware.decimalExpr.expression.MacroFunction;
+import trashsoftware.decimalExpr.expression.UnaryOperator;
+import trashsoftware.decimalExpr.numbers.Complex;
+import trashsoftware.decimalExpr.numbers.Decimal;
+import trashsoftware.decimalExpr.numbers.Infinity;
+import trashsoftware.decimalExpr.numbers.NaN;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+import trashsoftware.decimalExpr.numbers.Real;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes simplified trees to bytes and back, for {@code ExpressionArchive}.
+ * <p>
+ * A tree is encoded as a table of nodes in post-order, each node referring to its children by index, so nodes
+ * shared by {@code CommonSubexpressions} stay shared. The last node is the root block. Names, operator symbols and
+ * literals are indices into a string pool, and constants are indices into a constant pool. Both pools are shared by
+ * all trees of an archive. Operators and functions are stored by name, and resolved against the environment of the
+ * expression when the tree is decoded. All integers are unsigned LEB128 varints, and signed ones are zigzag encoded.
+ */
+public final class NodeCodec {
+
+    private static final int BLOCK = 0;
+    private static final int UNARY = 1;
+    private static final int BINARY = 2;
+    private static final int VARIABLE = 3;
+    private static final int MACRO = 4;
+    private static final int UNDEFINED = 5;
+    private static final int INT = 6;
+    private static final int CONST = 7;
+    private static final int DECIMAL = 8;
+    private static final int FUNCTION = 9;
+    private static final int MACRO_FUNCTION = 10;
+
+    private static final int SMALL_RATIONAL = 0;
+    private static final int BIG_RATIONAL = 1;
+    private static final int DECIMAL_NUMBER = 2;
+    private static final int COMPLEX = 3;
+    private static final int NAN = 4;
+    private static final int POSITIVE_INFINITY = 5;
+    private static final int NEGATIVE_INFINITY = 6;
+
+    private NodeCodec() {
+    }
+
+    /**
+     * The strings and constants of an archive.
+     */
+    public static final class Pool {
+        private final List<String> strings = new ArrayList<>();
+        private final Map<String, Integer> stringIndices = new HashMap<>();
+        private final List<Number> constants = new ArrayList<>();
+        private final Map<Number, Integer> constantIndices = new HashMap<>();
+
+        public Pool() {
+        }
+
+        private int stringIndex(String string) {
+            return stringIndices.computeIfAbsent(string, s -> {
+                strings.add(s);
+                return strings.size() - 1;
+            });
+        }
+
+        private int constantIndex(Number constant) {
+            return constantIndices.computeIfAbsent(constant, c -> {
+                constants.add(c);
+                return constants.size() - 1;
+            });
+        }
+
+        private String string(int index) {
+            if (index >= strings.size()) throw new BuildException("String index " + index + " out of pool");
+            return strings.get(index);
+        }
+
+        private Number constant(int index) {
+            if (index >= constants.size()) throw new BuildException("Constant index " + index + " out of pool");
+            return constants.get(index);
+        }
+
+        public byte[] encode() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeVarInt(out, strings.size());
+            for (String string : strings) writeBytes(out, string.getBytes(StandardCharsets.UTF_8));
+            writeVarInt(out, constants.size());
+            for (Number constant : constants) writeConstant(out, constant);
+            return out.toByteArray();
+        }
+
+        public static Pool decode(ByteBuffer in) {
+            Pool pool = new Pool();
+            try {
+                int stringCount = readVarInt(in);
+                for (int i = 0; i < stringCount; i++) {
+                    pool.strings.add(new String(readBytes(in), StandardCharsets.UTF_8));
+                }
+                int constantCount = readVarInt(in);
+                for (int i = 0; i < constantCount; i++) pool.constants.add(readConstant(in));
+            } catch (BufferUnderflowException e) {
+                throw new BuildException("Truncated pool");
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Encodes a simplified tree, adding its strings and constants to {@code pool}.
+     *
+     * @param root the tree
+     * @param deep whether the tree is evaluated as a postfix program
+     * @param pool the pool of the archive
+     * @return the encoded tree
+     */
+    public static byte[] encode(Node.BlockStmt root, boolean deep, Pool pool) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(deep ? 1 : 0);
+
+        // post-order without recursion, since trees may be deeper than the stack
+        Map<Node, Integer> ids = new IdentityHashMap<>();
+        List<Node> order = new ArrayList<>();
+        Deque<Object[]> stack = new ArrayDeque<>();
+        stack.push(new Object[]{root, false});
+        while (!stack.isEmpty()) {
+            Object[] entry = stack.peek();
+            Node node = (Node) entry[0];
+            if (ids.containsKey(node)) {
+                stack.pop();
+            } else if (!(Boolean) entry[1]) {
+                entry[1] = true;
+                List<Node> children = children(node);
+                for (int i = children.size() - 1; i >= 0; i--) stack.push(new Object[]{children.get(i), false});
+            } else {
+                stack.pop();
+                ids.put(node, order.size());
+                order.add(node);
+            }
+        }
+
+        writeVarInt(out, order.size());
+        for (Node node : order) writeNode(out, node, ids, pool);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a tree, resolving its names, operators and functions in {@code environment}.
+     *
+     * @param in          the encoded tree, from its first byte
+     * @param pool        the pool of the archive
+     * @param environment the expression the tree is decoded for
+     * @param deep        receives whether the tree is evaluated as a postfix program
+     * @return the tree
+     * @throws BuildException if the tree is malformed, or uses something the environment does not declare
+     */
+    public static Node.BlockStmt decode(ByteBuffer in, Pool pool, DecimalExpr environment, boolean[] deep) {
+        try {
+            deep[0] = in.get() != 0;
+            int count = readVarInt(in);
+            if (count == 0) throw new BuildException("Empty tree");
+            Node[] nodes = new Node[count];
+            for (int i = 0; i < count; i++) nodes[i] = readNode(in, nodes, i, pool, environment);
+            if (!(nodes[count - 1] instanceof Node.BlockStmt)) throw new BuildException("Root is not a block");
+            return (Node.BlockStmt) nodes[count - 1];
+        } catch (BufferUnderflowException e) {
+            throw new BuildException("Truncated tree");
+        }
+    }
+
+    private static List<Node> children(Node node) {
+        if (node instanceof Node.FunctionCall) return List.of(((Node.FunctionCall) node).args);
+        if (node instanceof Node.MacroFunctionCall) return List.of(((Node.MacroFunctionCall) node).args);
+        return CommonSubexpressions.children(node);
+    }
+
+    private static void writeNode(ByteArrayOutputStream out, Node node, Map<Node, Integer> ids, Pool pool) {
+        if (node instanceof Node.BlockStmt) {
+            List<Node> nodes = ((Node.BlockStmt) node).getNodes();
+            out.write(BLOCK);
+            writeVarInt(out, nodes.size());
+            for (Node child : nodes) writeVarInt(out, ids.get(child));
+        } else if (node instanceof Node.UnaryOperatorNode) {
+            Node.UnaryOperatorNode uon = (Node.UnaryOperatorNode) node;
+            out.write(UNARY);
+            writeVarInt(out, pool.stringIndex(uon.operator.symbol));
+            writeVarInt(out, ids.get(uon.operand));
+        } else if (node instanceof Node.BinaryOperatorNode) {
+            Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+            out.write(BINARY);
+            writeVarInt(out, pool.stringIndex(bon.operator.symbol));
+            writeVarInt(out, ids.get(bon.left));
+            writeVarInt(out, ids.get(bon.right));
+        } else if (node instanceof Node.NameNode) {
+            out.write(node instanceof Node.VarNameNode ? VARIABLE :
+                    node instanceof Node.MacroNameNode ? MACRO : UNDEFINED);
+            writeVarInt(out, pool.stringIndex(((Node.NameNode) node).name));
+        } else if (node instanceof Node.IntNode) {
+            out.write(INT);
+            writeVarInt(out, pool.constantIndex(((Node.IntNode) node).value));
+        } else if (node instanceof Node.ConstNode) {
+            out.write(CONST);
+            writeVarInt(out, pool.constantIndex(((Node.ConstNode) node).value));
+        } else if (node instanceof Node.DecimalNode) {
+            out.write(DECIMAL);
+            writeVarInt(out, pool.stringIndex(((Node.DecimalNode) node).literal));
+        } else if (node instanceof Node.FunctionCall) {
+            Node.FunctionCall call = (Node.FunctionCall) node;
+            out.write(FUNCTION);
+            writeVarInt(out, pool.stringIndex(call.function.name));
+            writeVarInt(out, ids.get(call.args));
+        } else if (node instanceof Node.MacroFunctionCall) {
+            Node.MacroFunctionCall call = (Node.MacroFunctionCall) node;
+            out.write(MACRO_FUNCTION);
+            writeVarInt(out, pool.stringIndex(call.function.name));
+            writeVarInt(out, ids.get(call.args));
+        } else {
+            throw new BuildException("Cannot encode node " + node.getClass().getSimpleName());
+        }
+    }
+
+    private static Node readNode(ByteBuffer in, Node[] nodes, int index, Pool pool, DecimalExpr environment) {
+        int tag = in.get();
+        switch (tag) {
+            case BLOCK: {
+                Node.BlockStmt block = new Node.BlockStmt();
+                int size = readVarInt(in);
+                for (int i = 0; i < size; i++) block.add(child(in, nodes, index));
+                return block;
+            }
+            case UNARY: {
+                String symbol = pool.string(readVarInt(in));
+                UnaryOperator operator = environment.getUnaryOperators().get(symbol);
+                if (operator == null) throw new BuildException("Unknown unary operator '" + symbol + "'");
+                Node.UnaryOperatorNode node = new Node.UnaryOperatorNode(operator);
+                node.setOperand(expression(child(in, nodes, index)));
+                return node;
+            }
+            case BINARY: {
+                String symbol = pool.string(readVarInt(in));
+                BinaryOperator operator = environment.getBinaryOperators().get(symbol);
+                if (operator == null) throw new BuildException("Unknown binary operator '" + symbol + "'");
+                Node.BinaryOperatorNode node = new Node.BinaryOperatorNode(operator);
+                node.setLeft(expression(child(in, nodes, index)));
+                node.setRight(expression(child(in, nodes, index)));
+                return node;
+            }
+            case VARIABLE: {
+                String name = pool.string(readVarInt(in));
+                if (!environment.hasVariable(name)) throw new BuildException("Undeclared variable '" + name + "'");
+                return new Node.VarNameNode(name);
+            }
+            case MACRO: {
+                String name = pool.string(readVarInt(in));
+                if (!environment.hasMacro(name)) throw new BuildException("Undeclared macro '" + name + "'");
+                return new Node.MacroNameNode(name);
+            }
+            case UNDEFINED:
+                return new Node.UndefinedNameNode(pool.string(readVarInt(in)));
+            case INT: {
+                Number value = pool.constant(readVarInt(in));
+                if (!(value instanceof Rational)) throw new BuildException("Integer constant is " + value);
+                return new Node.IntNode((Rational) value);
+            }
+            case CONST:
+                return new Node.ConstNode(pool.constant(readVarInt(in)));
+            case DECIMAL:
+                return new Node.DecimalNode(pool.string(readVarInt(in)));
+            case FUNCTION:
+            case MACRO_FUNCTION: {
+                String name = pool.string(readVarInt(in));
+                AbstractFunction function = environment.getFunctions().get(name);
+                Node args = child(in, nodes, index);
+                if (!(args instanceof Node.BlockStmt)) throw new BuildException("Arguments are not a block");
+                if (tag == FUNCTION && function instanceof Function) {
+                    return new Node.FunctionCall((Function) function, (Node.BlockStmt) args);
+                } else if (tag == MACRO_FUNCTION && function instanceof MacroFunction) {
+                    return new Node.MacroFunctionCall((MacroFunction) function, (Node.BlockStmt) args);
+                }
+                throw new BuildException("Unknown " + (tag == FUNCTION ? "function" : "macro function") +
+                        " '" + name + "'");
+            }
+            default:
+                throw new BuildException("Unknown node tag " + tag);
+        }
+    }
+
+    /**
+     * Reads a reference to a child, which must precede its parent.
+     */
+    private static Node child(ByteBuffer in, Node[] nodes, int parent) {
+        int index = readVarInt(in);
+        if (index >= parent) throw new BuildException("Node " + parent + " refers to node " + index);
+        return nodes[index];
+    }
+
+    private static Node.Expression expression(Node node) {
+        if (!(node instanceof Node.Expression)) throw new BuildException("Operand is not an expression");
+        return (Node.Expression) node;
+    }
+
+    private static void writeConstant(ByteArrayOutputStream out, Number constant) {
+        if (constant instanceof Rational) {
+            BigInteger numerator = ((Rational) constant).getNumerator();
+            BigInteger denominator = ((Rational) constant).getDenominator();
+            if (numerator.bitLength() < Long.SIZE && denominator.bitLength() < Long.SIZE) {
+                out.write(SMALL_RATIONAL);
+                writeVarLong(out, zigzag(numerator.longValue()));
+                writeVarLong(out, denominator.longValue());
+            } else {
+                out.write(BIG_RATIONAL);
+                writeBytes(out, numerator.toByteArray());
+                writeBytes(out, denominator.toByteArray());
+            }
+        } else if (constant instanceof Decimal) {
+            BigDecimal value = ((Decimal) constant).bigDecimalValue();
+            out.write(DECIMAL_NUMBER);
+            writeBytes(out, value.unscaledValue().toByteArray());
+            writeVarLong(out, zigzag(value.scale()));
+        } else if (constant instanceof Complex) {
+            out.write(COMPLEX);
+            writeConstant(out, ((Complex) constant).real);
+            writeConstant(out, ((Complex) constant).imaginary);
+        } else if (constant == NaN.NaN) {
+            out.write(NAN);
+        } else if (constant == Infinity.POSITIVE_INFINITY) {
+            out.write(POSITIVE_INFINITY);
+        } else if (constant == Infinity.NEGATIVE_INFINITY) {
+            out.write(NEGATIVE_INFINITY);
+        } else {
+            throw new BuildException("Cannot encode constant " + constant);
+        }
+    }
+
+    private static Number readConstant(ByteBuffer in) {
+        int tag = in.get();
+        switch (tag) {
+            case SMALL_RATIONAL:
+                return Rational.fromFraction(unzigzag(readVarLong(in)), readVarLong(in));
+            case BIG_RATIONAL:
+                return Rational.fromFraction(new BigInteger(readBytes(in)), new BigInteger(readBytes(in)));
+            case DECIMAL_NUMBER:
+                return Decimal.createDecimal(new BigDecimal(new BigInteger(readBytes(in)),
+                        (int) unzigzag(readVarLong(in))));
+            case COMPLEX: {
+                Number real = readConstant(in);
+                Number imaginary = readConstant(in);
+                if (!(real instanceof Real) || !(imaginary instanceof Real)) {
+                    throw new BuildException("Complex parts must be real");
+                }
+                return Complex.createComplex((Real) real, (Real) imaginary);
+            }
+            case NAN:
+                return NaN.NaN;
+            case POSITIVE_INFINITY:
+                return Infinity.POSITIVE_INFINITY;
+            case NEGATIVE_INFINITY:
+                return Infinity.NEGATIVE_INFINITY;
+            default:
+                throw new BuildException("Unknown constant tag " + tag);
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        writeVarLong(out, value & 0xffffffffL);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        long value = readVarLong(in);
+        if (value > Integer.MAX_VALUE) throw new BuildException("Varint out of range: " + value);
+        return (int) value;
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+        throw new BuildException("Malformed varint");
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        writeVarInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        int length = readVarInt(in);
+        if (length > in.remaining()) throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,360 @@
+package trashsoftware.decimalExpr.builder;
+
+import trashsoftware.decimalExpr.BuildException;
+import trashsoftware.decimalExpr.expression.BinaryOperator;
+import trashsoftware.decimalExpr.expression.Function;
+import trashsoftware.decimalExpr.expression.Operators;
+import trashsoftware.decimalExpr.expression.UnaryOperator;
+import trashsoftware.decimalExpr.numbers.Number;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compiled expression in the form of a flat postfix program.
+ * <p>
+ * The program is an {@code int[]} of instructions and a constant pool. Each instruction holds its opcode in the
+ * lowest 8 bits and its operand in the remaining bits. The program is executed by a loop over an operand stack,
+ * so neither building nor evaluation recurses on the depth of the expression. Only macros and the bodies of macro
+ * function calls are evaluated as nested programs.
+ * <p>
+ * A program is immutable and can be shared between threads, as long as each thread evaluates on its own frame.
+ */
+public final class PostfixProgram extends Evaluator {
+
+    /**
+     * Opcodes.
+     */
+    static final int CONST = 0;  // push pool[arg]
+    static final int LOAD = 1;  // push slots[arg]
+    static final int EVAL = 2;  // push ((Evaluator) pool[arg]).eval(frame)
+    static final int ADD = 3;
+    static final int SUB = 4;
+    static final int MUL = 5;
+    static final int DIV = 6;
+    static final int POW = 7;
+    static final int BINARY = 8;  // apply (BinaryOperator) pool[arg] on top 2 values
+    static final int UNARY = 9;  // apply (UnaryOperator) pool[arg] on top value
+    static final int CALL = 10;  // call (Function) pool[arg], next word is the argument count
+    static final int MACRO_CALL = 11;  // call (MacroFunctionEval) pool[arg], next word is the argument count
+    static final int STORE = 12;  // slots[arg] = top value, which stays on the stack
+
+    private static final int OP_BITS = 8;
+    private static final int OP_MASK = (1 << OP_BITS) - 1;
+
+    final int[] code;
+    final Object[] pool;
+    final int maxStack;
+
+    PostfixProgram(int[] code, Object[] pool, int maxStack) {
+        this.code = code;
+        this.pool = pool;
+        this.maxStack = maxStack;
+    }
+
+    /**
+     * Compiles the first expression of a block to a postfix program.
+     *
+     * @param root     the parsed block
+     * @param compiler the compiler that owns the slot layout
+     * @return the program
+     */
+    public static PostfixProgram compile(Node.BlockStmt root, AstCompiler compiler) {
+        Lowering lowering = new Lowering(compiler, Map.of(), CommonSubexpressions.sharedNodes(root),
+                new IdentityHashMap<>());
+        if (root.size() == 0) lowering.emitEval(new UndefinedEval("<empty expression>"));
+        else lowering.lower(root.get(0));
+        return lowering.finish();
+    }
+
+    /**
+     * Returns the depth of a tree, without recursion.
+     *
+     * @param root the root node
+     * @return the number of nodes on the longest path from the root to a leaf
+     */
+    public static int treeDepth(Node root) {
+        int maxDepth = 0;
+        Deque<Object[]> stack = new ArrayDeque<>();
+        stack.push(new Object[]{root, 1});
+        while (!stack.isEmpty()) {
+            Object[] entry = stack.pop();
+            Node node = (Node) entry[0];
+            int depth = (Integer) entry[1];
+            maxDepth = Math.max(maxDepth, depth);
+            List<Node> children = node instanceof Node.MacroFunctionCall ?
+                    ((Node.MacroFunctionCall) node).args.getNodes() : Lowering.children(node);
+            for (Node child : children) {
+                stack.push(new Object[]{child, depth + 1});
+            }
+        }
+        return maxDepth;
+    }
+
+    @Override
+    public Number eval(Frame frame) {
+        Number[] stack = new Number[maxStack];
+        Number[] slots = frame.slots;
+        int sp = 0;
+        int[] code = this.code;
+        for (int pc = 0; pc < code.length; pc++) {
+            int instruction = code[pc];
+            int arg = instruction >>> OP_BITS;
+            switch (instruction & OP_MASK) {
+                case CONST:
+                    stack[sp++] = (Number) pool[arg];
+                    break;
+                case LOAD:
+                    stack[sp++] = slots[arg];
+                    break;
+                case EVAL:
+                    stack[sp++] = ((Evaluator) pool[arg]).eval(frame);
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1].add(stack[sp]);
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1].sub(stack[sp]);
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1].mul(stack[sp]);
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1].div(stack[sp]);
+                    break;
+                case POW:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1].pow(stack[sp]);
+                    break;
+                case BINARY:
+                    sp--;
+                    stack[sp - 1] = ((BinaryOperator) pool[arg]).eval(stack[sp - 1], stack[sp]);
+                    break;
+                case UNARY:
+                    stack[sp - 1] = ((UnaryOperator) pool[arg]).eval(stack[sp - 1]);
+                    break;
+                case CALL: {
+                    int argc = code[++pc];
+                    Number[] args = Arrays.copyOfRange(stack, sp - argc, sp);
+                    sp -= argc;
+                    stack[sp++] = ((Function) pool[arg]).eval(args);
+                    break;
+                }
+                case STORE:
+                    slots[arg] = stack[sp - 1];
+                    break;
+                case MACRO_CALL: {
+                    int argc = code[++pc];
+                    Number[] args = Arrays.copyOfRange(stack, sp - argc, sp);
+                    sp -= argc;
+                    stack[sp++] = ((MacroFunctionEval) pool[arg]).invoke(frame, args);
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + (instruction & OP_MASK));
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * @return the number of instructions, including the inline argument counts
+     */
+    public int size() {
+        return code.length;
+    }
+
+    @Override
+    public String toString() {
+        return "PostfixProgram{" + code.length + " instructions, " + pool.length + " constants}";
+    }
+
+    /**
+     * Lowers a {@code Node} tree into a postfix program with an explicit stack.
+     */
+    private static class Lowering {
+        private final AstCompiler compiler;
+        private final Map<String, Integer> locals;
+        private final Set<Node> shared;
+        private final Map<Node, Integer> storedSlots;
+        private int[] code = new int[16];
+        private int length;
+        private final List<Object> pool = new ArrayList<>();
+        private final Map<Object, Integer> poolIndices = new HashMap<>();
+        private int depth;
+        private int maxStack;
+
+        Lowering(AstCompiler compiler, Map<String, Integer> locals, Set<Node> shared,
+                 Map<Node, Integer> storedSlots) {
+            this.compiler = compiler;
+            this.locals = locals;
+            this.shared = shared;
+            this.storedSlots = storedSlots;
+        }
+
+        void lower(Node root) {
+            // each entry is a node, and whether its children are already emitted
+            Deque<Object[]> stack = new ArrayDeque<>();
+            stack.push(new Object[]{root, false});
+            while (!stack.isEmpty()) {
+                Object[] entry = stack.pop();
+                Node node = (Node) entry[0];
+                if ((Boolean) entry[1]) {
+                    emitNode(node);
+                    continue;
+                }
+                Integer stored = storedSlots.get(node);
+                if (stored != null) {
+                    emit(LOAD, stored, 1);
+                    continue;
+                }
+                List<Node> children = children(node);
+                if (children.isEmpty()) {
+                    emitNode(node);
+                } else {
+                    entry[1] = true;
+                    stack.push(entry);
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        stack.push(new Object[]{children.get(i), false});
+                    }
+                }
+            }
+        }
+
+        static List<Node> children(Node node) {
+            if (node instanceof Node.UnaryOperatorNode) {
+                return List.of(((Node.UnaryOperatorNode) node).operand);
+            } else if (node instanceof Node.BinaryOperatorNode) {
+                Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+                return List.of(bon.left, bon.right);
+            } else if (node instanceof Node.FunctionCall) {
+                return ((Node.FunctionCall) node).args.getNodes();
+            } else if (node instanceof Node.MacroFunctionCall) {
+                List<Node> args = ((Node.MacroFunctionCall) node).args.getNodes();
+                return args.size() < 2 ? List.of() : args.subList(2, args.size());
+            } else if (node instanceof Node.BlockStmt) {
+                List<Node> nodes = ((Node.BlockStmt) node).getNodes();
+                return nodes.isEmpty() ? nodes : nodes.subList(0, 1);
+            }
+            return List.of();
+        }
+
+        private void emitNode(Node node) {
+            emitValue(node);
+            if (shared.contains(node)) {
+                int slot = compiler.newSlot();
+                storedSlots.put(node, slot);
+                emit(STORE, slot, 0);
+            }
+        }
+
+        private void emitValue(Node node) {
+            if (node instanceof Node.IntNode) {
+                emit(CONST, constant(((Node.IntNode) node).value), 1);
+            } else if (node instanceof Node.ConstNode) {
+                emit(CONST, constant(((Node.ConstNode) node).value), 1);
+            } else if (node instanceof Node.DecimalNode) {
+                emitEval(new DecimalEval(((Node.DecimalNode) node).literal, compiler.isApproxRational()));
+            } else if (node instanceof Node.NameNode) {
+                emitName((Node.NameNode) node);
+            } else if (node instanceof Node.UnaryOperatorNode) {
+                emit(UNARY, constant(((Node.UnaryOperatorNode) node).operator), 0);
+            } else if (node instanceof Node.BinaryOperatorNode) {
+                emitBinary(((Node.BinaryOperatorNode) node).operator);
+            } else if (node instanceof Node.FunctionCall) {
+                Node.FunctionCall call = (Node.FunctionCall) node;
+                int argc = call.args.size();
+                emit(CALL, constant(call.function), 1 - argc);
+                emitRaw(argc);
+            } else if (node instanceof Node.MacroFunctionCall) {
+                emitMacroFunctionCall((Node.MacroFunctionCall) node);
+            } else if (!(node instanceof Node.BlockStmt)) {
+                throw new BuildException("Unexpected node " + node + ".");
+            }
+        }
+
+        private void emitName(Node.NameNode node) {
+            Integer local = locals.get(node.name);
+            if (local != null) {
+                emit(LOAD, local, 1);
+            } else if (node instanceof Node.VarNameNode) {
+                emit(LOAD, compiler.variableSlot(node.name), 1);
+            } else if (node instanceof Node.MacroNameNode) {
+                emitEval(new MacroEval(node.name, compiler.macroSlot(node.name)));
+            } else {
+                emitEval(new UndefinedEval(node.name));
+            }
+        }
+
+        private void emitBinary(BinaryOperator operator) {
+            if (operator == Operators.ADD) emit(ADD, 0, -1);
+            else if (operator == Operators.SUB) emit(SUB, 0, -1);
+            else if (operator == Operators.MUL) emit(MUL, 0, -1);
+            else if (operator == Operators.DIV) emit(DIV, 0, -1);
+            else if (operator == Operators.EXP) emit(POW, 0, -1);
+            else emit(BINARY, constant(operator), -1);
+        }
+
+        private void emitMacroFunctionCall(Node.MacroFunctionCall call) {
+            if (call.args.size() < 2)
+                throw new BuildException("Function '" + call.function.name + "' expects an invariant and a macro.");
+            Node invariantNode = call.args.get(0);
+            if (!(invariantNode instanceof Node.NameNode)) {
+                throw new BuildException("Invariant must be name, got " + invariantNode.getClass().getName());
+            }
+            String invariant = ((Node.NameNode) invariantNode).name;
+            int invariantSlot = compiler.newSlot();
+
+            Map<String, Integer> bodyLocals = new HashMap<>(locals);
+            bodyLocals.put(invariant, invariantSlot);
+            Lowering bodyLowering = new Lowering(compiler, bodyLocals, shared, storedSlots);
+            bodyLowering.lower(call.args.get(1));
+
+            int argc = call.args.size() - 2;
+            MacroFunctionEval eval = new MacroFunctionEval(call.function, invariant, invariantSlot,
+                    bodyLowering.finish(), new Evaluator[0]);
+            emit(MACRO_CALL, constant(eval), 1 - argc);
+            emitRaw(argc);
+        }
+
+        void emitEval(Evaluator evaluator) {
+            emit(EVAL, constant(evaluator), 1);
+        }
+
+        private int constant(Object value) {
+            Integer index = poolIndices.get(value);
+            if (index == null) {
+                index = pool.size();
+                pool.add(value);
+                poolIndices.put(value, index);
+            }
+            return index;
+        }
+
+        private void emit(int opcode, int arg, int stackChange) {
+            emitRaw((arg << OP_BITS) | opcode);
+            depth += stackChange;
+            maxStack = Math.max(maxStack, depth);
+        }
+
+        private void emitRaw(int word) {
+            if (length == code.length) code = Arrays.copyOf(code, length * 2);
+            code[length++] = word;
+        }
+
+        PostfixProgram finish() {
+            return new PostfixProgram(Arrays.copyOf(code, length), pool.toArray(), Math.max(maxStack, 1));
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package trashsoftware.decimalExpr.builder;
+
+import trashsoftware.decimalExpr.numbers.Complex;
+import trashsoftware.decimalExpr.numbers.Decimal;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records where the evaluations of an expression spend their time.
+ * <p>
+ * A profiled expression has a second evaluator tree, in which every node is wrapped to record its calls, its time,
+ * and the size of its results: the bit lengths of the numerator and denominator of rationals, and the precision of
+ * decimals. Only one evaluation in {@code sampleInterval} runs on that tree; the others run on the usual, possibly
+ * compiled program, and only cost a counter. Memoized subexpressions are only recorded when they are evaluated, and
+ * the macros of the expression are recorded as a whole, on the node that reads them.
+ * <p>
+ * A profiler is not synchronized, like the {@code DecimalExpr} it belongs to.
+ */
+public final class Profiler {
+
+    private final Node.BlockStmt root;
+    private final int sampleInterval;
+    private final Map<Node, NodeStats> stats = new IdentityHashMap<>();
+    private int countdown = 1;
+    private long evaluations;
+    private long sampledEvaluations;
+
+    /**
+     * Time spent in the children of the node being evaluated, which is not its own.
+     */
+    long childNanos;
+
+    /**
+     * @param root           the expression
+     * @param sampleInterval profiles one evaluation in this many
+     */
+    public Profiler(Node.BlockStmt root, int sampleInterval) {
+        if (sampleInterval < 1) throw new IllegalArgumentException("Sample interval must be positive");
+        this.root = root;
+        this.sampleInterval = sampleInterval;
+    }
+
+    NodeStats stats(Node node) {
+        return stats.computeIfAbsent(node, NodeStats::new);
+    }
+
+    /**
+     * Counts an evaluation.
+     *
+     * @return whether the evaluation is profiled
+     */
+    public boolean sample() {
+        evaluations++;
+        if (--countdown > 0) return false;
+        countdown = sampleInterval;
+        sampledEvaluations++;
+        return true;
+    }
+
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    public long getEvaluations() {
+        return evaluations;
+    }
+
+    public long getSampledEvaluations() {
+        return sampledEvaluations;
+    }
+
+    /**
+     * Clears all records, and profiles the next evaluation.
+     */
+    public void reset() {
+        for (NodeStats nodeStats : stats.values()) nodeStats.clear();
+        countdown = 1;
+        evaluations = 0;
+        sampledEvaluations = 0;
+    }
+
+    /**
+     * Returns the nodes that spent the most time on their own, not counting their children.
+     *
+     * @param limit the maximum number of nodes
+     * @return the nodes that were evaluated, by decreasing self time
+     */
+    public List<NodeStats> hotSpots(int limit) {
+        List<NodeStats> evaluated = new ArrayList<>();
+        for (NodeStats nodeStats : stats.values()) {
+            if (nodeStats.calls > 0) evaluated.add(nodeStats);
+        }
+        evaluated.sort(Comparator.comparingLong(NodeStats::getSelfNanos).reversed());
+        return evaluated.subList(0, Math.min(limit, evaluated.size()));
+    }
+
+    /**
+     * Returns the records of every node, printed on the tree of the expression like {@code showAst}, followed by
+     * the hot spots.
+     * <p>
+     * Times are in microseconds, summed over all sampled evaluations. Subexpressions that occur more than once are
+     * only expanded at their first occurrence.
+     *
+     * @return the report
+     */
+    public String report() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ROOT, "%d evaluations, %d profiled%n", evaluations, sampledEvaluations));
+        builder.append(String.format(Locale.ROOT, "%10s %12s %12s %8s %8s %9s  %s%n",
+                "calls", "total us", "self us", "num bits", "den bits", "precision", "node"));
+        if (root.size() > 0) {
+            Set<Node> printed = Collections.newSetFromMap(new IdentityHashMap<>());
+            Deque<Object[]> stack = new ArrayDeque<>();
+            stack.push(new Object[]{root.get(0), 0});
+            while (!stack.isEmpty()) {
+                Object[] entry = stack.pop();
+                Node node = (Node) entry[0];
+                int depth = (int) entry[1];
+                String indent = "  ".repeat(depth);
+                List<Node> children = CommonSubexpressions.children(node);
+                if (!printed.add(node) && !children.isEmpty()) {
+                    builder.append(String.format(Locale.ROOT, "%10s %12s %12s %8s %8s %9s  %s%s (shared)%n",
+                            "", "", "", "", "", "", indent, label(node)));
+                    continue;
+                }
+                NodeStats nodeStats = stats.get(node);
+                builder.append(nodeStats == null ? String.format(Locale.ROOT, "%10d %12s %12s %8s %8s %9s",
+                        0, "-", "-", "-", "-", "-") : nodeStats.columns());
+                builder.append("  ").append(indent).append(label(node)).append(System.lineSeparator());
+                for (int i = children.size() - 1; i >= 0; i--) stack.push(new Object[]{children.get(i), depth + 1});
+            }
+        }
+        List<NodeStats> hotSpots = hotSpots(5);
+        if (!hotSpots.isEmpty()) {
+            builder.append(System.lineSeparator()).append("Hot spots:").append(System.lineSeparator());
+            for (NodeStats nodeStats : hotSpots) {
+                builder.append("  ").append(nodeStats).append(System.lineSeparator());
+            }
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return report();
+    }
+
+    /**
+     * @return the node as a line of the report, without its children
+     */
+    static String label(Node node) {
+        if (node instanceof Node.BinaryOperatorNode) {
+            return "Binary(" + ((Node.BinaryOperatorNode) node).operator.symbol + ")";
+        } else if (node instanceof Node.UnaryOperatorNode) {
+            return "Unary(" + ((Node.UnaryOperatorNode) node).operator.symbol + ")";
+        } else if (node instanceof Node.FunctionCall) {
+            return ((Node.FunctionCall) node).function.name + "()";
+        } else if (node instanceof Node.MacroFunctionCall) {
+            return ((Node.MacroFunctionCall) node).function.name + "()";
+        } else if (node instanceof Node.BlockStmt) {
+            return "Block";
+        }
+        return node.toString();
+    }
+
+    /**
+     * The records of one node.
+     */
+    public static final class NodeStats {
+        private final Node node;
+        private long calls;
+        private long totalNanos;
+        private long selfNanos;
+        private int maxNumeratorBits;
+        private int maxDenominatorBits;
+        private int maxPrecision;
+
+        NodeStats(Node node) {
+            this.node = node;
+        }
+
+        void record(long total, long self) {
+            calls++;
+            totalNanos += total;
+            selfNanos += self;
+        }
+
+        void recordSize(Number result) {
+            if (result instanceof Rational) {
+                Rational rational = (Rational) result;
+                maxNumeratorBits = Math.max(maxNumeratorBits, rational.numeratorBitLength());
+                maxDenominatorBits = Math.max(maxDenominatorBits, rational.denominatorBitLength());
+            } else if (result instanceof Decimal) {
+                maxPrecision = Math.max(maxPrecision, ((Decimal) result).bigDecimalValue().precision());
+            } else if (result instanceof Complex) {
+                recordSize(((Complex) result).real);
+                recordSize(((Complex) result).imaginary);
+            }
+        }
+
+        private void clear() {
+            calls = 0;
+            totalNanos = 0;
+            selfNanos = 0;
+            maxNumeratorBits = 0;
+            maxDenominatorBits = 0;
+            maxPrecision = 0;
+        }
+
+        /**
+         * @return the node, as printed in the report
+         */
+        public String getLabel() {
+            return label(node);
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return time spent in the node and its children
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * @return time spent in the node, not counting its children
+         */
+        public long getSelfNanos() {
+            return selfNanos;
+        }
+
+        /**
+         * @return the largest bit length of the numerator of a rational result, 0 if there is none
+         */
+        public int getMaxNumeratorBits() {
+            return maxNumeratorBits;
+        }
+
+        /**
+         * @return the largest bit length of the denominator of a rational result, 0 if there is none
+         */
+        public int getMaxDenominatorBits() {
+            return maxDenominatorBits;
+        }
+
+        /**
+         * @return the largest precision of a decimal result, 0 if there is none
+         */
+        public int getMaxPrecision() {
+            return maxPrecision;
+        }
+
+        private String columns() {
+            return String.format(Locale.ROOT, "%10d %12.3f %12.3f %8s %8s %9s", calls, totalNanos / 1e3,
+                    selfNanos / 1e3, size(maxNumeratorBits), size(maxDenominatorBits), size(maxPrecision));
+        }
+
+        private static String size(int size) {
+            return size == 0 ? "-" : String.valueOf(size);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: %d calls, %.3f us self, %.3f us total, " +
+                            "%d numerator bits, %d denominator bits, precision %d",
+                    getLabel(), calls, selfNanos / 1e3, totalNanos / 1e3,
+                    maxNumeratorBits, maxDenominatorBits, maxPrecision);
+        }
+    }
+}
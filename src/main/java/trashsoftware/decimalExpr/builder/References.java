@@ -0,0 +1,99 @@
+package trashsoftware.decimalExpr.builder;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collects the global names an expression reads, and whether the operators and functions it calls are pure.
+ * <p>
+ * Invariants of macro function calls are local to the macro, so they are not references even if a global variable
+ * has the same name.
+ */
+public final class References {
+
+    private final Set<String> variables = new LinkedHashSet<>();
+    private final Set<String> macros = new LinkedHashSet<>();
+    private boolean pure = true;
+
+    private References() {
+    }
+
+    /**
+     * Collects the names read by a parsed expression.
+     *
+     * @param root the parsed block
+     * @return the references
+     */
+    public static References of(Node.BlockStmt root) {
+        References references = new References();
+        // with an explicit stack, since parsed trees can be very deep
+        Deque<Object[]> stack = new ArrayDeque<>();
+        stack.push(new Object[]{root, Set.of()});
+        while (!stack.isEmpty()) {
+            Object[] entry = stack.pop();
+            Node node = (Node) entry[0];
+            @SuppressWarnings("unchecked")
+            Set<String> locals = (Set<String>) entry[1];
+            if (node instanceof Node.NameNode) {
+                String name = ((Node.NameNode) node).name;
+                if (locals.contains(name)) continue;
+                if (node instanceof Node.VarNameNode) references.variables.add(name);
+                else if (node instanceof Node.MacroNameNode) references.macros.add(name);
+            } else if (node instanceof Node.MacroFunctionCall) {
+                references.pure &= ((Node.MacroFunctionCall) node).function.isPure();
+                Node.BlockStmt args = ((Node.MacroFunctionCall) node).args;
+                for (int i = args.size() - 1; i >= 0; i--) {
+                    Set<String> argLocals = locals;
+                    if (i == 1 && args.get(0) instanceof Node.NameNode) {
+                        argLocals = new HashSet<>(locals);
+                        argLocals.add(((Node.NameNode) args.get(0)).name);
+                    }
+                    // the invariant itself is a declaration, not a reference
+                    if (i > 0) stack.push(new Object[]{args.get(i), argLocals});
+                }
+            } else {
+                if (node instanceof Node.UnaryOperatorNode) {
+                    references.pure &= ((Node.UnaryOperatorNode) node).operator.isPure();
+                } else if (node instanceof Node.BinaryOperatorNode) {
+                    references.pure &= ((Node.BinaryOperatorNode) node).operator.isPure();
+                } else if (node instanceof Node.FunctionCall) {
+                    references.pure &= ((Node.FunctionCall) node).function.isPure();
+                }
+                List<Node> children = CommonSubexpressions.children(node);
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    stack.push(new Object[]{children.get(i), locals});
+                }
+            }
+        }
+        return references;
+    }
+
+    /**
+     * @return names of the global variables read, in the order they appear
+     */
+    public Set<String> getVariables() {
+        return Collections.unmodifiableSet(variables);
+    }
+
+    /**
+     * @return names of the macros read, in the order they appear
+     */
+    public Set<String> getMacros() {
+        return Collections.unmodifiableSet(macros);
+    }
+
+    /**
+     * Returns whether all operators and functions the expression calls are pure, not counting those called by the
+     * macros it reads.
+     *
+     * @return {@code true} if the expression calls no impure operator or function
+     */
+    public boolean isPure() {
+        return pure;
+    }
+}
@@ -0,0 +1,399 @@
+package trashsoftware.decimalExpr.builder;
+
+import trashsoftware.decimalExpr.expression.BinaryOperator;
+import trashsoftware.decimalExpr.expression.Operators;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites a folded tree into a cheaper equivalent one.
+ * <p>
+ * Each rule looks at one operator node whose operands are already simplified, and returns a replacement or
+ * {@code null}. Rules only match the builtin operators in {@code Operators}, so an expression that overrides an
+ * operator through {@code Builder.operator} keeps its tree as parsed.
+ * <p>
+ * This pass runs after {@code ConstantFolder}, so constant operands are always {@code IntNode} or {@code ConstNode}.
+ */
+public final class Simplifier {
+
+    /**
+     * Largest exponent that is expanded to multiplications.
+     */
+    static final int MAX_EXPANDED_POWER = 3;
+
+    /**
+     * Largest number of digits of a reciprocal that replaces a division.
+     */
+    private static final int MAX_RECIPROCAL_DIGITS = 20;
+
+    /**
+     * Upper bound of rules applied on one node, in case two rules undo each other.
+     */
+    private static final int MAX_REWRITES = 16;
+
+    interface Rule {
+        /**
+         * @param node an operator node whose operands are simplified
+         * @return the replacement of {@code node}, or {@code null} if this rule does not apply
+         */
+        Node apply(Node node);
+    }
+
+    private static final List<Rule> RULES = List.of(
+            Simplifier::removeIdentity,
+            Simplifier::removeDoubleNegation,
+            Simplifier::combineLikeTerms,
+            Simplifier::mergeCoefficients,
+            Simplifier::mergePowers,
+            Simplifier::expandPower
+    );
+
+    private final List<Rule> rules = new ArrayList<>(RULES);
+    private final Map<Node, Node> replacements = new IdentityHashMap<>();
+
+    private Simplifier(boolean approxRational) {
+        if (approxRational) rules.add(Simplifier::divisionToMultiplication);
+    }
+
+    /**
+     * Simplifies the tree of {@code root} in place.
+     *
+     * @param root           the folded block
+     * @param approxRational whether decimal literals are rational
+     */
+    public static void simplify(Node.BlockStmt root, boolean approxRational) {
+        new Simplifier(approxRational).simplifyTree(root);
+    }
+
+    private void simplifyTree(Node root) {
+        Deque<Object[]> stack = new ArrayDeque<>();
+        stack.push(new Object[]{root, false});
+        while (!stack.isEmpty()) {
+            Object[] entry = stack.pop();
+            Node node = (Node) entry[0];
+            if ((Boolean) entry[1]) {
+                visit(node);
+                continue;
+            }
+            entry[1] = true;
+            stack.push(entry);
+            for (Node child : children(node)) {
+                stack.push(new Object[]{child, false});
+            }
+        }
+    }
+
+    private static List<Node> children(Node node) {
+        if (node instanceof Node.BlockStmt) {
+            return ((Node.BlockStmt) node).getNodes();
+        } else if (node instanceof Node.FunctionCall) {
+            return ((Node.FunctionCall) node).args.getNodes();
+        } else if (node instanceof Node.MacroFunctionCall) {
+            return ((Node.MacroFunctionCall) node).args.getNodes();
+        } else if (node instanceof Node.UnaryOperatorNode) {
+            return List.of(((Node.UnaryOperatorNode) node).operand);
+        } else if (node instanceof Node.BinaryOperatorNode) {
+            Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+            return List.of(bon.left, bon.right);
+        }
+        return List.of();
+    }
+
+    private void visit(Node node) {
+        if (node instanceof Node.BlockStmt) {
+            replaceAll((Node.BlockStmt) node);
+        } else if (node instanceof Node.FunctionCall) {
+            replaceAll(((Node.FunctionCall) node).args);
+        } else if (node instanceof Node.MacroFunctionCall) {
+            replaceAll(((Node.MacroFunctionCall) node).args);
+        } else if (node instanceof Node.UnaryOperatorNode) {
+            Node.UnaryOperatorNode uon = (Node.UnaryOperatorNode) node;
+            uon.setOperand((Node.Expression) replacement(uon.operand));
+            rewrite(node);
+        } else if (node instanceof Node.BinaryOperatorNode) {
+            Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+            bon.setLeft((Node.Expression) replacement(bon.left));
+            bon.setRight((Node.Expression) replacement(bon.right));
+            rewrite(node);
+        }
+    }
+
+    private void rewrite(Node node) {
+        Node current = node;
+        for (int i = 0; i < MAX_REWRITES; i++) {
+            Node next = null;
+            for (Rule rule : rules) {
+                next = rule.apply(current);
+                if (next != null) break;
+            }
+            if (next == null) break;
+            current = next;
+        }
+        if (current != node) replacements.put(node, current);
+    }
+
+    private void replaceAll(Node.BlockStmt block) {
+        for (int i = 0; i < block.size(); i++) {
+            block.set(i, replacement(block.get(i)));
+        }
+    }
+
+    private Node replacement(Node child) {
+        return replacements.getOrDefault(child, child);
+    }
+
+    // Rules
+
+    /**
+     * x*1, 1*x, x/1, x+0, 0+x, x-0, x^1 to x.
+     */
+    private static Node removeIdentity(Node node) {
+        if (!(node instanceof Node.BinaryOperatorNode)) return null;
+        Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+        BinaryOperator op = bon.operator;
+        if (op == Operators.MUL) {
+            if (isConstant(bon.right, Rational.ONE)) return bon.left;
+            if (isConstant(bon.left, Rational.ONE)) return bon.right;
+        } else if (op == Operators.DIV || op == Operators.EXP) {
+            if (isConstant(bon.right, Rational.ONE)) return bon.left;
+        } else if (op == Operators.ADD) {
+            if (isConstant(bon.right, Rational.ZERO)) return bon.left;
+            if (isConstant(bon.left, Rational.ZERO)) return bon.right;
+        } else if (op == Operators.SUB) {
+            if (isConstant(bon.right, Rational.ZERO)) return bon.left;
+        }
+        return null;
+    }
+
+    /**
+     * --x to x.
+     */
+    private static Node removeDoubleNegation(Node node) {
+        if (!(node instanceof Node.UnaryOperatorNode)) return null;
+        Node.UnaryOperatorNode uon = (Node.UnaryOperatorNode) node;
+        if (uon.operator == Operators.NEG && uon.operand instanceof Node.UnaryOperatorNode) {
+            Node.UnaryOperatorNode inner = (Node.UnaryOperatorNode) uon.operand;
+            if (inner.operator == Operators.NEG) return inner.operand;
+        }
+        return null;
+    }
+
+    /**
+     * ax+bx to (a+b)x and ax-bx to (a-b)x, where a term is a variable with an optional constant factor.
+     */
+    private static Node combineLikeTerms(Node node) {
+        if (!(node instanceof Node.BinaryOperatorNode)) return null;
+        Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+        if (bon.operator != Operators.ADD && bon.operator != Operators.SUB) return null;
+        Term left = Term.of(bon.left);
+        Term right = Term.of(bon.right);
+        if (left == null || right == null || !left.sameName(right)) return null;
+        Number coefficient = bon.operator == Operators.ADD ?
+                left.coefficient.add(right.coefficient) : left.coefficient.sub(right.coefficient);
+        return binary(Operators.MUL, new Node.ConstNode(coefficient), left.name);
+    }
+
+    /**
+     * (ax)*b and b*(ax) to (ab)x, so that later terms can be combined.
+     */
+    private static Node mergeCoefficients(Node node) {
+        if (!(node instanceof Node.BinaryOperatorNode)) return null;
+        Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+        if (bon.operator != Operators.MUL) return null;
+        Number factor = constantValue(bon.right);
+        Node other = bon.left;
+        if (factor == null) {
+            factor = constantValue(bon.left);
+            other = bon.right;
+        }
+        if (factor == null || isVariable(other)) return null;
+        Term term = Term.of(other);
+        if (term == null) return null;
+        return binary(Operators.MUL, new Node.ConstNode(term.coefficient.mul(factor)), term.name);
+    }
+
+    /**
+     * (x^a)^b to x^(ab), where a and b are non-negative integers.
+     * <p>
+     * The inner power might already be expanded to a product such as x*x.
+     */
+    private static Node mergePowers(Node node) {
+        if (!(node instanceof Node.BinaryOperatorNode)) return null;
+        Node.BinaryOperatorNode outer = (Node.BinaryOperatorNode) node;
+        if (outer.operator != Operators.EXP) return null;
+        BigInteger b = nonNegativeInt(outer.right);
+        if (b == null) return null;
+        Node.Expression base;
+        BigInteger a;
+        if (outer.left instanceof Node.BinaryOperatorNode &&
+                ((Node.BinaryOperatorNode) outer.left).operator == Operators.EXP) {
+            Node.BinaryOperatorNode inner = (Node.BinaryOperatorNode) outer.left;
+            base = inner.left;
+            a = nonNegativeInt(inner.right);
+        } else {
+            base = productBase(outer.left);
+            a = base == null ? null : BigInteger.valueOf(productLength(outer.left));
+        }
+        if (a == null || a.compareTo(BigInteger.ONE) <= 0) return null;
+        BigInteger exponent = a.multiply(b);
+        if (exponent.bitLength() >= Integer.SIZE) return null;
+        return binary(Operators.EXP, base, new Node.ConstNode(Rational.fromBigInt(exponent)));
+    }
+
+    /**
+     * Returns the variable that {@code node} is a product of, as made by {@code expandPower}.
+     *
+     * @param node a node
+     * @return the variable if {@code node} is x*x or x*x*x, otherwise {@code null}
+     */
+    private static Node.Expression productBase(Node node) {
+        Node current = node;
+        Node.Expression name = null;
+        while (current instanceof Node.BinaryOperatorNode &&
+                ((Node.BinaryOperatorNode) current).operator == Operators.MUL) {
+            Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) current;
+            if (!isVariable(bon.right) || (name != null && bon.right != name)) return null;
+            name = bon.right;
+            current = bon.left;
+        }
+        return name != null && current == name ? name : null;
+    }
+
+    private static int productLength(Node node) {
+        int length = 1;
+        for (Node current = node; current instanceof Node.BinaryOperatorNode;
+             current = ((Node.BinaryOperatorNode) current).left) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * x^2 to x*x, and x^3 to x*x*x, when x is a variable.
+     * <p>
+     * Larger powers are left to {@code pow}, which squares repeatedly.
+     */
+    private static Node expandPower(Node node) {
+        if (!(node instanceof Node.BinaryOperatorNode)) return null;
+        Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+        if (bon.operator != Operators.EXP || !isVariable(bon.left)) return null;
+        BigInteger exponent = nonNegativeInt(bon.right);
+        if (exponent == null || exponent.compareTo(BigInteger.TWO) < 0 ||
+                exponent.compareTo(BigInteger.valueOf(MAX_EXPANDED_POWER)) > 0) return null;
+        Node.Expression product = bon.left;
+        for (int i = 1; i < exponent.intValue(); i++) {
+            product = binary(Operators.MUL, product, bon.left);
+        }
+        return product;
+    }
+
+    /**
+     * x/c to x*(1/c), when 1/c is a short terminating decimal.
+     * <p>
+     * Decimal division rounds, while multiplying by a terminating decimal is exact, so the result never loses
+     * precision. It may have a larger scale though: 7.50/10 is 0.75, but 7.50*0.1 is 0.750. This rule is therefore
+     * only applied when literals are rational, where x is usually rational too, and a decimal x only comes from a
+     * variable or a function.
+     */
+    private static Node divisionToMultiplication(Node node) {
+        if (!(node instanceof Node.BinaryOperatorNode)) return null;
+        Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+        if (bon.operator != Operators.DIV) return null;
+        Number divisor = constantValue(bon.right);
+        if (!(divisor instanceof Rational) || ((Rational) divisor).signum() == 0) return null;
+        if (!isShortTerminating(((Rational) divisor).getNumerator())) return null;
+        return binary(Operators.MUL, bon.left, new Node.ConstNode(Rational.ONE.div(divisor)));
+    }
+
+    // Helpers
+
+    /**
+     * A variable with a constant coefficient.
+     */
+    private static final class Term {
+        final Number coefficient;
+        final Node.VarNameNode name;
+
+        Term(Number coefficient, Node.VarNameNode name) {
+            this.coefficient = coefficient;
+            this.name = name;
+        }
+
+        static Term of(Node node) {
+            if (isVariable(node)) return new Term(Rational.ONE, (Node.VarNameNode) node);
+            if (!(node instanceof Node.BinaryOperatorNode)) return null;
+            Node.BinaryOperatorNode bon = (Node.BinaryOperatorNode) node;
+            if (bon.operator != Operators.MUL) return null;
+            Number leftValue = constantValue(bon.left);
+            if (leftValue != null && isVariable(bon.right)) return new Term(leftValue, (Node.VarNameNode) bon.right);
+            Number rightValue = constantValue(bon.right);
+            if (rightValue != null && isVariable(bon.left)) return new Term(rightValue, (Node.VarNameNode) bon.left);
+            return null;
+        }
+
+        boolean sameName(Term other) {
+            return name.name.equals(other.name.name);
+        }
+    }
+
+    /**
+     * Macros are not variables: a macro may call impure functions, so each occurrence has to be evaluated.
+     */
+    private static boolean isVariable(Node node) {
+        return node instanceof Node.VarNameNode;
+    }
+
+    private static Number constantValue(Node node) {
+        if (node instanceof Node.IntNode) return ((Node.IntNode) node).value;
+        if (node instanceof Node.ConstNode) return ((Node.ConstNode) node).value;
+        return null;
+    }
+
+    private static boolean isConstant(Node node, Rational value) {
+        Number constant = constantValue(node);
+        return constant != null && constant.equals(value);
+    }
+
+    private static BigInteger nonNegativeInt(Node node) {
+        Number value = constantValue(node);
+        if (!(value instanceof Rational)) return null;
+        Rational rational = (Rational) value;
+        if (!rational.isInt() || rational.signum() < 0) return null;
+        return rational.getNumerator();
+    }
+
+    /**
+     * Returns whether 1/n has a finite decimal expansion of at most {@code MAX_RECIPROCAL_DIGITS} digits.
+     *
+     * @param n a non-zero integer
+     * @return {@code true} if n is a product of 2s and 5s that is small enough
+     */
+    private static boolean isShortTerminating(BigInteger n) {
+        n = n.abs();
+        int twos = n.getLowestSetBit();
+        n = n.shiftRight(twos);
+        int fives = 0;
+        BigInteger five = BigInteger.valueOf(5);
+        while (n.mod(five).signum() == 0) {
+            n = n.divide(five);
+            fives++;
+        }
+        return n.equals(BigInteger.ONE) && Math.max(twos, fives) <= MAX_RECIPROCAL_DIGITS;
+    }
+
+    private static Node.BinaryOperatorNode binary(BinaryOperator operator, Node.Expression left,
+                                                  Node.Expression right) {
+        Node.BinaryOperatorNode node = new Node.BinaryOperatorNode(operator);
+        node.setLeft(left);
+        node.setRight(right);
+        return node;
+    }
+}
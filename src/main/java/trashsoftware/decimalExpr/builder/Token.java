@@ -2,10 +2,22 @@ package trashsoftware.decimalExpr.builder;
 
 public abstract class Token {
 
+    /**
+     * Offsets of this token in the expression, {@code end} exclusive.
+     */
+    final int start;
+    final int end;
+
+    Token(int start, int end) {
+        this.start = start;
+        this.end = end;
+    }
+
     static class IdToken extends Token {
         public final String identifier;
 
-        IdToken(String identifier) {
+        IdToken(String identifier, int start, int end) {
+            super(start, end);
             this.identifier = identifier;
         }
 
@@ -18,7 +30,8 @@ public abstract class Token {
     static class IntToken extends Token {
         public final String literal;
 
-        IntToken(String literal) {
+        IntToken(String literal, int start, int end) {
+            super(start, end);
             this.literal = literal;
         }
 
@@ -31,7 +44,8 @@ public abstract class Token {
     static class DecimalToken extends Token {
         public final String literal;
 
-        DecimalToken(String literal) {
+        DecimalToken(String literal, int start, int end) {
+            super(start, end);
             this.literal = literal;
         }
 
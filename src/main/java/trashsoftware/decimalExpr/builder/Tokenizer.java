@@ -3,7 +3,6 @@ package trashsoftware.decimalExpr.builder;
 import trashsoftware.decimalExpr.BuildException;
 import trashsoftware.decimalExpr.numbers.Number;
 import trashsoftware.decimalExpr.numbers.Rational;
-import trashsoftware.decimalExpr.util.Utilities;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -22,12 +21,98 @@ public class Tokenizer {
 
 //    public static final String IMAGINARY = "i";
 
+    /**
+     * Character classes
+     */
+    private static final int UNDEFINED = 0;
+    private static final int DIGIT = 1;
+    private static final int LETTER = 2;
+    private static final int L_BRACKET = 3;
+    private static final int R_BRACKET = 4;
+    private static final int L_SQR_BRACKET = 5;
+    private static final int R_SQR_BRACKET = 6;
+    private static final int EOL = 7;
+    private static final int NEW_LINE = 8;
+    private static final int GT = 9;
+    private static final int LT = 10;
+    private static final int EQ = 11;
+    private static final int AND = 12;
+    private static final int OR = 13;
+    private static final int XOR = 14;
+    private static final int DOT = 15;
+    private static final int COMMA = 16;
+    private static final int UNDERSCORE = 17;
+    private static final int NOT = 18;
+    private static final int PLUS = 19;
+    private static final int MINUS = 20;
+    private static final int OTHER_ARITHMETIC = 21;
+    private static final int L_RECURRING_MARK = 22;
+    private static final int R_RECURRING_MARK = 23;
+    private static final int CLASS_COUNT = 24;
+
+    private static final int[] SELF_CONCATENATE = {
+            DIGIT, LETTER, GT, EQ, LT, AND, OR, UNDERSCORE, PLUS, MINUS, DOT
+    };
+    private static final int[][] CROSS_CONCATENATE = {
+            {LETTER, UNDERSCORE},
+            {UNDERSCORE, LETTER},
+            {DIGIT, UNDERSCORE},
+            {UNDERSCORE, DIGIT},
+            {DIGIT, DOT},
+            {DOT, DIGIT},
+            {DOT, L_RECURRING_MARK},
+            {DIGIT, L_RECURRING_MARK},
+            {L_RECURRING_MARK, DIGIT},
+            {DIGIT, R_RECURRING_MARK},
+            {MINUS, GT},
+            {LT, MINUS},
+            {LETTER, DIGIT},
+            {GT, EQ},
+            {LT, EQ},
+            {NOT, EQ},
+            {PLUS, EQ},
+            {MINUS, EQ},
+            {OTHER_ARITHMETIC, EQ},
+    };
+
+    private static final int ASCII = 128;
+
+    /**
+     * Class of each ASCII character. Other characters are classified by {@link #identify(char)}.
+     */
+    private static final byte[] CHAR_CLASSES = new byte[ASCII];
+
+    /**
+     * Whether a character of class {@code right} continues a token that ends with class {@code left}, indexed
+     * by {@code [left][right]}.
+     */
+    private static final boolean[][] JOINS = new boolean[CLASS_COUNT][CLASS_COUNT];
+
+    /**
+     * Whether each ASCII character is a token on its own, that is, one of {@link #ALLOWED_OPERATORS} or
+     * {@link #OTHERS}.
+     */
+    private static final boolean[] SYMBOLS = new boolean[ASCII];
+
+    private static final String[] ONE_CHAR_STRINGS = new String[ASCII];
+
+    static {
+        for (char c = 0; c < ASCII; c++) {
+            CHAR_CLASSES[c] = (byte) identify(c);
+            ONE_CHAR_STRINGS[c] = String.valueOf(c);
+        }
+        for (int type : SELF_CONCATENATE) JOINS[type][type] = true;
+        for (int[] pair : CROSS_CONCATENATE) JOINS[pair[0]][pair[1]] = true;
+        for (String symbol : EXTRA_IDENTIFIERS) SYMBOLS[symbol.charAt(0)] = true;
+        for (String symbol : OTHERS) SYMBOLS[symbol.charAt(0)] = true;
+    }
+
     /**
      * Instant field
      */
-    private final String text;
+    private final CharSequence text;
 
-    public Tokenizer(String text) {
+    public Tokenizer(CharSequence text) {
         this.text = text;
     }
 
@@ -81,228 +166,185 @@ public class Tokenizer {
         return treeRecursive(tokens);
     }
 
-    private List<Token> tokenizeToList() {
+    /**
+     * Splits the text into tokens in a single pass.
+     * <p>
+     * A token ends where the class of the next character does not join the class of the last one. Tokens are then
+     * recognized from their offsets, and only the recognized ones are copied out of the text.
+     */
+    List<Token> tokenizeToList() {
         List<Token> result = new ArrayList<>();
-        StringBuilder builder = new StringBuilder();
-        CharTypeIdentifier cur = new CharTypeIdentifier('\0');
-        CharTypeIdentifier last;
         int len = text.length();
+        int start = 0;
+        int last = UNDEFINED;
         for (int i = 0; i < len; i++) {
-            char c = text.charAt(i);
-            last = cur;
-            cur = new CharTypeIdentifier(c);
-            if (!CharTypeIdentifier.concatenateAble(last, cur)) {
-                addToken(result, builder.toString());
-                builder.setLength(0);
+            int type = classOf(text.charAt(i));
+            if (!JOINS[last][type]) {
+                addToken(result, start, i);
+                start = i;
             }
-            builder.append(c);
+            last = type;
         }
-        if (builder.length() > 0) addToken(result, builder.toString());
+        addToken(result, start, len);
 
         return result;
     }
 
-    private void addToken(List<Token> result, String content) {
-        if (StringTypes.isInteger(content)) {
-            result.add(new Token.IntToken(content));
-        } else if (StringTypes.isDecimal(content)) {
-            result.add(new Token.DecimalToken(content));
-        } else if (StringTypes.isIdentifier(content)) {
-            result.add(new Token.IdToken(content));
-        } else if (Utilities.arrayContains(EXTRA_IDENTIFIERS, content)) {
-            result.add(new Token.IdToken(content));
-        } else if (Utilities.arrayContains(OTHERS, content)) {
-            result.add(new Token.IdToken(content));
+    private void addToken(List<Token> result, int start, int end) {
+        if (start == end) return;
+        if (StringTypes.isInteger(text, start, end)) {
+            result.add(new Token.IntToken(content(start, end), start, end));
+        } else if (StringTypes.isDecimal(text, start, end)) {
+            result.add(new Token.DecimalToken(content(start, end), start, end));
+        } else if (StringTypes.isIdentifier(text, start, end)) {
+            result.add(new Token.IdToken(content(start, end), start, end));
+        } else if (end - start == 1 && isSymbol(text.charAt(start))) {
+            result.add(new Token.IdToken(content(start, end), start, end));
         }
     }
 
-    private Element.CollectiveElement treeRecursive(List<Token> tokens) {
-        Element.CollectiveElement root = new Element.CollectiveElement(Element.BRACKET, null);
-        Element.CollectiveElement currentActive = root;
-        for (int i = 0; i < tokens.size(); ++i) {
-            currentActive = makeTreeListRec(currentActive, tokens, i);
+    private String content(int start, int end) {
+        if (end - start == 1) {
+            char c = text.charAt(start);
+            if (c < ASCII) return ONE_CHAR_STRINGS[c];
         }
-        return root;
+        return text.subSequence(start, end).toString();
     }
 
-    private static class CharTypeIdentifier {
-
-        private static final int DIGIT = 1;
-        private static final int LETTER = 2;
-        private static final int L_BRACE = 3;
-        private static final int R_BRACE = 4;
-        private static final int L_BRACKET = 5;
-        private static final int R_BRACKET = 6;
-        private static final int L_SQR_BRACKET = 7;
-        private static final int R_SQR_BRACKET = 8;
-        private static final int EOL = 9;
-        private static final int NEW_LINE = 10;
-        private static final int GT = 11;
-        private static final int LT = 12;
-        private static final int EQ = 13;
-        private static final int AND = 14;
-        private static final int OR = 15;
-        private static final int XOR = 16;
-        private static final int DOT = 17;
-        private static final int COMMA = 18;
-        private static final int UNDERSCORE = 19;
-        private static final int NOT = 20;
-        private static final int PLUS = 21;
-        private static final int MINUS = 22;
-        private static final int OTHER_ARITHMETIC = 23;
-        private static final int L_RECURRING_MARK = 24;
-        private static final int R_RECURRING_MARK = 25;
-        private static final int UNDEFINED = 0;
-
-        private static final int[] SELF_CONCATENATE = {
-                DIGIT, LETTER, GT, EQ, LT, AND, OR, UNDERSCORE, PLUS, MINUS, DOT
-        };
-        private static final int[][] CROSS_CONCATENATE = {
-                {LETTER, UNDERSCORE},
-                {UNDERSCORE, LETTER},
-                {DIGIT, UNDERSCORE},
-                {UNDERSCORE, DIGIT},
-                {DIGIT, DOT},
-                {DOT, DIGIT},
-                {DOT, L_RECURRING_MARK},
-                {DIGIT, L_RECURRING_MARK},
-                {L_RECURRING_MARK, DIGIT},
-                {DIGIT, R_RECURRING_MARK},
-                {MINUS, GT},
-                {LT, MINUS},
-                {LETTER, DIGIT},
-                {GT, EQ},
-                {LT, EQ},
-                {NOT, EQ},
-                {PLUS, EQ},
-                {MINUS, EQ},
-                {OTHER_ARITHMETIC, EQ},
-        };
-
-        private final int type;
-
-        CharTypeIdentifier(char ch) {
-            this.type = identify(ch);
-        }
+    private static boolean isSymbol(char c) {
+        return c < ASCII && SYMBOLS[c];
+    }
 
-        static boolean concatenateAble(CharTypeIdentifier left, CharTypeIdentifier right) {
-            int leftType = left.type;
-            int rightType = right.type;
-            return (leftType == rightType && Utilities.arrayContains(SELF_CONCATENATE, leftType)) ||
-                    Utilities.arrayContains2D(CROSS_CONCATENATE, new int[]{leftType, rightType});
+    private static int classOf(char ch) {
+        return ch < ASCII ? CHAR_CLASSES[ch] : identify(ch);
+    }
+
+    private static int identify(char ch) {
+        if (Character.isDigit(ch)) return DIGIT;
+        else if (Character.isAlphabetic(ch)) return LETTER;
+
+        switch (ch) {
+            case Number.FRONT_REPEAT_CHAR:
+                return L_RECURRING_MARK;
+            case Number.BACK_REPEAT_CHAR:
+                return R_RECURRING_MARK;
+            case '(':
+                return L_BRACKET;
+            case ')':
+                return R_BRACKET;
+            case '[':
+                return L_SQR_BRACKET;
+            case ']':
+                return R_SQR_BRACKET;
+            case ';':
+                return EOL;
+            case '\n':
+                return NEW_LINE;
+            case '>':
+                return GT;
+            case '<':
+                return LT;
+            case '=':
+                return EQ;
+            case '&':
+                return AND;
+            case '|':
+                return OR;
+            case '^':
+                return XOR;
+            case '.':
+                return DOT;
+            case ',':
+                return COMMA;
+            case '_':
+                return UNDERSCORE;
+            case '!':
+                return NOT;
+            case '+':
+                return PLUS;
+            case '-':
+                return MINUS;
+            case '*':
+            case '/':
+            case '%':
+                return OTHER_ARITHMETIC;
+            default:
+                return UNDEFINED;
         }
+    }
 
-        private static int identify(char ch) {
-            if (Character.isDigit(ch)) return DIGIT;
-            else if (Character.isAlphabetic(ch)) return LETTER;
-//            else if (ch == Rational.FRONT_REPEAT_CHAR || ch == Rational.BACK_REPEAT_CHAR) return RECURRING_MARK;
-
-            switch (ch) {
-                case Number.FRONT_REPEAT_CHAR:
-                    return L_RECURRING_MARK;
-                case Number.BACK_REPEAT_CHAR:
-                    return R_RECURRING_MARK;
-//                case '{':
-//                    return L_BRACE;
-//                case '}':
-//                    return R_BRACE;
-                case '(':
-                    return L_BRACKET;
-                case ')':
-                    return R_BRACKET;
-                case '[':
-                    return L_SQR_BRACKET;
-                case ']':
-                    return R_SQR_BRACKET;
-                case ';':
-                    return EOL;
-                case '\n':
-                    return NEW_LINE;
-                case '>':
-                    return GT;
-                case '<':
-                    return LT;
-                case '=':
-                    return EQ;
-                case '&':
-                    return AND;
-                case '|':
-                    return OR;
-                case '^':
-                    return XOR;
-                case '.':
-                    return DOT;
-                case ',':
-                    return COMMA;
-                case '_':
-                    return UNDERSCORE;
-                case '!':
-                    return NOT;
-                case '+':
-                    return PLUS;
-                case '-':
-                    return MINUS;
-                case '*':
-                case '/':
-                case '%':
-                    return OTHER_ARITHMETIC;
-                default:
-                    return UNDEFINED;
-            }
+    private Element.CollectiveElement treeRecursive(List<Token> tokens) {
+        Element.CollectiveElement root = new Element.CollectiveElement(Element.BRACKET, null);
+        Element.CollectiveElement currentActive = root;
+        for (int i = 0; i < tokens.size(); ++i) {
+            currentActive = makeTreeListRec(currentActive, tokens, i);
         }
+        return root;
     }
 
     public static class StringTypes {
 
-        private static boolean isInteger(String s) {
-            for (char c : s.toCharArray()) {
+        private static boolean isInteger(CharSequence s, int from, int to) {
+            if (from == to || s.charAt(from) == '_') return false;
+            for (int i = from; i < to; i++) {
+                char c = s.charAt(i);
                 if (!(Character.isDigit(c) || c == '_')) return false;
             }
-            return s.length() > 0 && s.charAt(0) != '_';
+            return true;
         }
 
-        private static boolean isDecimal(String s) {
-            int dotIndex = s.indexOf('.');
+        private static boolean isDecimal(CharSequence s, int from, int to) {
+            int dotIndex = indexOf(s, '.', from, to);
             if (dotIndex == -1) return false;
-            if (dotIndex == 0) return StringTypes.isDecimalPart(s.substring(1));  // situation ".123"
-            String[] parts = s.split("\\.");
-            if (parts.length == 2) {
-                return isInteger(parts[0]) && isDecimalPart(parts[1]);
-            } else return false;
+            if (dotIndex == from) return isDecimalPart(s, from + 1, to);  // situation ".123"
+            // trailing points are ignored, so "1.5." is a decimal but "1." is not
+            int end = to;
+            while (s.charAt(end - 1) == '.') end--;
+            if (end <= dotIndex || indexOf(s, '.', dotIndex + 1, end) != -1) return false;
+            return isInteger(s, from, dotIndex) && isDecimalPart(s, dotIndex + 1, end);
         }
 
         /**
-         * This function returns true iff {@code s} is the decimal place of a decimal number, i.e., part that
-         * follows the decimal point. Recurring notation is included.
+         * This function returns true iff {@code s[from, to)} is the decimal place of a decimal number, i.e., part
+         * that follows the decimal point. Recurring notation is included.
          *
-         * @param s number string
-         * @return returns true iff {@code s} is the decimal part of a decimal number
+         * @param s    number string
+         * @param from index of the first character
+         * @param to   index after the last character
+         * @return returns true iff {@code s[from, to)} is the decimal part of a decimal number
          */
-        private static boolean isDecimalPart(String s) {
-            int lRecIndex = s.indexOf(Rational.FRONT_REPEAT_CHAR);
-            int rRecIndex = s.indexOf(Rational.BACK_REPEAT_CHAR);
+        private static boolean isDecimalPart(CharSequence s, int from, int to) {
+            int lRecIndex = indexOf(s, Rational.FRONT_REPEAT_CHAR, from, to);
+            int rRecIndex = indexOf(s, Rational.BACK_REPEAT_CHAR, from, to);
             if (lRecIndex == -1) {
                 if (rRecIndex != -1) throw new BuildException("Recurring interval not closed");
-                return isInteger(s);
+                return isInteger(s, from, to);
             }
             if (rRecIndex == -1) throw new BuildException("Recurring interval not closed");
-            String middle = s.substring(lRecIndex + 1, rRecIndex);
-            return isInteger(middle);
+            return isInteger(s, lRecIndex + 1, rRecIndex);
         }
 
         public static boolean isIdentifier(String s) {
-            if (s.length() > 0) {
-                char lead = s.charAt(0);
-                if (!(Character.isAlphabetic(lead) || lead == '_')) return false;
-                int len = s.length();
-                for (int i = 1; i < len; ++i) {
-                    char ch = s.charAt(i);
-                    if (!(Character.isAlphabetic(ch) || Character.isDigit(ch) || ch == '_' || ch == '?'))
-                        return false;
-                }
-                return true;
+            return isIdentifier(s, 0, s.length());
+        }
+
+        private static boolean isIdentifier(CharSequence s, int from, int to) {
+            if (from == to) return false;
+            char lead = s.charAt(from);
+            if (!(Character.isAlphabetic(lead) || lead == '_')) return false;
+            for (int i = from + 1; i < to; ++i) {
+                char ch = s.charAt(i);
+                if (!(Character.isAlphabetic(ch) || Character.isDigit(ch) || ch == '_' || ch == '?'))
+                    return false;
+            }
+            return true;
+        }
+
+        private static int indexOf(CharSequence s, char c, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (s.charAt(i) == c) return i;
             }
-            return false;
+            return -1;
         }
     }
 }
@@ -5,14 +5,14 @@ import trashsoftware.decimalExpr.expression.Macro;
 import trashsoftware.decimalExpr.expression.UnknownSymbolException;
 import trashsoftware.decimalExpr.numbers.Number;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
 public abstract class Values {
 
-    protected final Map<String, Number> variables = new HashMap<>();
-    protected final Map<String, Macro> macros = new HashMap<>();
+    protected final Map<String, Number> variables = new LinkedHashMap<>();
+    protected final Map<String, Macro> macros = new LinkedHashMap<>();
 
     public Values() {
     }
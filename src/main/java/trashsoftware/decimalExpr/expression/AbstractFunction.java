@@ -11,4 +11,15 @@ public abstract class AbstractFunction {
         this.minArgCount = minArgCount;
         this.maxArgCount = maxArgCount;
     }
+
+    /**
+     * Returns whether this function always gives the same result for the same arguments and has no side effect.
+     * <p>
+     * Calls of pure functions on constant arguments are computed once when the expression is built.
+     *
+     * @return {@code true} if this function is pure
+     */
+    public boolean isPure() {
+        return false;
+    }
 }
@@ -1,6 +1,7 @@
 package trashsoftware.decimalExpr.expression;
 
 import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.util.Utilities;
 
 public abstract class BinaryOperator extends Operator {
     public BinaryOperator(String symbol, int precedence) {
@@ -8,4 +9,18 @@ public abstract class BinaryOperator extends Operator {
     }
 
     public abstract Number eval(Number left, Number right);
+
+    /**
+     * Evaluates this operator in double mode.
+     * <p>
+     * The default implementation converts the operands to numbers and calls {@code eval}. Override it to avoid the
+     * conversion.
+     *
+     * @param left  left operand
+     * @param right right operand
+     * @return the result
+     */
+    public double evalDouble(double left, double right) {
+        return Utilities.toDouble(eval(Utilities.fromDouble(left), Utilities.fromDouble(right)));
+    }
 }
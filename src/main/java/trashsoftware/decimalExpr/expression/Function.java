@@ -1,6 +1,7 @@
 package trashsoftware.decimalExpr.expression;
 
 import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.util.Utilities;
 
 public abstract class Function extends AbstractFunction {
 
@@ -13,14 +14,29 @@ public abstract class Function extends AbstractFunction {
     }
 
     public Number eval(Number... arguments) {
-        if (arguments.length > maxArgCount || arguments.length < minArgCount) {
+        checkArgCount(arguments.length);
+        return evaluate(arguments);
+    }
+
+    /**
+     * Evaluates the function in double mode.
+     *
+     * @param arguments arguments of this function call
+     * @return the return value of this function
+     */
+    public double evalDouble(double... arguments) {
+        checkArgCount(arguments.length);
+        return evaluateDouble(arguments);
+    }
+
+    private void checkArgCount(int argCount) {
+        if (argCount > maxArgCount || argCount < minArgCount) {
             throw new IllegalArgumentException(String.format("Function '%s' expects %s arguments, got %d.",
                     name,
                     (maxArgCount == minArgCount ?
                             String.valueOf(maxArgCount) : String.format("%d to %d", minArgCount, maxArgCount)),
-                    arguments.length));
+                    argCount));
         }
-        return evaluate(arguments);
     }
 
     /**
@@ -32,4 +48,19 @@ public abstract class Function extends AbstractFunction {
      * @return the return value of this function
      */
     protected abstract Number evaluate(Number... arguments);
+
+    /**
+     * Evaluates the function in double mode.
+     * <p>
+     * Number of arguments is already checked. The default implementation converts the arguments to numbers and
+     * calls {@code evaluate}. Override it to avoid the conversion.
+     *
+     * @param arguments arguments of this function call, number of arguments already checked.
+     * @return the return value of this function
+     */
+    protected double evaluateDouble(double... arguments) {
+        Number[] numbers = new Number[arguments.length];
+        for (int i = 0; i < numbers.length; i++) numbers[i] = Utilities.fromDouble(arguments[i]);
+        return Utilities.toDouble(evaluate(numbers));
+    }
 }
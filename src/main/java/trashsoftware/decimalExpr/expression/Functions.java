@@ -5,9 +5,16 @@ import trashsoftware.decimalExpr.numbers.Number;
 import trashsoftware.decimalExpr.numbers.Rational;
 import trashsoftware.decimalExpr.numbers.Real;
 
+import java.util.function.DoubleUnaryOperator;
+
 public class Functions {
 
     public static final Function ABS = new Function("abs", 1) {
+        @Override
+        public boolean isPure() {
+            return true;
+        }
+
         @Override
         protected Number evaluate(Number... arguments) {
             Number arg = arguments[0];
@@ -22,18 +29,38 @@ public class Functions {
                 throw new ArithmeticException("Unexpected number type.");
             }
         }
+
+        @Override
+        protected double evaluateDouble(double... arguments) {
+            return Math.abs(arguments[0]);
+        }
     };
 
     public static final Function SQRT = new Function("sqrt", 1) {
+        @Override
+        public boolean isPure() {
+            return true;
+        }
+
         @Override
         protected Number evaluate(Number... arguments) {
             return arguments[0].sqrt();
         }
+
+        @Override
+        protected double evaluateDouble(double... arguments) {
+            return Math.sqrt(arguments[0]);
+        }
     };
 
     // Macro functions
 
     public static final MacroFunction SUM = new MacroFunction("sum", 2) {
+        @Override
+        public boolean isPure() {
+            return true;
+        }
+
         @Override
         protected Number evaluate(String invariant, Macro macro, Number... arguments) {
             Number cur = arguments[0];
@@ -41,12 +68,22 @@ public class Functions {
             Number sum = Rational.ZERO;
 
             while (true) {
-                setValue(invariant, cur);
-                sum = sum.add(evalMacro());
+                macro.setVariable(invariant, cur);
+                sum = sum.add(macro.eval());
                 if (cur.equals(stop)) break;
                 cur = cur.add(Rational.ONE);
             }
             return sum;
         }
+
+        @Override
+        protected double evaluateDouble(DoubleUnaryOperator body, double... arguments) {
+            double stop = arguments[1];
+            double sum = 0;
+            for (double cur = arguments[0]; cur <= stop; cur++) {
+                sum += body.applyAsDouble(cur);
+            }
+            return sum;
+        }
     };
 }
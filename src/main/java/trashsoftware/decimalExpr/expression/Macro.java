@@ -22,6 +22,20 @@ public class Macro {
         return root.eval(macroValues);
     }
 
+    /**
+     * Sets a local variable of this macro.
+     *
+     * @param name  name of the variable
+     * @param value value
+     */
+    public void setVariable(String name, Number value) {
+        macroValues.setVariable(name, value);
+    }
+
+    public Node getRoot() {
+        return root;
+    }
+
     public Values getMacroValues() {
         return macroValues;
     }
@@ -1,11 +1,12 @@
 package trashsoftware.decimalExpr.expression;
 
-import trashsoftware.decimalExpr.builder.Values;
+import trashsoftware.decimalExpr.BuildException;
 import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.util.Utilities;
 
-public abstract class MacroFunction extends AbstractFunction {
+import java.util.function.DoubleUnaryOperator;
 
-    protected Macro macro;
+public abstract class MacroFunction extends AbstractFunction {
 
     public MacroFunction(String name, int minArgCount, int maxArgCount) {
         super(name, minArgCount, maxArgCount);
@@ -16,51 +17,88 @@ public abstract class MacroFunction extends AbstractFunction {
     }
 
     public Number eval(String invariant, Macro macro, Number... arguments) {
-        if (arguments.length > maxArgCount || arguments.length < minArgCount) {
+        checkArgCount(arguments.length);
+        return evaluate(invariant, macro, arguments);
+    }
+
+    /**
+     * Evaluates the function in double mode.
+     *
+     * @param body      the macro, as a function of the invariant
+     * @param arguments arguments of this function call
+     * @return the return value of this function
+     */
+    public double evalDouble(DoubleUnaryOperator body, double... arguments) {
+        checkArgCount(arguments.length);
+        return evaluateDouble(body, arguments);
+    }
+
+    private void checkArgCount(int argCount) {
+        if (argCount > maxArgCount || argCount < minArgCount) {
             throw new IllegalArgumentException(String.format("Function '%s' expects %s arguments, got %d.",
                     name,
                     (maxArgCount == minArgCount ?
                             String.valueOf(maxArgCount) : String.format("%d to %d", minArgCount, maxArgCount)),
-                    arguments.length));
+                    argCount));
         }
-        this.macro = macro;
-        return evaluate(invariant, macro, arguments);
     }
 
     /**
      * Evaluates the function.
      * <p>
      * Number of arguments is already checked.
+     * <p>
+     * A macro function holds no state of its own, since one instance is shared by all expressions and threads.
+     * Everything about a call lives in {@code macro}: set the invariant with {@code macro.setVariable()}, then
+     * evaluate the macro with {@code macro.eval()}.
      *
      * @param invariant loop invariant
-     * @param macro     macro expression
+     * @param macro     macro expression, which is private to this call
      * @param arguments arguments of this function call, number of arguments already checked.
      * @return the return value of this function
      */
     protected abstract Number evaluate(String invariant, Macro macro, Number... arguments);
 
     /**
-     * Sets the variable to a value.
+     * Evaluates the function in double mode.
      * <p>
-     * This method is usually used to set the invariant.
+     * Number of arguments is already checked. The default implementation converts the arguments to numbers and
+     * calls {@code evaluate} with a macro that evaluates {@code body}, converting the invariant and the values.
+     * Override it to avoid the conversion.
      *
-     * @param varName name of variable
-     * @param value   value
+     * @param body      the macro, as a function of the invariant
+     * @param arguments arguments of this function call, number of arguments already checked.
+     * @return the return value of this function
      */
-    protected void setValue(String varName, Number value) {
-        macro.getMacroValues().setVariable(varName, value);
+    protected double evaluateDouble(DoubleUnaryOperator body, double... arguments) {
+        Number[] numbers = new Number[arguments.length];
+        for (int i = 0; i < numbers.length; i++) numbers[i] = Utilities.fromDouble(arguments[i]);
+        return Utilities.toDouble(evaluate(DoubleMacro.INVARIANT, new DoubleMacro(body), numbers));
     }
 
     /**
-     * Evaluate macro, using values that set by {@code setValue()}
-     *
-     * @return the evaluation result
+     * The macro of a call in double mode, as seen by {@code evaluate}.
      */
-    protected Number evalMacro() {
-        return macro.eval();
-    }
+    private static final class DoubleMacro extends Macro {
+        static final String INVARIANT = "invariant";
+
+        private final DoubleUnaryOperator body;
+        private double invariant = Double.NaN;
 
-//    protected Values getMacroValues() {
-//        return subValues;
-//    }
+        DoubleMacro(DoubleUnaryOperator body) {
+            super(null, null);
+            this.body = body;
+        }
+
+        @Override
+        public Number eval() {
+            return Utilities.fromDouble(body.applyAsDouble(invariant));
+        }
+
+        @Override
+        public void setVariable(String name, Number value) {
+            if (!INVARIANT.equals(name)) throw new BuildException("Unknown variable '" + name + "'");
+            invariant = Utilities.toDouble(value);
+        }
+    }
 }
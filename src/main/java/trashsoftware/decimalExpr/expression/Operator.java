@@ -22,6 +22,17 @@ public class Operator {
         this.precedence = precedence;
     }
 
+    /**
+     * Returns whether this operator always gives the same result for the same arguments and has no side effect.
+     * <p>
+     * Calls of pure operators on constant arguments are computed once when the expression is built.
+     *
+     * @return {@code true} if this operator is pure
+     */
+    public boolean isPure() {
+        return false;
+    }
+
     @Override
     public String toString() {
         return symbol;
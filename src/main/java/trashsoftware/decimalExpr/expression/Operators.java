@@ -6,6 +6,11 @@ import trashsoftware.decimalExpr.numbers.Real;
 public class Operators {
 
     public static final BinaryOperator ADD = new BinaryOperator("+", Operator.PRECEDENCE_ADDITION) {
+        @Override
+        public boolean isPure() {
+            return true;
+        }
+
         @Override
         public Number eval(Number left, Number right) {
             return left.add(right);
@@ -13,6 +18,11 @@ public class Operators {
     };
 
     public static final BinaryOperator SUB = new BinaryOperator("-", Operator.PRECEDENCE_SUBTRACTION) {
+        @Override
+        public boolean isPure() {
+            return true;
+        }
+
         @Override
         public Number eval(Number left, Number right) {
             return left.sub(right);
@@ -20,6 +30,11 @@ public class Operators {
     };
 
     public static final BinaryOperator MUL = new BinaryOperator("*", Operator.PRECEDENCE_MULTIPLICATION) {
+        @Override
+        public boolean isPure() {
+            return true;
+        }
+
         @Override
         public Number eval(Number left, Number right) {
             return left.mul(right);
@@ -27,6 +42,11 @@ public class Operators {
     };
 
     public static final BinaryOperator DIV = new BinaryOperator("/", Operator.PRECEDENCE_DIVISION) {
+        @Override
+        public boolean isPure() {
+            return true;
+        }
+
         @Override
         public Number eval(Number left, Number right) {
             return left.div(right);
@@ -34,6 +54,11 @@ public class Operators {
     };
 
     public static final BinaryOperator EXP = new BinaryOperator("^", Operator.PRECEDENCE_POWER) {
+        @Override
+        public boolean isPure() {
+            return true;
+        }
+
         @Override
         public Number eval(Number left, Number right) {
             return left.pow(right);
@@ -41,6 +66,11 @@ public class Operators {
     };
 
     public static final UnaryOperator NEG = new UnaryOperator("-", Operator.PRECEDENCE_NEGATION, true) {
+        @Override
+        public boolean isPure() {
+            return true;
+        }
+
         @Override
         public Number eval(Number value) {
             if (value instanceof Real) {
@@ -1,6 +1,7 @@
 package trashsoftware.decimalExpr.expression;
 
 import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.util.Utilities;
 
 public abstract class UnaryOperator extends Operator {
 
@@ -18,4 +19,17 @@ public abstract class UnaryOperator extends Operator {
     }
 
     public abstract Number eval(Number value);
+
+    /**
+     * Evaluates this operator in double mode.
+     * <p>
+     * The default implementation converts the operand to a number and calls {@code eval}. Override it to avoid the
+     * conversion.
+     *
+     * @param value the operand
+     * @return the result
+     */
+    public double evalDouble(double value) {
+        return Utilities.toDouble(eval(Utilities.fromDouble(value)));
+    }
 }
@@ -0,0 +1,26 @@
+package trashsoftware.decimalExpr.graph;
+
+import trashsoftware.decimalExpr.BuildException;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown when a formula would depend on itself.
+ */
+public class CyclicDependencyException extends BuildException {
+
+    private final List<String> cycle;
+
+    public CyclicDependencyException(List<String> cycle) {
+        super("Cyclic dependency: " + String.join(" -> ", cycle));
+        this.cycle = Collections.unmodifiableList(cycle);
+    }
+
+    /**
+     * @return names of the formulas in the cycle, starting and ending with the same name
+     */
+    public List<String> getCycle() {
+        return cycle;
+    }
+}
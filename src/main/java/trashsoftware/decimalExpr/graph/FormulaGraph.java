@@ -0,0 +1,370 @@
+package trashsoftware.decimalExpr.graph;
+
+import trashsoftware.decimalExpr.BuildException;
+import trashsoftware.decimalExpr.DecimalExpr;
+import trashsoftware.decimalExpr.builder.References;
+import trashsoftware.decimalExpr.numbers.NaN;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A set of named formulas that read each other, like the cells of a spreadsheet.
+ * <p>
+ * A formula is a {@code DecimalExpr}. The variables and macros it reads that are names of other formulas are its
+ * dependencies, and the value of a dependency is set on the formula before it is evaluated. Other names are
+ * inputs, set with {@link #setInput}. A name that is neither keeps the value it has in the expression.
+ * <p>
+ * When a formula is defined or an input changes, only the formulas that read it, directly or not, are evaluated
+ * again. They are evaluated in dependency order, and formulas that do not depend on each other are evaluated in
+ * parallel. Listeners are notified after each recompute. If a formula throws, its value is {@code NaN} and the
+ * exception is kept, see {@link #getError}.
+ *
+ * <pre>
+ * FormulaGraph graph = new FormulaGraph();
+ * graph.define("total", new DecimalExpr.Builder().expression("price*qty")
+ *         .variable("price").variable("qty").build());
+ * graph.define("taxed", new DecimalExpr.Builder().expression("total*1.2").variable("total").build());
+ * graph.setInput("price", 10);
+ * graph.setInput("qty", 3);
+ * Number taxed = graph.getValue("taxed");
+ * </pre>
+ * <p>
+ * The methods of a graph are synchronized, and the formulas must not be used outside the graph once defined.
+ */
+public final class FormulaGraph {
+
+    private final ForkJoinPool pool;
+    private final Map<String, Cell> cells = new LinkedHashMap<>();
+    private final Map<String, Number> inputs = new HashMap<>();
+
+    /**
+     * Formulas that read each name, whether the name is a formula, an input or neither.
+     */
+    private final Map<String, Set<String>> readers = new HashMap<>();
+    private final List<FormulaListener> listeners = new CopyOnWriteArrayList<>();
+
+    public FormulaGraph() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool the pool that evaluates independent formulas in parallel
+     */
+    public FormulaGraph(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    private static final class Cell {
+        final String name;
+        final DecimalExpr expr;
+        final Set<String> variables;
+        final Set<String> macros;
+        final Set<String> dependencies;
+        Number value;
+        RuntimeException error;
+
+        Cell(String name, DecimalExpr expr) {
+            this.name = name;
+            this.expr = expr;
+            References references = expr.getReferences();
+            this.variables = references.getVariables();
+            this.macros = references.getMacros();
+            Set<String> all = new LinkedHashSet<>(variables);
+            all.addAll(macros);
+            this.dependencies = Collections.unmodifiableSet(all);
+        }
+    }
+
+    /**
+     * Defines or replaces a formula, and computes it and the formulas that read it.
+     *
+     * @param name name of the formula
+     * @param expr the formula
+     * @throws CyclicDependencyException if the formula would depend on itself
+     */
+    public synchronized void define(String name, DecimalExpr expr) {
+        Cell cell = new Cell(name, expr);
+        List<String> cycle = findCycle(name, cell.dependencies);
+        if (cycle != null) throw new CyclicDependencyException(cycle);
+
+        Cell old = cells.put(name, cell);
+        if (old != null) unlink(old);
+        for (String dependency : cell.dependencies) {
+            readers.computeIfAbsent(dependency, k -> new LinkedHashSet<>()).add(name);
+        }
+        // a formula replaces an input of the same name
+        inputs.remove(name);
+        recompute(Set.of(name));
+    }
+
+    /**
+     * Removes a formula. The formulas that read it are computed again, with the name as an input.
+     *
+     * @param name name of the formula
+     */
+    public synchronized void remove(String name) {
+        Cell old = cells.remove(name);
+        if (old == null) return;
+        unlink(old);
+        recompute(readers.getOrDefault(name, Set.of()));
+    }
+
+    public synchronized void setInput(String name, Number value) {
+        setInputs(Map.of(name, value));
+    }
+
+    public synchronized void setInput(String name, long value) {
+        setInput(name, Rational.valueOf(value));
+    }
+
+    /**
+     * Sets several inputs, and computes the formulas they affect once.
+     *
+     * @param values values of inputs, by name
+     */
+    public synchronized void setInputs(Map<String, ? extends Number> values) {
+        Set<String> changed = new LinkedHashSet<>();
+        for (Map.Entry<String, ? extends Number> entry : values.entrySet()) {
+            if (cells.containsKey(entry.getKey())) {
+                throw new BuildException("'" + entry.getKey() + "' is a formula, not an input");
+            }
+            inputs.put(entry.getKey(), entry.getValue());
+            changed.addAll(readers.getOrDefault(entry.getKey(), Set.of()));
+        }
+        recompute(changed);
+    }
+
+    /**
+     * @param name name of a formula or an input
+     * @return the value, or {@code null} if the name is neither
+     */
+    public synchronized Number getValue(String name) {
+        return valueOf(name);
+    }
+
+    /**
+     * @param name name of a formula
+     * @return the exception thrown by the last evaluation of the formula, or {@code null} if it succeeded
+     */
+    public synchronized RuntimeException getError(String name) {
+        return cell(name).error;
+    }
+
+    public synchronized boolean hasFormula(String name) {
+        return cells.containsKey(name);
+    }
+
+    /**
+     * @param name name of a formula
+     * @return names of the variables and macros the formula reads
+     */
+    public synchronized Set<String> getDependencies(String name) {
+        return cell(name).dependencies;
+    }
+
+    /**
+     * @param name name of a formula or an input
+     * @return names of the formulas that read the name directly
+     */
+    public synchronized Set<String> getDependents(String name) {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(readers.getOrDefault(name, Set.of())));
+    }
+
+    /**
+     * @return names of all formulas, each after the formulas it depends on
+     */
+    public synchronized List<String> topologicalOrder() {
+        List<String> order = new ArrayList<>(cells.size());
+        for (List<Cell> level : levels(cells.keySet())) {
+            for (Cell cell : level) order.add(cell.name);
+        }
+        return order;
+    }
+
+    public void addListener(FormulaListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(FormulaListener listener) {
+        listeners.remove(listener);
+    }
+
+    private Cell cell(String name) {
+        Cell cell = cells.get(name);
+        if (cell == null) throw new BuildException("Unknown formula '" + name + "'");
+        return cell;
+    }
+
+    private Number valueOf(String name) {
+        Cell cell = cells.get(name);
+        return cell == null ? inputs.get(name) : cell.value;
+    }
+
+    private void unlink(Cell cell) {
+        for (String dependency : cell.dependencies) {
+            Set<String> names = readers.get(dependency);
+            names.remove(cell.name);
+            if (names.isEmpty()) readers.remove(dependency);
+        }
+    }
+
+    /**
+     * Returns a path from {@code name} back to itself through {@code dependencies}, if there is one.
+     */
+    private List<String> findCycle(String name, Set<String> dependencies) {
+        Map<String, String> parents = new HashMap<>();
+        Deque<String> stack = new ArrayDeque<>();
+        for (String dependency : dependencies) {
+            if (parents.putIfAbsent(dependency, name) == null) stack.push(dependency);
+        }
+        while (!stack.isEmpty()) {
+            String current = stack.pop();
+            if (current.equals(name)) {
+                List<String> cycle = new ArrayList<>();
+                cycle.add(name);
+                for (String node = parents.get(name); !node.equals(name); node = parents.get(node)) {
+                    cycle.add(node);
+                }
+                cycle.add(name);
+                Collections.reverse(cycle);
+                return cycle;
+            }
+            Cell cell = cells.get(current);
+            if (cell == null) continue;
+            for (String dependency : cell.dependencies) {
+                if (parents.putIfAbsent(dependency, current) == null) stack.push(dependency);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Evaluates the formulas whose dependencies changed, and the formulas that read them.
+     *
+     * @param changed names of formulas whose dependencies changed
+     */
+    private void recompute(Set<String> changed) {
+        Set<String> affected = new LinkedHashSet<>();
+        Deque<String> queue = new ArrayDeque<>(changed);
+        while (!queue.isEmpty()) {
+            String name = queue.poll();
+            if (cells.containsKey(name) && affected.add(name)) {
+                queue.addAll(readers.getOrDefault(name, Set.of()));
+            }
+        }
+        if (affected.isEmpty()) return;
+
+        List<Cell> changedCells = new ArrayList<>();
+        List<Number> oldValues = new ArrayList<>();
+        for (List<Cell> level : levels(affected)) {
+            Number[] before = new Number[level.size()];
+            for (int i = 0; i < before.length; i++) before[i] = level.get(i).value;
+            evaluateAll(level);
+            for (int i = 0; i < before.length; i++) {
+                if (!Objects.equals(before[i], level.get(i).value)) {
+                    changedCells.add(level.get(i));
+                    oldValues.add(before[i]);
+                }
+            }
+        }
+        for (int i = 0; i < changedCells.size(); i++) {
+            Cell cell = changedCells.get(i);
+            for (FormulaListener listener : listeners) listener.valueChanged(cell.name, oldValues.get(i), cell.value);
+        }
+    }
+
+    /**
+     * Groups formulas into levels, so that each formula only depends on formulas of earlier levels.
+     *
+     * @param names names of formulas, closed under their readers
+     * @return the levels
+     */
+    private List<List<Cell>> levels(Set<String> names) {
+        Map<String, Integer> pending = new HashMap<>();
+        List<Cell> level = new ArrayList<>();
+        for (String name : names) {
+            Cell cell = cells.get(name);
+            int count = 0;
+            for (String dependency : cell.dependencies) {
+                if (names.contains(dependency) && cells.containsKey(dependency)) count++;
+            }
+            pending.put(name, count);
+            if (count == 0) level.add(cell);
+        }
+        List<List<Cell>> levels = new ArrayList<>();
+        while (!level.isEmpty()) {
+            levels.add(level);
+            List<Cell> next = new ArrayList<>();
+            for (Cell cell : level) {
+                for (String reader : readers.getOrDefault(cell.name, Set.of())) {
+                    Integer count = pending.get(reader);
+                    if (count == null) continue;
+                    pending.put(reader, count - 1);
+                    if (count == 1) next.add(cells.get(reader));
+                }
+            }
+            level = next;
+        }
+        return levels;
+    }
+
+    private void evaluateAll(List<Cell> level) {
+        if (level.size() == 1 || pool.getParallelism() <= 1) {
+            for (Cell cell : level) evaluate(cell);
+            return;
+        }
+        List<RecursiveAction> actions = new ArrayList<>(level.size());
+        for (Cell cell : level) {
+            actions.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    evaluate(cell);
+                }
+            });
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ForkJoinTask.invokeAll(actions);
+            }
+        });
+    }
+
+    /**
+     * Evaluates a formula on the current values of its dependencies. Formulas of a level are evaluated in parallel,
+     * which only read the values of earlier levels.
+     */
+    private void evaluate(Cell cell) {
+        try {
+            for (String variable : cell.variables) {
+                Number value = valueOf(variable);
+                if (value != null) cell.expr.setVariable(variable, value);
+            }
+            for (String macro : cell.macros) {
+                Number value = valueOf(macro);
+                if (value != null) cell.expr.setMacro(macro, value);
+            }
+            cell.value = cell.expr.evaluate();
+            cell.error = null;
+        } catch (RuntimeException e) {
+            cell.value = NaN.NaN;
+            cell.error = e;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package trashsoftware.decimalExpr.graph;
+
+import trashsoftware.decimalExpr.numbers.Number;
+
+/**
+ * Receives the changes of formula values in a {@code FormulaGraph}.
+ */
+@FunctionalInterface
+public interface FormulaListener {
+
+    /**
+     * Called after a recompute, once for each formula whose value changed, in dependency order.
+     *
+     * @param name     name of the formula
+     * @param oldValue the value before the recompute, {@code null} if the formula was not computed before
+     * @param newValue the new value
+     */
+    void valueChanged(String name, Number oldValue, Number newValue);
+}
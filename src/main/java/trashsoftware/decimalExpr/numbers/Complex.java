@@ -143,6 +143,11 @@ public class Complex implements Number {
         } else return false;
     }
 
+    @Override
+    public int hashCode() {
+        return Objects.hash(real, imaginary);
+    }
+
     @Override
     public String toString() {
         return real.signum() == 0 ?
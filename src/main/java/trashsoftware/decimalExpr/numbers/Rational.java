@@ -9,35 +9,120 @@ import java.util.Objects;
 
 public class Rational extends Real {
 
-    public static final Rational ZERO = Rational.fromBigInt(BigInteger.ZERO);
-    public static final Rational ONE = Rational.fromBigInt(BigInteger.ONE);
-    public static final Rational TWO = Rational.fromBigInt(BigInteger.TWO);
-    public static final Rational NEG_ONE = ONE.negateRational();
+    /**
+     * Cached small integers, from {@code CACHE_LOW} to {@code CACHE_HIGH} inclusive.
+     */
+    private static final int CACHE_LOW = -128;
+    private static final int CACHE_HIGH = 1024;
+    private static final Rational[] CACHE = createCache();
 
-    public final BigInteger numerator;
-    public final BigInteger denominator;
+    public static final Rational ZERO = Rational.valueOf(0);
+    public static final Rational ONE = Rational.valueOf(1);
+    public static final Rational TWO = Rational.valueOf(2);
+    public static final Rational NEG_ONE = Rational.valueOf(-1);
+
+    /**
+     * The numerator and denominator of the small form, only valid if {@code bigNumerator} is {@code null}.
+     * <p>
+     * A rational is stored in the small form iff both its numerator and denominator fit in a {@code long}, and
+     * its numerator is not {@code Long.MIN_VALUE}. Therefore, the two forms are canonical and never overlap.
+     */
+    private final long num;
+    private final long den;
 
+    /**
+     * The numerator and denominator of the big form, both {@code null} if this rational is in the small form.
+     */
+    private final BigInteger bigNumerator;
+    private final BigInteger bigDenominator;
+
+    /**
+     * Creates a rational in the small form.
+     * <p>
+     * Precondition: gcd(num, den) = 1, den > 0, num != {@code Long.MIN_VALUE}
+     */
+    private Rational(long num, long den) {
+        this.num = num;
+        this.den = den;
+        this.bigNumerator = null;
+        this.bigDenominator = null;
+    }
+
+    /**
+     * Creates a rational in the big form.
+     * <p>
+     * Precondition: gcd(numerator, denominator) = 1, denominator > 0, and the value does not fit the small form.
+     */
     private Rational(BigInteger numerator, BigInteger denominator) {
-        if (denominator.equals(BigInteger.ZERO)) throw new ArithmeticException("Divide by zero");
-        BigInteger[] numDenom = simplify(numerator, denominator);
-        this.numerator = numDenom[0];
-        this.denominator = numDenom[1];
+        this.num = 0;
+        this.den = 0;
+        this.bigNumerator = numerator;
+        this.bigDenominator = denominator;
     }
 
     public static Rational fromBigInt(BigInteger bigInteger) {
-        return new Rational(bigInteger, BigInteger.ONE);
+        if (bigInteger.bitLength() < Long.SIZE) return valueOf(bigInteger.longValue());
+        return fromReduced(bigInteger, BigInteger.ONE);
     }
 
     public static Rational fromFraction(BigInteger numerator, BigInteger denominator) {
-        return new Rational(numerator, denominator);
+        if (denominator.signum() == 0) throw new ArithmeticException("Divide by zero");
+        if (numerator.bitLength() < Long.SIZE && denominator.bitLength() < Long.SIZE) {
+            return fromFraction(numerator.longValue(), denominator.longValue());
+        }
+        BigInteger[] numDenom = simplify(numerator, denominator);
+        return fromReduced(numDenom[0], numDenom[1]);
     }
 
     public static Rational fromFraction(long numerator, long denominator) {
-        return new Rational(BigInteger.valueOf(numerator), BigInteger.valueOf(denominator));
+        if (denominator == 0) throw new ArithmeticException("Divide by zero");
+        if (numerator == Long.MIN_VALUE || denominator == Long.MIN_VALUE) {
+            BigInteger[] numDenom = simplify(BigInteger.valueOf(numerator), BigInteger.valueOf(denominator));
+            return fromReduced(numDenom[0], numDenom[1]);
+        }
+        if (denominator < 0) {
+            numerator = -numerator;
+            denominator = -denominator;
+        }
+        long gcd = gcd(Math.abs(numerator), denominator);
+        return fromReducedSmall(numerator / gcd, denominator / gcd);
     }
 
     public static Rational valueOf(long value) {
-        return fromBigInt(BigInteger.valueOf(value));
+        if (value >= CACHE_LOW && value <= CACHE_HIGH) return CACHE[(int) value - CACHE_LOW];
+        if (value == Long.MIN_VALUE) return new Rational(BigInteger.valueOf(value), BigInteger.ONE);
+        return new Rational(value, 1);
+    }
+
+    private static Rational[] createCache() {
+        Rational[] cache = new Rational[CACHE_HIGH - CACHE_LOW + 1];
+        for (int i = 0; i < cache.length; i++) {
+            cache[i] = new Rational(i + CACHE_LOW, 1);
+        }
+        return cache;
+    }
+
+    /**
+     * Creates a rational from a reduced small fraction, using the cache if possible.
+     * <p>
+     * Precondition: gcd(num, den) = 1, den > 0, num != {@code Long.MIN_VALUE}
+     */
+    private static Rational fromReducedSmall(long num, long den) {
+        if (den == 1) return valueOf(num);
+        return new Rational(num, den);
+    }
+
+    /**
+     * Creates a rational from a reduced big fraction, switching to the small form if the value fits.
+     * <p>
+     * Precondition: gcd(numerator, denominator) = 1, denominator > 0
+     */
+    private static Rational fromReduced(BigInteger numerator, BigInteger denominator) {
+        if (numerator.bitLength() < Long.SIZE && denominator.bitLength() < Long.SIZE) {
+            long n = numerator.longValue();
+            if (n != Long.MIN_VALUE) return fromReducedSmall(n, denominator.longValue());
+        }
+        return new Rational(numerator, denominator);
     }
 
     /**
@@ -88,7 +173,7 @@ public class Rational extends Real {
                 }
             }
         }
-        return new Rational(numerator, denominator);
+        return fromFraction(numerator, denominator);
     }
 
     /**
@@ -101,40 +186,59 @@ public class Rational extends Real {
      * @return the array of numerator, denominator
      */
     private static BigInteger[] simplify(BigInteger numerator, BigInteger denominator) {
-        int sig = numerator.signum() * denominator.signum();
         BigInteger gcd = gcd(numerator, denominator);
-        if (sig < 0) {
-            return new BigInteger[]{numerator.divide(gcd).abs().negate(), denominator.divide(gcd).abs()};
+        if (!gcd.equals(BigInteger.ONE)) {
+            numerator = numerator.divide(gcd);
+            denominator = denominator.divide(gcd);
+        }
+        if (denominator.signum() < 0) {
+            return new BigInteger[]{numerator.negate(), denominator.negate()};
         } else {
-            return new BigInteger[]{numerator.divide(gcd).abs(), denominator.divide(gcd).abs()};
+            return new BigInteger[]{numerator, denominator};
+        }
+    }
+
+    /**
+     * Returns the greatest common divisor of two non-negative {@code long}s.
+     * <p>
+     * This method performs the binary GCD algorithm, which only uses shifts and subtractions.
+     *
+     * @param x a non-negative number
+     * @param y another non-negative number
+     * @return the greatest common divisor
+     */
+    static long gcd(long x, long y) {
+        if (x == 0) return y;
+        if (y == 0) return x;
+        int xZeros = Long.numberOfTrailingZeros(x);
+        int yZeros = Long.numberOfTrailingZeros(y);
+        int shift = Math.min(xZeros, yZeros);
+        x >>>= xZeros;
+        y >>>= yZeros;
+        while (x != y) {
+            if (x > y) {
+                x -= y;
+                x >>>= Long.numberOfTrailingZeros(x);
+            } else {
+                y -= x;
+                y >>>= Long.numberOfTrailingZeros(y);
+            }
         }
+        return x << shift;
     }
 
     /**
      * Returns the greatest common divisor of two {@code BigInteger}s.
      * <p>
-     * This method performs the classic Euclidean Algorithm.
+     * This method delegates to {@link BigInteger#gcd(BigInteger)}, which performs the hybrid binary GCD algorithm.
+     * The result is always non-negative.
      *
      * @param x a number
      * @param y another number
      * @return the greatest common divisor
      */
     public static BigInteger gcd(BigInteger x, BigInteger y) {
-        BigInteger q, b;
-        if (x.abs().compareTo(y.abs()) < 0) {  // a < b
-            q = y;
-            b = x;
-        } else {
-            q = x;
-            b = y;
-        }
-        if (b.equals(BigInteger.ZERO)) return q;
-        BigInteger[] dr;  // divisor and remainder
-        while (!(dr = q.divideAndRemainder(b))[1].equals(BigInteger.ZERO)) {
-            q = b;
-            b = dr[1];
-        }
-        return b;
+        return x.gcd(y);
     }
 
     private static String appendRepeatPart(String original, String repeat, int appendCount) {
@@ -146,13 +250,50 @@ public class Rational extends Real {
         return stringBuilder.toString();
     }
 
+    /**
+     * @return the numerator, which carries the sign of this rational
+     */
+    public BigInteger getNumerator() {
+        return isSmall() ? BigInteger.valueOf(num) : bigNumerator;
+    }
+
+    /**
+     * @return the denominator, which is always positive
+     */
+    public BigInteger getDenominator() {
+        return isSmall() ? BigInteger.valueOf(den) : bigDenominator;
+    }
+
+    /**
+     * @return {@code getNumerator().bitLength()}, without allocating
+     */
+    public int numeratorBitLength() {
+        if (!isSmall()) return bigNumerator.bitLength();
+        return Long.SIZE - Long.numberOfLeadingZeros(num < 0 ? ~num : num);
+    }
+
+    /**
+     * @return {@code getDenominator().bitLength()}, without allocating
+     */
+    public int denominatorBitLength() {
+        return isSmall() ? Long.SIZE - Long.numberOfLeadingZeros(den) : bigDenominator.bitLength();
+    }
+
+    /**
+     * @return {@code true} iff this rational is stored in the {@code long}-backed small form
+     */
+    boolean isSmall() {
+        return bigNumerator == null;
+    }
+
     @Override
     public BigDecimal bigDecimalValue() {
+        if (isSmall() && den == 1) return BigDecimal.valueOf(num);
         return ratio(Decimal.DEFAULT_CONTEXT);
     }
 
     public long longValue() {
-        if (isInt()) return numerator.longValue();
+        if (isInt()) return isSmall() ? num : bigNumerator.longValue();
         else throw new ArithmeticException("Cannot convert non-int rational to integer");
     }
 
@@ -161,11 +302,12 @@ public class Rational extends Real {
     }
 
     private BigDecimal ratio(MathContext roundingMode) {
-        return new BigDecimal(numerator).divide(new BigDecimal(denominator), roundingMode);
+        if (isSmall()) return BigDecimal.valueOf(num).divide(BigDecimal.valueOf(den), roundingMode);
+        return new BigDecimal(bigNumerator).divide(new BigDecimal(bigDenominator), roundingMode);
     }
 
     public boolean isInt() {
-        return denominator.equals(BigInteger.ONE);
+        return isSmall() ? den == 1 : bigDenominator.equals(BigInteger.ONE);
     }
 
     public boolean exact() {
@@ -229,7 +371,7 @@ public class Rational extends Real {
     public Number pow(Number exp) {
         if (exp instanceof Rational) {
             Rational r = (Rational) exp;
-            if (r.isInt()) return pow(r.numerator.intValue());
+            if (r.isInt()) return pow(r.getNumerator().intValue());
         }
         return null;
     }
@@ -256,33 +398,30 @@ public class Rational extends Real {
 
     @Override
     public int signum() {
-        return numerator.signum();
+        return isSmall() ? Long.signum(num) : bigNumerator.signum();
     }
 
-//    @Override
-//    public int compareTo(Real o) {
-//        if (o instanceof Rational) {
-//            Rational diff = subtractRational((Rational) o);
-//            return diff.signum();
-//        } else {
-//            return bigDecimalValue().compareTo(o.bigDecimalValue());
-//        }
-//    }
+    @Override
+    public int compareTo(Real o) {
+        if (o instanceof Rational) return compareRational((Rational) o);
+        return super.compareTo(o);
+    }
 
     @Override
     public String toString() {
-        return isInt() ? numerator.toString() : (numerator.toString() + "/" + denominator.toString());
+        if (isSmall()) return den == 1 ? Long.toString(num) : (num + "/" + den);
+        return isInt() ? bigNumerator.toString() : (bigNumerator.toString() + "/" + bigDenominator.toString());
     }
 
     @Override
     public String toDecimalString() {
-        if (numerator.equals(BigInteger.ZERO)) return "0";
+        if (signum() == 0) return "0";
 
         StringBuilder resultBuilder = new StringBuilder();
         if (signum() < 0) resultBuilder.append('-');  // negative
 
-        BigInteger denom = denominator.abs();
-        BigInteger num = numerator.abs();
+        BigInteger denom = getDenominator();
+        BigInteger num = getNumerator().abs();
         BigInteger[] dr = num.divideAndRemainder(denom);  // 'dr' always contains the remainder times ten
         dr[1] = dr[1].multiply(BigInteger.TEN);
         resultBuilder.append(dr[0]);
@@ -315,48 +454,195 @@ public class Rational extends Real {
 
         Rational rational = (Rational) o;
 
-        return Objects.equals(numerator, rational.numerator) &&
-                Objects.equals(denominator, rational.denominator);
+        if (isSmall()) return rational.isSmall() && num == rational.num && den == rational.den;
+        return Objects.equals(bigNumerator, rational.bigNumerator) &&
+                Objects.equals(bigDenominator, rational.bigDenominator);
+    }
+
+    /**
+     * Equal rationals are always in the same form, so each form hashes its own fields.
+     */
+    @Override
+    public int hashCode() {
+        if (isSmall()) return Long.hashCode(num) * 31 + Long.hashCode(den);
+        return bigNumerator.hashCode() * 31 + bigDenominator.hashCode();
     }
 
     private Rational addRational(Rational val) {
-        BigInteger denom = denominator.multiply(val.denominator);
-        BigInteger num = numerator.multiply(val.denominator).add(val.numerator.multiply(denominator));
-        return new Rational(num, denom);
+        if (isSmall() && val.isSmall()) {
+            Rational res = addSmall(num, den, val.num, val.den);
+            if (res != null) return res;
+        }
+        return addBig(getNumerator(), getDenominator(), val.getNumerator(), val.getDenominator());
     }
 
     private Rational subtractRational(Rational b) {
-        Rational negativeB = b.negateRational();
-        return addRational(negativeB);
+        if (isSmall() && b.isSmall()) {
+            Rational res = addSmall(num, den, -b.num, b.den);
+            if (res != null) return res;
+        }
+        return addBig(getNumerator(), getDenominator(), b.getNumerator().negate(), b.getDenominator());
     }
 
     private Rational multiplyRational(Rational multiplier) {
-        BigInteger denom = denominator.multiply(multiplier.denominator);
-        BigInteger num = numerator.multiply(multiplier.numerator);
-        return new Rational(num, denom);
+        if (isSmall() && multiplier.isSmall()) {
+            Rational res = multiplySmall(num, den, multiplier.num, multiplier.den);
+            if (res != null) return res;
+        }
+        return multiplyBig(getNumerator(), getDenominator(), multiplier.getNumerator(), multiplier.getDenominator());
     }
 
     private Rational divideRational(Rational divisor) {
-        BigInteger denom = denominator.multiply(divisor.numerator);
-        BigInteger num = numerator.multiply(divisor.denominator);
-        return new Rational(num, denom);
+        if (divisor.signum() == 0) throw new ArithmeticException("Divide by zero");
+        if (isSmall() && divisor.isSmall()) {
+            // the divisor is non-zero, and its numerator is never Long.MIN_VALUE
+            Rational res = divisor.num > 0 ?
+                    multiplySmall(num, den, divisor.den, divisor.num) :
+                    multiplySmall(num, den, -divisor.den, -divisor.num);
+            if (res != null) return res;
+        }
+        BigInteger divisorNum = divisor.getNumerator();
+        BigInteger divisorDen = divisor.getDenominator();
+        if (divisorNum.signum() < 0) {
+            divisorNum = divisorNum.negate();
+            divisorDen = divisorDen.negate();
+        }
+        return multiplyBig(getNumerator(), getDenominator(), divisorDen, divisorNum);
+    }
+
+    /**
+     * Compares two rationals by cross multiplication, without creating the difference.
+     * <p>
+     * Since the denominators are positive, a/b < c/d iff ad < cb. If the bit lengths of the two products are known
+     * to differ, the multiplications are skipped.
+     */
+    private int compareRational(Rational r) {
+        int sig = signum();
+        int rSig = r.signum();
+        if (sig != rSig) return sig < rSig ? -1 : 1;
+        if (sig == 0) return 0;
+        if (isSmall() && r.isSmall()) {
+            try {
+                return Long.compare(Math.multiplyExact(num, r.den), Math.multiplyExact(r.num, den));
+            } catch (ArithmeticException e) {
+                // overflow, fall through to the big comparison
+            }
+        }
+        BigInteger a = getNumerator();
+        BigInteger b = getDenominator();
+        BigInteger c = r.getNumerator();
+        BigInteger d = r.getDenominator();
+
+        // bitLength(x * y) is either bitLength(x) + bitLength(y) or that minus 1
+        int leftBits = a.bitLength() + d.bitLength();
+        int rightBits = c.bitLength() + b.bitLength();
+        if (leftBits > rightBits + 1) return sig;  // |ad| > |cb|
+        if (rightBits > leftBits + 1) return -sig;  // |ad| < |cb|
+        return a.multiply(d).compareTo(c.multiply(b));
     }
 
     private Rational moduloRational(Rational divisor) {
-        BigInteger denom = denominator.multiply(divisor.denominator);
-        BigInteger thisNum = numerator.multiply(divisor.denominator);
-        BigInteger otherNum = divisor.numerator.multiply(denominator);
+        BigInteger denominator = getDenominator();
+        BigInteger divisorDenominator = divisor.getDenominator();
+        BigInteger denom = denominator.multiply(divisorDenominator);
+        BigInteger thisNum = getNumerator().multiply(divisorDenominator);
+        BigInteger otherNum = divisor.getNumerator().multiply(denominator);
         BigInteger rem = thisNum.remainder(otherNum);
-        return new Rational(rem, denom);
+        return fromFraction(rem, denom);
     }
 
     private Rational negateRational() {
-        return new Rational(numerator.negate(), denominator);
+        if (isSmall()) return fromReducedSmall(-num, den);
+        return fromReduced(bigNumerator.negate(), bigDenominator);
+    }
+
+    /**
+     * Returns a/b + c/d, or {@code null} if the computation overflows {@code long}.
+     * <p>
+     * Both fractions must be reduced and have positive denominators. Since gcd(a, b) = gcd(c, d) = 1, only
+     * the gcd of the denominators can remain in the result, so the result is reduced by gcd(t, gcd(b, d)).
+     */
+    private static Rational addSmall(long a, long b, long c, long d) {
+        try {
+            if (b == 1 && d == 1) return valueOf(Math.addExact(a, c));
+            long g = gcd(b, d);
+            if (g == 1) {
+                long n = Math.addExact(Math.multiplyExact(a, d), Math.multiplyExact(c, b));
+                return n == Long.MIN_VALUE ? null : fromReducedSmall(n, Math.multiplyExact(b, d));
+            }
+            long t = Math.addExact(Math.multiplyExact(a, d / g), Math.multiplyExact(c, b / g));
+            if (t == 0) return ZERO;
+            if (t == Long.MIN_VALUE) return null;
+            long g2 = gcd(Math.abs(t), g);
+            return fromReducedSmall(t / g2, Math.multiplyExact(b / g, d / g2));
+        } catch (ArithmeticException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns (a/b) * (c/d), or {@code null} if the computation overflows {@code long}.
+     * <p>
+     * Both fractions must be reduced and have positive denominators. The cross terms are cancelled before
+     * multiplying, so the result is already reduced.
+     */
+    private static Rational multiplySmall(long a, long b, long c, long d) {
+        if (a == 0 || c == 0) return ZERO;
+        try {
+            long g1 = gcd(Math.abs(a), d);
+            long g2 = gcd(Math.abs(c), b);
+            long n = Math.multiplyExact(a / g1, c / g2);
+            if (n == Long.MIN_VALUE) return null;
+            return fromReducedSmall(n, Math.multiplyExact(b / g2, d / g1));
+        } catch (ArithmeticException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a/b + c/d, using the method from Knuth's TAOCP 4.5.1.
+     * <p>
+     * Both fractions must be reduced and have positive denominators. Let g = gcd(b, d), then
+     * t = a(d/g) + c(b/g), and the result is (t/g2) / ((b/g)(d/g2)) where g2 = gcd(t, g).
+     * Both gcd computations run on operands that are smaller than the full cross products.
+     */
+    private static Rational addBig(BigInteger a, BigInteger b, BigInteger c, BigInteger d) {
+        BigInteger g = b.gcd(d);
+        if (g.equals(BigInteger.ONE)) {
+            return fromReduced(a.multiply(d).add(c.multiply(b)), b.multiply(d));
+        }
+        BigInteger bg = b.divide(g);
+        BigInteger t = a.multiply(d.divide(g)).add(c.multiply(bg));
+        if (t.signum() == 0) return ZERO;
+        BigInteger g2 = t.gcd(g);
+        if (g2.equals(BigInteger.ONE)) return fromReduced(t, bg.multiply(d));
+        return fromReduced(t.divide(g2), bg.multiply(d.divide(g2)));
+    }
+
+    /**
+     * Returns (a/b) * (c/d), using the method from Knuth's TAOCP 4.5.1.
+     * <p>
+     * Both fractions must be reduced and have positive denominators. The cross terms gcd(a, d) and gcd(c, b) are
+     * cancelled before multiplying, so the result is already reduced and no gcd of the full products is needed.
+     */
+    private static Rational multiplyBig(BigInteger a, BigInteger b, BigInteger c, BigInteger d) {
+        if (a.signum() == 0 || c.signum() == 0) return ZERO;
+        BigInteger g1 = a.gcd(d);
+        BigInteger g2 = c.gcd(b);
+        if (!g1.equals(BigInteger.ONE)) {
+            a = a.divide(g1);
+            d = d.divide(g1);
+        }
+        if (!g2.equals(BigInteger.ONE)) {
+            c = c.divide(g2);
+            b = b.divide(g2);
+        }
+        return fromReduced(a.multiply(c), b.multiply(d));
     }
 
     private Real nonNegSqrt() {
-        BigInteger[] numeratorSqrtRem = numerator.sqrtAndRemainder();
-        BigInteger[] denominatorSqrtRem = denominator.sqrtAndRemainder();
+        BigInteger[] numeratorSqrtRem = getNumerator().sqrtAndRemainder();
+        BigInteger[] denominatorSqrtRem = getDenominator().sqrtAndRemainder();
         if (numeratorSqrtRem[1].equals(BigInteger.ZERO) && denominatorSqrtRem[1].equals(BigInteger.ZERO)) {
             return Rational.fromFraction(numeratorSqrtRem[0], denominatorSqrtRem[0]);
         } else {
@@ -367,9 +653,10 @@ public class Rational extends Real {
     Rational integerPower(int pow) {
         int nonNegPow = pow;
         if (pow < 0) nonNegPow = -pow;
-        BigInteger newNumerator = numerator.pow(nonNegPow);
-        BigInteger newDenominator = denominator.pow(nonNegPow);
-        Rational res = fromFraction(newNumerator, newDenominator);
+        // the power of a reduced fraction is still reduced
+        BigInteger newNumerator = getNumerator().pow(nonNegPow);
+        BigInteger newDenominator = getDenominator().pow(nonNegPow);
+        Rational res = fromReduced(newNumerator, newDenominator);
         if (pow < 0) {
             return (Rational) ONE.div(res);
         } else return res;
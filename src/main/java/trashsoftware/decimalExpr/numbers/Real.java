@@ -19,12 +19,15 @@ public abstract class Real implements Number, Comparable<Real> {
 
     /**
      * Returns 1 if this > o, 0 if this == o, -1 if this < o.
+     * <p>
+     * The default implementation compares the {@code BigDecimal} values, which is what the subtraction between
+     * different kinds of reals does. Exact comparison between rationals is done in {@code Rational}.
      *
      * @param o the other real number
      * @return the comparison result
      */
     @Override
     public int compareTo(Real o) {
-        return ((Real) sub(o)).signum();
+        return bigDecimalValue().compareTo(o.bigDecimalValue());
     }
 }
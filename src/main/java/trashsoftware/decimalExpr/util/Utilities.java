@@ -1,5 +1,11 @@
 package trashsoftware.decimalExpr.util;
 
+import trashsoftware.decimalExpr.numbers.Decimal;
+import trashsoftware.decimalExpr.numbers.Infinity;
+import trashsoftware.decimalExpr.numbers.NaN;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Real;
+
 import java.math.BigDecimal;
 import java.util.Arrays;
 
@@ -23,4 +29,30 @@ public class Utilities {
     public static boolean isIntegerValue(BigDecimal bd) {
         return bd.signum() == 0 || bd.scale() <= 0 || bd.stripTrailingZeros().scale() <= 0;
     }
+
+    /**
+     * Converts a {@code double} to a number, for calling exact operations in double mode.
+     *
+     * @param value the double value
+     * @return the number, {@code NaN} or an {@code Infinity} if {@code value} is not finite
+     */
+    public static Number fromDouble(double value) {
+        if (Double.isNaN(value)) return NaN.NaN;
+        if (value == Double.POSITIVE_INFINITY) return Infinity.POSITIVE_INFINITY;
+        if (value == Double.NEGATIVE_INFINITY) return Infinity.NEGATIVE_INFINITY;
+        return Decimal.createDecimal(value);
+    }
+
+    /**
+     * Converts a number to the nearest {@code double}.
+     *
+     * @param number the number
+     * @return the double value, {@code Double.NaN} if {@code number} is not real
+     */
+    public static double toDouble(Number number) {
+        if (number instanceof Real) return ((Real) number).doubleValue();
+        if (number == Infinity.POSITIVE_INFINITY) return Double.POSITIVE_INFINITY;
+        if (number == Infinity.NEGATIVE_INFINITY) return Double.NEGATIVE_INFINITY;
+        return Double.NaN;
+    }
 }
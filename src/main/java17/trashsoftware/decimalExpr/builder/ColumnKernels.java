@@ -0,0 +1,37 @@
+package trashsoftware.decimalExpr.builder;
+
+/**
+ * Lowers double expressions to column kernels.
+ * <p>
+ * This is the Java 17+ version. Kernels use the Vector API, which is only usable if the
+ * {@code jdk.incubator.vector} module is added to the runtime, for example with
+ * {@code --add-modules jdk.incubator.vector}. Without it, batches are evaluated row by row as on Java 11.
+ */
+public final class ColumnKernels {
+
+    private static final boolean AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private ColumnKernels() {
+    }
+
+    /**
+     * @return whether this runtime has column kernels
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Lowers a double expression to a column kernel.
+     *
+     * @param program       the double expression
+     * @param variableCount number of variables, which take the first slots
+     * @param slotCount     number of slots of the expression
+     * @return the kernel, or {@code null} if the expression is evaluated row by row
+     */
+    public static ColumnKernel compile(DoubleEvaluator program, int variableCount, int slotCount) {
+        if (!AVAILABLE) return null;
+        // VectorKernel is only loaded here, since it links against the incubator module
+        return VectorKernel.compile(program, variableCount, slotCount);
+    }
+}
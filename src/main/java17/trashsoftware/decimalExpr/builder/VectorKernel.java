@@ -0,0 +1,580 @@
+package trashsoftware.decimalExpr.builder;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+import trashsoftware.decimalExpr.expression.BinaryOperator;
+import trashsoftware.decimalExpr.expression.Function;
+import trashsoftware.decimalExpr.expression.UnaryOperator;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A double expression evaluated on blocks of rows with the Vector API.
+ * <p>
+ * Each node of the expression computes the values of a whole block into its own buffer. Builtin arithmetic,
+ * {@code abs}, {@code sqrt} and squares run in vector lanes. Other operators, functions and macro function
+ * calls are evaluated row by row on the vectorized values of their arguments.
+ */
+final class VectorKernel implements ColumnKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    /**
+     * Number of rows in a block, small enough for the buffers to stay in cache.
+     */
+    static final int BLOCK = 1024;
+
+    /**
+     * Largest integer exponent computed by multiplications. Up to squares, multiplying gives the same result as
+     * {@code Math.pow}, which row by row evaluation uses; higher powers would round differently.
+     */
+    private static final int MAX_INT_POWER = 2;
+
+    private final Op root;
+    private final int opCount;
+    private final int variableCount;
+    private final int slotCount;
+
+    private VectorKernel(Op root, int opCount, int variableCount, int slotCount) {
+        this.root = root;
+        this.opCount = opCount;
+        this.variableCount = variableCount;
+        this.slotCount = slotCount;
+    }
+
+    static ColumnKernel compile(DoubleEvaluator program, int variableCount, int slotCount) {
+        Lowering lowering = new Lowering(variableCount);
+        Op root = lowering.lower(program);
+        // nothing to gain if no node is vectorized
+        if (root == null || !lowering.vectorized) return null;
+        return new VectorKernel(root, lowering.opCount, variableCount, slotCount);
+    }
+
+    @Override
+    public void evaluate(double[][] columns, int from, int to, double[] out) {
+        Block block = new Block(columns, opCount, variableCount, slotCount);
+        for (int start = from; start < to; start += BLOCK) {
+            block.start = start;
+            block.length = Math.min(BLOCK, to - start);
+            double[] result = root.eval(block);
+            System.arraycopy(result, 0, out, start, block.length);
+        }
+    }
+
+    /**
+     * Buffers of one kernel invocation.
+     */
+    private static final class Block {
+        final double[][] columns;
+        final double[][] buffers;
+        final int[] storedAt;
+        final int variableCount;
+        final int slotCount;
+        int start;
+        int length;
+        double[] frame;
+
+        Block(double[][] columns, int opCount, int variableCount, int slotCount) {
+            this.columns = columns;
+            this.buffers = new double[opCount][];
+            this.storedAt = new int[opCount];
+            Arrays.fill(storedAt, -1);
+            this.variableCount = variableCount;
+            this.slotCount = slotCount;
+        }
+
+        double[] buffer(int id) {
+            double[] buffer = buffers[id];
+            if (buffer == null) {
+                buffer = new double[BLOCK];
+                buffers[id] = buffer;
+            }
+            return buffer;
+        }
+
+        /**
+         * Returns the scalar frame of a row, with the variables filled.
+         */
+        double[] frame(int row) {
+            if (frame == null) frame = new double[slotCount];
+            for (int v = 0; v < variableCount; v++) frame[v] = columns[v][start + row];
+            return frame;
+        }
+    }
+
+    private abstract static class Op {
+        final int id;
+
+        Op(int id) {
+            this.id = id;
+        }
+
+        abstract double[] eval(Block block);
+    }
+
+    private static final class Lowering {
+        final int variableCount;
+        final Map<Integer, Store> stores = new HashMap<>();
+        int opCount;
+        boolean vectorized;
+
+        Lowering(int variableCount) {
+            this.variableCount = variableCount;
+        }
+
+        /**
+         * @return the lowered node, or {@code null} if the expression has a node that cannot be lowered
+         */
+        Op lower(DoubleEvaluator node) {
+            if (node instanceof DoubleEvaluator.Constant) {
+                return new Constant(opCount++, ((DoubleEvaluator.Constant) node).value);
+            } else if (node instanceof DoubleEvaluator.Slot) {
+                int slot = ((DoubleEvaluator.Slot) node).slot;
+                if (slot < variableCount) return new Variable(opCount++, slot);
+                return stores.get(slot);
+            } else if (node instanceof DoubleEvaluator.Store) {
+                DoubleEvaluator.Store store = (DoubleEvaluator.Store) node;
+                Op value = lower(store.value);
+                if (value == null) return null;
+                Store op = new Store(opCount++, value);
+                stores.put(store.slot, op);
+                return op;
+            } else if (node instanceof DoubleEvaluator.Add) {
+                DoubleEvaluator.Add add = (DoubleEvaluator.Add) node;
+                return arithmetic(Arithmetic.ADD, add.left, add.right);
+            } else if (node instanceof DoubleEvaluator.Sub) {
+                DoubleEvaluator.Sub sub = (DoubleEvaluator.Sub) node;
+                return arithmetic(Arithmetic.SUB, sub.left, sub.right);
+            } else if (node instanceof DoubleEvaluator.Mul) {
+                DoubleEvaluator.Mul mul = (DoubleEvaluator.Mul) node;
+                return arithmetic(Arithmetic.MUL, mul.left, mul.right);
+            } else if (node instanceof DoubleEvaluator.Div) {
+                DoubleEvaluator.Div div = (DoubleEvaluator.Div) node;
+                return arithmetic(Arithmetic.DIV, div.left, div.right);
+            } else if (node instanceof DoubleEvaluator.Neg) {
+                return elementary(Elementary.NEG, ((DoubleEvaluator.Neg) node).operand);
+            } else if (node instanceof DoubleEvaluator.Abs) {
+                return elementary(Elementary.ABS, ((DoubleEvaluator.Abs) node).operand);
+            } else if (node instanceof DoubleEvaluator.Sqrt) {
+                return elementary(Elementary.SQRT, ((DoubleEvaluator.Sqrt) node).operand);
+            } else if (node instanceof DoubleEvaluator.Pow) {
+                return lowerPow((DoubleEvaluator.Pow) node);
+            } else if (node instanceof DoubleEvaluator.Unary) {
+                DoubleEvaluator.Unary unary = (DoubleEvaluator.Unary) node;
+                Op operand = lower(unary.operand);
+                return operand == null ? null : new ScalarUnary(opCount++, unary.operator, operand);
+            } else if (node instanceof DoubleEvaluator.Binary) {
+                DoubleEvaluator.Binary binary = (DoubleEvaluator.Binary) node;
+                Op left = lower(binary.left);
+                Op right = lower(binary.right);
+                return left == null || right == null ? null :
+                        new ScalarBinary(opCount++, binary.operator, left, right);
+            } else if (node instanceof DoubleEvaluator.Call) {
+                DoubleEvaluator.Call call = (DoubleEvaluator.Call) node;
+                Op[] args = lowerAll(call.args);
+                return args == null ? null : new ScalarCall(opCount++, call.function, args);
+            } else if (node instanceof DoubleEvaluator.MacroCall) {
+                DoubleEvaluator.MacroCall call = (DoubleEvaluator.MacroCall) node;
+                Op[] args = lowerAll(call.args);
+                return args == null ? null : new ScalarMacroCall(opCount++, call, args);
+            }
+            return null;
+        }
+
+        private Op[] lowerAll(DoubleEvaluator[] nodes) {
+            Op[] ops = new Op[nodes.length];
+            for (int i = 0; i < ops.length; i++) {
+                ops[i] = lower(nodes[i]);
+                if (ops[i] == null) return null;
+            }
+            return ops;
+        }
+
+        private Op arithmetic(Arithmetic kind, DoubleEvaluator left, DoubleEvaluator right) {
+            Op l = lower(left);
+            Op r = lower(right);
+            if (l == null || r == null) return null;
+            vectorized = true;
+            return new ArithmeticOp(opCount++, kind, l, r);
+        }
+
+        private Op elementary(Elementary kind, DoubleEvaluator operand) {
+            Op o = lower(operand);
+            if (o == null) return null;
+            vectorized = true;
+            return new ElementaryOp(opCount++, kind, o);
+        }
+
+        private Op lowerPow(DoubleEvaluator.Pow pow) {
+            Op base = lower(pow.left);
+            if (base == null) return null;
+            if (pow.right instanceof DoubleEvaluator.Constant) {
+                double exponent = ((DoubleEvaluator.Constant) pow.right).value;
+                if (exponent == Math.rint(exponent) && exponent >= 0 && exponent <= MAX_INT_POWER) {
+                    vectorized = true;
+                    return new IntPower(opCount++, base, (int) exponent);
+                }
+            }
+            Op exponent = lower(pow.right);
+            return exponent == null ? null : new ScalarPow(opCount++, base, exponent);
+        }
+    }
+
+    // Leaves
+
+    private static final class Constant extends Op {
+        final double value;
+
+        Constant(int id, double value) {
+            super(id);
+            this.value = value;
+        }
+
+        @Override
+        double[] eval(Block block) {
+            double[] buffer = block.buffers[id];
+            if (buffer == null) {
+                buffer = block.buffer(id);
+                Arrays.fill(buffer, value);
+            }
+            return buffer;
+        }
+    }
+
+    private static final class Variable extends Op {
+        final int slot;
+
+        Variable(int id, int slot) {
+            super(id);
+            this.slot = slot;
+        }
+
+        @Override
+        double[] eval(Block block) {
+            double[] buffer = block.buffer(id);
+            System.arraycopy(block.columns[slot], block.start, buffer, 0, block.length);
+            return buffer;
+        }
+    }
+
+    /**
+     * A common subexpression. Later occurrences are this same op, which returns the values of the block again.
+     */
+    private static final class Store extends Op {
+        final Op value;
+
+        Store(int id, Op value) {
+            super(id);
+            this.value = value;
+        }
+
+        @Override
+        double[] eval(Block block) {
+            if (block.storedAt[id] != block.start) {
+                block.buffers[id] = value.eval(block);
+                block.storedAt[id] = block.start;
+            }
+            return block.buffers[id];
+        }
+    }
+
+    // Vectorized operations
+
+    private enum Arithmetic {ADD, SUB, MUL, DIV}
+
+    private static final class ArithmeticOp extends Op {
+        final Arithmetic kind;
+        final Op left;
+        final Op right;
+
+        ArithmeticOp(int id, Arithmetic kind, Op left, Op right) {
+            super(id);
+            this.kind = kind;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double[] eval(Block block) {
+            double[] a = left.eval(block);
+            double[] b = right.eval(block);
+            double[] r = block.buffer(id);
+            int n = block.length;
+            switch (kind) {
+                case ADD:
+                    add(a, b, r, n);
+                    break;
+                case SUB:
+                    sub(a, b, r, n);
+                    break;
+                case MUL:
+                    mul(a, b, r, n);
+                    break;
+                default:
+                    div(a, b, r, n);
+                    break;
+            }
+            return r;
+        }
+    }
+
+    private enum Elementary {NEG, ABS, SQRT}
+
+    private static final class ElementaryOp extends Op {
+        final Elementary kind;
+        final Op operand;
+
+        ElementaryOp(int id, Elementary kind, Op operand) {
+            super(id);
+            this.kind = kind;
+            this.operand = operand;
+        }
+
+        @Override
+        double[] eval(Block block) {
+            double[] a = operand.eval(block);
+            double[] r = block.buffer(id);
+            int n = block.length;
+            switch (kind) {
+                case NEG:
+                    neg(a, r, n);
+                    break;
+                case ABS:
+                    abs(a, r, n);
+                    break;
+                default:
+                    sqrt(a, r, n);
+                    break;
+            }
+            return r;
+        }
+    }
+
+    private static final class IntPower extends Op {
+        final Op base;
+        final int exponent;
+
+        IntPower(int id, Op base, int exponent) {
+            super(id);
+            this.base = base;
+            this.exponent = exponent;
+        }
+
+        @Override
+        double[] eval(Block block) {
+            double[] a = base.eval(block);
+            double[] r = block.buffer(id);
+            int n = block.length;
+            int i = 0;
+            int bound = SPECIES.loopBound(n);
+            for (; i < bound; i += LANES) {
+                DoubleVector square = DoubleVector.fromArray(SPECIES, a, i);
+                DoubleVector result = DoubleVector.broadcast(SPECIES, 1.0);
+                for (int k = exponent; k > 0; k >>= 1) {
+                    if ((k & 1) != 0) result = result.mul(square);
+                    square = square.mul(square);
+                }
+                result.intoArray(r, i);
+            }
+            for (; i < n; i++) {
+                double square = a[i];
+                double result = 1.0;
+                for (int k = exponent; k > 0; k >>= 1) {
+                    if ((k & 1) != 0) result *= square;
+                    square *= square;
+                }
+                r[i] = result;
+            }
+            return r;
+        }
+    }
+
+    // Row by row fallbacks
+
+    private static final class ScalarPow extends Op {
+        final Op base;
+        final Op exponent;
+
+        ScalarPow(int id, Op base, Op exponent) {
+            super(id);
+            this.base = base;
+            this.exponent = exponent;
+        }
+
+        @Override
+        double[] eval(Block block) {
+            double[] a = base.eval(block);
+            double[] b = exponent.eval(block);
+            double[] r = block.buffer(id);
+            for (int i = 0; i < block.length; i++) r[i] = Math.pow(a[i], b[i]);
+            return r;
+        }
+    }
+
+    private static final class ScalarUnary extends Op {
+        final UnaryOperator operator;
+        final Op operand;
+
+        ScalarUnary(int id, UnaryOperator operator, Op operand) {
+            super(id);
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        double[] eval(Block block) {
+            double[] a = operand.eval(block);
+            double[] r = block.buffer(id);
+            for (int i = 0; i < block.length; i++) r[i] = operator.evalDouble(a[i]);
+            return r;
+        }
+    }
+
+    private static final class ScalarBinary extends Op {
+        final BinaryOperator operator;
+        final Op left;
+        final Op right;
+
+        ScalarBinary(int id, BinaryOperator operator, Op left, Op right) {
+            super(id);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double[] eval(Block block) {
+            double[] a = left.eval(block);
+            double[] b = right.eval(block);
+            double[] r = block.buffer(id);
+            for (int i = 0; i < block.length; i++) r[i] = operator.evalDouble(a[i], b[i]);
+            return r;
+        }
+    }
+
+    private static final class ScalarCall extends Op {
+        final Function function;
+        final Op[] args;
+
+        ScalarCall(int id, Function function, Op[] args) {
+            super(id);
+            this.function = function;
+            this.args = args;
+        }
+
+        @Override
+        double[] eval(Block block) {
+            double[][] values = evalAll(args, block);
+            double[] r = block.buffer(id);
+            for (int i = 0; i < block.length; i++) r[i] = function.evalDouble(row(values, i));
+            return r;
+        }
+    }
+
+    private static final class ScalarMacroCall extends Op {
+        final DoubleEvaluator.MacroCall call;
+        final Op[] args;
+
+        ScalarMacroCall(int id, DoubleEvaluator.MacroCall call, Op[] args) {
+            super(id);
+            this.call = call;
+            this.args = args;
+        }
+
+        @Override
+        double[] eval(Block block) {
+            double[][] values = evalAll(args, block);
+            double[] r = block.buffer(id);
+            for (int i = 0; i < block.length; i++) {
+                double[] frame = block.frame(i);
+                DoubleUnaryOperator body = invariant -> {
+                    frame[call.invariantSlot] = invariant;
+                    return call.body.eval(frame);
+                };
+                r[i] = call.function.evalDouble(body, row(values, i));
+            }
+            return r;
+        }
+    }
+
+    private static double[][] evalAll(Op[] ops, Block block) {
+        double[][] values = new double[ops.length][];
+        for (int i = 0; i < ops.length; i++) values[i] = ops[i].eval(block);
+        return values;
+    }
+
+    private static double[] row(double[][] values, int row) {
+        double[] res = new double[values.length];
+        for (int i = 0; i < res.length; i++) res[i] = values[i][row];
+        return res;
+    }
+
+    // Loops
+
+    private static void add(double[] a, double[] b, double[] r, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += LANES) {
+            DoubleVector.fromArray(SPECIES, a, i).add(DoubleVector.fromArray(SPECIES, b, i)).intoArray(r, i);
+        }
+        for (; i < n; i++) r[i] = a[i] + b[i];
+    }
+
+    private static void sub(double[] a, double[] b, double[] r, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += LANES) {
+            DoubleVector.fromArray(SPECIES, a, i).sub(DoubleVector.fromArray(SPECIES, b, i)).intoArray(r, i);
+        }
+        for (; i < n; i++) r[i] = a[i] - b[i];
+    }
+
+    private static void mul(double[] a, double[] b, double[] r, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += LANES) {
+            DoubleVector.fromArray(SPECIES, a, i).mul(DoubleVector.fromArray(SPECIES, b, i)).intoArray(r, i);
+        }
+        for (; i < n; i++) r[i] = a[i] * b[i];
+    }
+
+    private static void div(double[] a, double[] b, double[] r, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += LANES) {
+            DoubleVector.fromArray(SPECIES, a, i).div(DoubleVector.fromArray(SPECIES, b, i)).intoArray(r, i);
+        }
+        for (; i < n; i++) r[i] = a[i] / b[i];
+    }
+
+    private static void neg(double[] a, double[] r, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += LANES) {
+            DoubleVector.fromArray(SPECIES, a, i).neg().intoArray(r, i);
+        }
+        for (; i < n; i++) r[i] = -a[i];
+    }
+
+    private static void abs(double[] a, double[] r, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += LANES) {
+            DoubleVector.fromArray(SPECIES, a, i).abs().intoArray(r, i);
+        }
+        for (; i < n; i++) r[i] = Math.abs(a[i]);
+    }
+
+    private static void sqrt(double[] a, double[] r, int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for (; i < bound; i += LANES) {
+            DoubleVector.fromArray(SPECIES, a, i).sqrt().intoArray(r, i);
+        }
+        for (; i < n; i++) r[i] = Math.sqrt(a[i]);
+    }
+}
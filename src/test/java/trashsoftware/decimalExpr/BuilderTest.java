@@ -2,15 +2,46 @@ package trashsoftware.decimalExpr;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import trashsoftware.decimalExpr.builder.ColumnKernels;
+import trashsoftware.decimalExpr.builder.Profiler;
 import trashsoftware.decimalExpr.builder.Tokenizer;
 import trashsoftware.decimalExpr.expression.BinaryOperator;
 import trashsoftware.decimalExpr.expression.Function;
+import trashsoftware.decimalExpr.expression.Macro;
+import trashsoftware.decimalExpr.expression.MacroFunction;
 import trashsoftware.decimalExpr.expression.Operator;
 import trashsoftware.decimalExpr.expression.UnaryOperator;
+import trashsoftware.decimalExpr.graph.CyclicDependencyException;
+import trashsoftware.decimalExpr.graph.FormulaGraph;
 import trashsoftware.decimalExpr.numbers.*;
 import trashsoftware.decimalExpr.numbers.Number;
 import trashsoftware.decimalExpr.util.Calculations;
 
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
 public class BuilderTest {
 
     Operator factorial = new UnaryOperator("!", Operator.PRECEDENCE_NEGATION, false) {
@@ -273,4 +304,923 @@ public class BuilderTest {
         Number res = decimalExpr.evaluate();
         System.out.println(res);
     }
+
+    @Test
+    void testMacroFunctionUndeclaredInvariant() {
+        DecimalExpr decimalExpr = new DecimalExpr.Builder()
+                .expression("sum(k, k^2, 1, 3)")
+                .build();
+        Assertions.assertEquals(decimalExpr.evaluate(), Rational.valueOf(14));
+    }
+
+    @Test
+    void testBytecodeCompiled() {
+        String[] expressions = {"2x+1", "x^3-x/7", "-x*2+abs(-x)", "sum(k, k x, 1, 4)", "2+x!", "cos(0)+x", "0.5x"};
+        for (String expression : expressions) {
+            DecimalExpr interpreted = new DecimalExpr.Builder()
+                    .expression(expression)
+                    .variable("x")
+                    .operator(factorial)
+                    .function(cosine)
+                    .compileThreshold(-1)
+                    .build();
+            DecimalExpr compiled = new DecimalExpr.Builder()
+                    .expression(expression)
+                    .variable("x")
+                    .operator(factorial)
+                    .function(cosine)
+                    .compileThreshold(0)
+                    .build();
+            for (int x = 1; x <= 5; x++) {
+                interpreted.setVariable("x", x);
+                compiled.setVariable("x", x);
+                Assertions.assertEquals(interpreted.evaluate(), compiled.evaluate());
+            }
+        }
+    }
+
+    @Test
+    void testTieredCompile() {
+        DecimalExpr decimalExpr = new DecimalExpr.Builder()
+                .expression("x*x+m")
+                .variable("x")
+                .macro("m")
+                .compileThreshold(3)
+                .build();
+        decimalExpr.setMacro("m", "x+1");
+        for (int x = 0; x < 10; x++) {
+            decimalExpr.setVariable("x", x);
+            Assertions.assertEquals(decimalExpr.evaluate(), Rational.valueOf(x * x + x + 1));
+        }
+    }
+
+    @Test
+    void testPostfix() {
+        String[] expressions = {"2x+1", "x^3-x/7", "-x*2+abs(-x)", "sum(k, k x, 1, 4)", "2+x!", "cos(0)+x",
+                "0.5x+m", "2 x y i + 6"};
+        for (String expression : expressions) {
+            DecimalExpr tree = new DecimalExpr.Builder()
+                    .expression(expression)
+                    .variable("x")
+                    .variable("y")
+                    .macro("m")
+                    .operator(factorial)
+                    .function(cosine)
+                    .build();
+            DecimalExpr postfix = new DecimalExpr.Builder()
+                    .expression(expression)
+                    .variable("x")
+                    .variable("y")
+                    .macro("m")
+                    .operator(factorial)
+                    .function(cosine)
+                    .postfix()
+                    .build();
+            tree.setMacro("m", "x y");
+            postfix.setMacro("m", "x y");
+            for (int x = 1; x <= 5; x++) {
+                tree.setVariable("x", x);
+                tree.setVariable("y", x + 1);
+                postfix.setVariable("x", x);
+                postfix.setVariable("y", x + 1);
+                Assertions.assertEquals(tree.evaluate(), postfix.evaluate());
+            }
+        }
+    }
+
+    @Test
+    void testDeepExpression() {
+        // Horner form, which the simplifier cannot flatten, twice as deep as MAX_TREE_DEPTH
+        int depth = DecimalExpr.MAX_TREE_DEPTH;
+        StringBuilder builder = new StringBuilder("(".repeat(depth)).append("x");
+        for (int i = 0; i < depth; i++) builder.append(")*x+1");
+        DecimalExpr decimalExpr = new DecimalExpr.Builder()
+                .expression(builder.toString())
+                .variable("x")
+                .build();
+        Assertions.assertTrue(decimalExpr.isDeep());
+        decimalExpr.setVariable("x", 1);
+        Assertions.assertEquals(decimalExpr.evaluate(), Rational.valueOf(depth + 1));
+    }
+
+    @Test
+    void testNestedMacroFunction() {
+        DecimalExpr decimalExpr = new DecimalExpr.Builder()
+                .expression("sum(j, sum(k, j k x, 1, 2), 1, 2)")
+                .variable("x")
+                .build();
+        decimalExpr.setVariable("x", 2);
+        Assertions.assertEquals(decimalExpr.evaluate(), Rational.valueOf(18));
+        decimalExpr.setVariable("x", 1);
+        Assertions.assertEquals(decimalExpr.evaluate(), Rational.valueOf(9));
+    }
+
+    @Test
+    void testMacroInMacroFunction() {
+        DecimalExpr decimalExpr = new DecimalExpr.Builder()
+                .expression("sum(x, m, 1, 3) + x")
+                .variable("x")
+                .macro("m")
+                .build();
+        decimalExpr.setVariable("x", 10);
+        decimalExpr.setMacro("m", "x+sum(k, k, 1, 2)");
+        // the invariant does not leak into the macro, which sees the global x
+        Assertions.assertEquals(decimalExpr.evaluate(), Rational.valueOf(49));
+    }
+
+    @Test
+    void testCompiledConcurrent() throws Exception {
+        DecimalExpr decimalExpr = new DecimalExpr.Builder()
+                .expression("sum(k, k x, 1, 10) + m")
+                .variable("x")
+                .macro("m")
+                .build();
+        decimalExpr.setVariable("x", 1);
+        decimalExpr.setMacro("m", "2x");
+        CompiledExpr compiled = decimalExpr.compile();
+        // changes after compilation do not affect the snapshot
+        decimalExpr.setMacro("m", "0");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    CompiledExpr.Bindings bindings = compiled.newBindings();
+                    for (int x = 1; x <= 200; x++) {
+                        bindings.set("x", x);
+                        if (!compiled.evaluate(bindings).equals(Rational.valueOf(57L * x))) return false;
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> future : futures) Assertions.assertTrue(future.get());
+        } finally {
+            executor.shutdown();
+        }
+        Assertions.assertEquals(compiled.evaluate(Map.of("x", Rational.valueOf(2))), Rational.valueOf(114));
+        Assertions.assertEquals(compiled.evaluate(), Rational.valueOf(57));
+        Assertions.assertThrows(BuildException.class, () -> compiled.newBindings().set("y", 1));
+    }
+
+    @Test
+    void testConstantFolding() {
+        DecimalExpr decimalExpr = new DecimalExpr.Builder()
+                .expression("2^10 x / (0.5 + 1.5) + sqrt(16)")
+                .variable("x")
+                .showAst()
+                .build();
+        decimalExpr.setVariable("x", 3);
+        Assertions.assertEquals(decimalExpr.evaluate(), Rational.valueOf(1540));
+
+        // errors in constant subtrees are still raised at evaluation
+        DecimalExpr divByZero = new DecimalExpr.Builder()
+                .expression("1/0 + x")
+                .variable("x")
+                .build();
+        divByZero.setVariable("x", 1);
+        Assertions.assertThrows(ArithmeticException.class, divByZero::evaluate);
+
+        // functions that are not pure are called on every evaluation
+        int[] calls = new int[1];
+        Function counter = new Function("counter", 1) {
+            @Override
+            protected Number evaluate(Number... arguments) {
+                calls[0]++;
+                return arguments[0];
+            }
+        };
+        DecimalExpr impure = new DecimalExpr.Builder()
+                .expression("counter(2)")
+                .function(counter)
+                .build();
+        impure.evaluate();
+        impure.evaluate();
+        Assertions.assertEquals(2, calls[0]);
+    }
+
+    @Test
+    void testSimplify() {
+        String[] expressions = {"x*1+0", "--x", "x^2+x^3", "(x^2)^3", "x/4", "2x+3x-x", "2x/4+x"};
+        Rational[] expected = {Rational.valueOf(6), Rational.valueOf(6), Rational.valueOf(252),
+                Rational.valueOf(46656), Rational.fromFraction(3, 2), Rational.valueOf(24), Rational.valueOf(9)};
+        for (int i = 0; i < expressions.length; i++) {
+            DecimalExpr decimalExpr = new DecimalExpr.Builder()
+                    .expression(expressions[i])
+                    .variable("x")
+                    .showAst()
+                    .build();
+            decimalExpr.setVariable("x", 6);
+            Assertions.assertEquals(decimalExpr.evaluate(), expected[i], expressions[i]);
+        }
+
+        // rules do not apply to overridden operators
+        BinaryOperator plusAsTimes = new BinaryOperator("+", Operator.PRECEDENCE_ADDITION) {
+            @Override
+            public Number eval(Number left, Number right) {
+                return left.mul(right);
+            }
+        };
+        DecimalExpr overridden = new DecimalExpr.Builder()
+                .expression("x+0")
+                .variable("x")
+                .operator(plusAsTimes)
+                .build();
+        overridden.setVariable("x", 6);
+        Assertions.assertEquals(overridden.evaluate(), Rational.ZERO);
+
+        // nor to macros, which are evaluated once per occurrence
+        AtomicInteger ticks = new AtomicInteger();
+        Function tick = new Function("tick", 0) {
+            @Override
+            protected Number evaluate(Number... arguments) {
+                return Rational.valueOf(ticks.incrementAndGet());
+            }
+        };
+        String[] macroExpressions = {"m^2", "m+m", "2m+3m"};
+        Rational[] macroExpected = {Rational.ONE, Rational.valueOf(3), Rational.valueOf(8)};
+        for (int i = 0; i < macroExpressions.length; i++) {
+            DecimalExpr withMacro = new DecimalExpr.Builder()
+                    .expression(macroExpressions[i])
+                    .function(tick)
+                    .macro("m")
+                    .build();
+            withMacro.setMacro("m", "tick()");
+            ticks.set(0);
+            Assertions.assertEquals(withMacro.evaluate(), macroExpected[i], macroExpressions[i]);
+        }
+
+        // divisions by decimals keep the scale of a quotient
+        DecimalExpr decimalDivision = new DecimalExpr.Builder()
+                .expression("sum(k, k*1.25, 1, 3)/10")
+                .approxRational(false)
+                .build();
+        Assertions.assertEquals(decimalDivision.evaluate().toString(), "0.75");
+    }
+
+    @Test
+    void testCommonSubexpressions() {
+        int[] calls = new int[1];
+        Function counter = new Function("counter", 1) {
+            @Override
+            protected Number evaluate(Number... arguments) {
+                calls[0]++;
+                return arguments[0];
+            }
+        };
+        String expression = "(x^2+y^2)*(x^2+y^2) + sqrt(x^2+y^2) + counter(x) + counter(x)" +
+                " + sum(k, (k+x)*(k+x), 1, 3) + (1+x)*(1+x)";
+        for (int mode = 0; mode < 3; mode++) {
+            DecimalExpr decimalExpr = new DecimalExpr.Builder()
+                    .expression(expression)
+                    .variable("x")
+                    .variable("y")
+                    .function(counter)
+                    .postfix(mode == 1)
+                    .compileThreshold(mode == 2 ? 0 : -1)
+                    .build();
+            calls[0] = 0;
+            decimalExpr.setVariable("x", 3);
+            decimalExpr.setVariable("y", 4);
+            // 625 + 5 + 3 + 3 + (16 + 25 + 36) + 16
+            Assertions.assertEquals(decimalExpr.evaluate(), Rational.valueOf(729));
+            Assertions.assertEquals(2, calls[0]);
+            decimalExpr.setVariable("x", 0);
+            decimalExpr.setVariable("y", 0);
+            // 0 + 0 + 0 + 0 + (1 + 4 + 9) + 1
+            Assertions.assertEquals(decimalExpr.evaluate(), Rational.valueOf(15));
+        }
+
+        // a pure function is called once for equal arguments
+        Function pureCounter = new Function("pureCounter", 1) {
+            @Override
+            public boolean isPure() {
+                return true;
+            }
+
+            @Override
+            protected Number evaluate(Number... arguments) {
+                calls[0]++;
+                return arguments[0];
+            }
+        };
+        for (int mode = 0; mode < 3; mode++) {
+            DecimalExpr decimalExpr = new DecimalExpr.Builder()
+                    .expression("pureCounter(x+1) * pureCounter(x+1) - pureCounter(x+1)")
+                    .variable("x")
+                    .function(pureCounter)
+                    .postfix(mode == 1)
+                    .compileThreshold(mode == 2 ? 0 : -1)
+                    .build();
+            calls[0] = 0;
+            decimalExpr.setVariable("x", 4);
+            Assertions.assertEquals(decimalExpr.evaluate(), Rational.valueOf(20));
+            Assertions.assertEquals(1, calls[0]);
+        }
+    }
+
+    @Test
+    void testDoubleExpr() {
+        DoubleExpr hypot = new DecimalExpr.Builder()
+                .expression("sqrt(x^2+y^2) + abs(-y)")
+                .variable("x")
+                .variable("y")
+                .buildDouble();
+        Assertions.assertEquals(9.0, hypot.evaluate(3, 4));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> hypot.evaluate(3));
+
+        DecimalExpr decimalExpr = new DecimalExpr.Builder()
+                .expression("sum(k, k m, 1, 4) / 3 + cos(pi) + 2.5")
+                .variable("x")
+                .macro("m")
+                .function(cosine)
+                .build();
+        decimalExpr.setMacro("m", "x+1");
+        DoubleExpr doubleExpr = decimalExpr.toDoubleExpr();
+        for (int x = 0; x < 5; x++) {
+            decimalExpr.setVariable("x", x);
+            double exact = ((Real) decimalExpr.evaluate()).doubleValue();
+            Assertions.assertEquals(exact, doubleExpr.evaluate(x), 1e-12);
+        }
+
+        // macro functions without a double implementation evaluate their macro through numbers
+        MacroFunction product = new MacroFunction("prod", 2) {
+            @Override
+            protected Number evaluate(String invariant, Macro macro, Number... arguments) {
+                Number result = Rational.ONE;
+                for (Number k = arguments[0]; ; k = k.add(Rational.ONE)) {
+                    macro.setVariable(invariant, k);
+                    result = result.mul(macro.eval());
+                    if (k.equals(arguments[1])) return result;
+                }
+            }
+        };
+        DecimalExpr.Builder builder = new DecimalExpr.Builder().expression("prod(k, k + x, 1, 4)").variable("x");
+        builder.environment().getFunctions().put(product.name, product);
+        DecimalExpr productExpr = builder.build();
+        DoubleExpr productDouble = productExpr.toDoubleExpr();
+        for (int x = -2; x < 3; x++) {
+            productExpr.setVariable("x", Rational.fromFraction(x, 2));
+            double exact = ((Real) productExpr.evaluate()).doubleValue();
+            Assertions.assertEquals(exact, productDouble.evaluate(x / 2.0), 1e-12);
+        }
+    }
+
+    @Test
+    void testBatch() {
+        DecimalExpr decimalExpr = new DecimalExpr.Builder()
+                .expression("x^2 + y/2")
+                .variable("x")
+                .variable("y")
+                .build();
+        int rows = 20000;
+        long[] xs = new long[rows];
+        long[] ys = new long[rows];
+        Number[] xNumbers = new Number[rows];
+        double[] xDoubles = new double[rows];
+        double[] yDoubles = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            xs[i] = i;
+            ys[i] = i % 7;
+            xNumbers[i] = Rational.valueOf(i);
+            xDoubles[i] = i;
+            yDoubles[i] = i % 7;
+        }
+
+        Number[] out = new Number[rows];
+        BatchStats stats = decimalExpr.evaluateLongBatch(Map.of("x", xs, "y", ys), out);
+        Assertions.assertEquals(rows, stats.getRows());
+        for (int i = 0; i < rows; i++) {
+            Assertions.assertEquals(Rational.valueOf((long) i * i).add(Rational.fromFraction(i % 7, 2)), out[i]);
+        }
+
+        // variables without a column keep their values
+        decimalExpr.setVariable("y", 4);
+        Number[] out2 = new Number[rows];
+        decimalExpr.evaluateBatch(Map.of("x", xNumbers), out2);
+        Assertions.assertEquals(Rational.valueOf(9 + 2), out2[3]);
+
+        double[] doubles = new double[rows];
+        decimalExpr.evaluateDoubleBatch(Map.of("x", xDoubles, "y", yDoubles), doubles);
+        for (int i = 0; i < rows; i++) {
+            Assertions.assertEquals((double) i * i + (i % 7) / 2.0, doubles[i]);
+        }
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> decimalExpr.evaluateBatch(Map.of("x", xNumbers), new Number[rows - 1]));
+    }
+
+    @Test
+    void testDoubleBatch() {
+        // set by the build on Java 17+, where batches run on the column kernels
+        if (Boolean.getBoolean("decimalExpr.columnKernels")) Assertions.assertTrue(ColumnKernels.isAvailable());
+        String[] expressions = {"sqrt(x^2+y^2)", "abs(x-y)/(x*y+1)+x^3-y^(-2)", "(x+y)*(x+y)-sum(k, k x, 1, 3)",
+                "cos(x)*y+x^0.5", "-x+y/3", "x^7-y^(-3)", "x^2*y^1+y^0"};
+        int rows = 5003;
+        double[] xs = new double[rows];
+        double[] ys = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            xs[i] = i * 0.01;
+            ys[i] = i % 11 - 5.5;
+        }
+        for (String expression : expressions) {
+            DoubleExpr doubleExpr = new DecimalExpr.Builder()
+                    .expression(expression)
+                    .variable("x")
+                    .variable("y")
+                    .function(cosine)
+                    .buildDouble();
+            double[] out = new double[rows];
+            doubleExpr.evaluateBatch(Map.of("x", xs, "y", ys), out);
+            for (int i = 0; i < rows; i++) {
+                double expected = doubleExpr.evaluate(xs[i], ys[i]);
+                Assertions.assertEquals(expected, out[i], expression);
+            }
+        }
+    }
+
+    @Test
+    void testColumnFiles() throws IOException {
+        DecimalExpr decimalExpr = new DecimalExpr.Builder()
+                .expression("x^2 + y/2")
+                .variable("x")
+                .variable("y")
+                .build();
+        // more rows than a window
+        int rows = ColumnFiles.WINDOW_ROWS + 100;
+        Path dir = Files.createTempDirectory("columns");
+        try {
+            ByteBuffer xs = ByteBuffer.allocate(rows * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            StringBuilder ys = new StringBuilder();
+            for (int i = 0; i < rows; i++) {
+                xs.putLong(i);
+                ys.append(i % 7).append(".5\n");
+            }
+            Path x = Files.write(dir.resolve("x.bin"), xs.array());
+            Path y = Files.write(dir.resolve("y.txt"), ys.toString().getBytes(StandardCharsets.US_ASCII));
+
+            Map<String, ColumnFile> columns = Map.of("x", ColumnFile.ofLongs(x), "y", ColumnFile.ofDecimals(y));
+            Path decimals = dir.resolve("out.txt");
+            BatchStats stats = decimalExpr.evaluateFiles(columns, ColumnFile.ofDecimals(decimals));
+            Assertions.assertEquals(rows, stats.getRows());
+            List<String> lines = Files.readAllLines(decimals);
+            Assertions.assertEquals(rows, lines.size());
+            for (int i = 0; i < rows; i += 997) {
+                Number expected = Rational.valueOf((long) i * i).add(Rational.fromFraction(i % 7 * 2 + 1, 4));
+                Assertions.assertEquals(expected.toDecimalString(), lines.get(i));
+            }
+
+            Path doubles = dir.resolve("out.bin");
+            decimalExpr.evaluateFiles(columns, ColumnFile.ofDoubles(doubles));
+            ByteBuffer out = ByteBuffer.wrap(Files.readAllBytes(doubles)).order(ByteOrder.LITTLE_ENDIAN);
+            Assertions.assertEquals(rows * Double.BYTES, out.capacity());
+            Assertions.assertEquals(65600.0 * 65600 + 1.75, out.getDouble(65600 * Double.BYTES));
+
+            Path shorter = Files.write(dir.resolve("short.txt"), "1\n2".getBytes(StandardCharsets.US_ASCII));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> decimalExpr.evaluateFiles(
+                    Map.of("x", ColumnFile.ofLongs(x), "y", ColumnFile.ofDecimals(shorter)), ColumnFile.ofDoubles(doubles)));
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    void testMemoize() {
+        int[] calls = new int[1];
+        Function square = new Function("square", 1) {
+            @Override
+            protected Number evaluate(Number... arguments) {
+                calls[0]++;
+                return arguments[0].mul(arguments[0]);
+            }
+
+            @Override
+            public boolean isPure() {
+                return true;
+            }
+        };
+        for (int threshold : new int[]{-1, 0}) {
+            calls[0] = 0;
+            DecimalExpr decimalExpr = new DecimalExpr.Builder()
+                    .expression("square(x) + y * sum(k, k y, 1, 3)")
+                    .variable("x")
+                    .variable("y")
+                    .function(square)
+                    .compileThreshold(threshold)
+                    .memoize()
+                    .build();
+            decimalExpr.setVariable("x", 3);
+            decimalExpr.setVariable("y", 1);
+            Assertions.assertEquals(Rational.valueOf(15), decimalExpr.evaluate());
+            Assertions.assertEquals(1, calls[0]);
+            // only y changes, so square(x) is not evaluated again
+            decimalExpr.setVariable("y", 2);
+            Assertions.assertEquals(Rational.valueOf(33), decimalExpr.evaluate());
+            Assertions.assertEquals(Rational.valueOf(33), decimalExpr.evaluate());
+            Assertions.assertEquals(1, calls[0]);
+            decimalExpr.setVariable("x", 4);
+            Assertions.assertEquals(Rational.valueOf(40), decimalExpr.evaluate());
+            Assertions.assertEquals(2, calls[0]);
+
+            // each bindings memoizes on its own
+            CompiledExpr compiled = decimalExpr.compile();
+            CompiledExpr.Bindings bindings = compiled.newBindings();
+            Assertions.assertEquals(Rational.valueOf(40), compiled.evaluate(bindings));
+            Assertions.assertEquals(3, calls[0]);
+            bindings.set("y", 1);
+            Assertions.assertEquals(Rational.valueOf(22), compiled.evaluate(bindings));
+            Assertions.assertEquals(3, calls[0]);
+        }
+    }
+
+    @Test
+    void testFormulaGraph() {
+        FormulaGraph graph = new FormulaGraph();
+        List<String> changes = new ArrayList<>();
+        graph.addListener((name, oldValue, newValue) -> changes.add(name + "=" + newValue));
+
+        graph.define("total", new DecimalExpr.Builder().expression("price*qty")
+                .variable("price").variable("qty").build());
+        graph.define("tax", new DecimalExpr.Builder().expression("total/10").variable("total").build());
+        graph.define("shipping", new DecimalExpr.Builder().expression("qty*2").variable("qty").build());
+        graph.define("due", new DecimalExpr.Builder().expression("total+tax+ship")
+                .variable("total").variable("tax").macro("ship").build());
+        graph.define("ship", new DecimalExpr.Builder().expression("shipping").variable("shipping").build());
+        Assertions.assertEquals(List.of("total", "shipping", "tax", "ship", "due"), graph.topologicalOrder());
+        Assertions.assertEquals(Set.of("due"), graph.getDependents("ship"));
+
+        graph.setInputs(Map.of("price", Rational.valueOf(10), "qty", Rational.valueOf(3)));
+        Assertions.assertEquals(Rational.valueOf(39), graph.getValue("due"));
+        changes.clear();
+        // shipping does not read price
+        graph.setInput("price", 20);
+        Assertions.assertEquals(List.of("total=60", "tax=6", "due=72"), changes);
+
+        Assertions.assertThrows(CyclicDependencyException.class, () -> graph.define("qty",
+                new DecimalExpr.Builder().expression("due-1").variable("due").build()));
+        Assertions.assertThrows(CyclicDependencyException.class, () -> graph.define("x",
+                new DecimalExpr.Builder().expression("x+1").variable("x").build()));
+        Assertions.assertEquals(Rational.valueOf(72), graph.getValue("due"));
+
+        graph.remove("ship");
+        graph.setInput("ship", 1);
+        Assertions.assertEquals(Rational.valueOf(67), graph.getValue("due"));
+        graph.define("broken", new DecimalExpr.Builder().expression("m").macro("m").build());
+        Assertions.assertEquals(NaN.NaN, graph.getValue("broken"));
+        Assertions.assertNotNull(graph.getError("broken"));
+    }
+
+    @Test
+    void testExpressionCache() {
+        ExpressionCache cache = new ExpressionCache(2);
+        CompiledExpr first = cache.get(new DecimalExpr.Builder().expression("2x+1").variable("x"));
+        CompiledExpr second = cache.get(new DecimalExpr.Builder().expression("2x+1").variable("x"));
+        Assertions.assertSame(first, second);
+        Assertions.assertEquals(Rational.valueOf(7), second.evaluate(Map.of("x", Rational.valueOf(3))));
+
+        // same text in another environment is another entry
+        CompiledExpr approx = cache.get(new DecimalExpr.Builder().expression("2x+1").variable("x")
+                .approxRational(false));
+        Assertions.assertNotSame(first, approx);
+
+        cache.get(new DecimalExpr.Builder().expression("x*x").variable("x"));
+        CacheStats stats = cache.getStats();
+        Assertions.assertEquals(1, stats.getHits());
+        Assertions.assertEquals(3, stats.getMisses());
+        Assertions.assertEquals(1, stats.getEvictions());
+        Assertions.assertEquals(2, stats.getSize());
+        Assertions.assertEquals(0.25, stats.getHitRate());
+
+        // the least recently used entry was evicted
+        Assertions.assertNotSame(first, cache.get(new DecimalExpr.Builder().expression("2x+1").variable("x")));
+    }
+
+    @Test
+    void testResultCache() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Function slow = new Function("slow", 1) {
+            @Override
+            public boolean isPure() {
+                return true;
+            }
+
+            @Override
+            protected Number evaluate(Number... arguments) {
+                calls.incrementAndGet();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return arguments[0].mul(Rational.TWO);
+            }
+        };
+        CompiledExpr expr = new DecimalExpr.Builder().expression("slow(x)+y").function(slow)
+                .variable("x").variable("y").build().compile();
+        ResultCache results = new ResultCache(16);
+
+        // equal values of different forms hit the same entry
+        Assertions.assertEquals(Rational.valueOf(7),
+                results.evaluate(expr, Map.of("x", Rational.valueOf(3), "y", Rational.ONE)));
+        Assertions.assertEquals(Rational.valueOf(7),
+                results.evaluate(expr, Map.of("x", Rational.fromFraction(6, 2), "y", Rational.ONE)));
+        Assertions.assertEquals(1, calls.get());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Number>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> results.evaluate(expr,
+                        Map.of("x", Rational.valueOf(5), "y", Rational.ZERO))));
+            }
+            for (Future<Number> future : futures) Assertions.assertEquals(Rational.valueOf(10), future.get());
+        } finally {
+            executor.shutdown();
+        }
+        Assertions.assertEquals(2, calls.get());
+        CacheStats stats = results.getStats();
+        Assertions.assertEquals(2, stats.getMisses());
+        Assertions.assertEquals(4, stats.getHits());
+
+        ResultCache expiring = new ResultCache(16, Duration.ofNanos(1));
+        expiring.evaluate(expr, Map.of("x", Rational.ONE, "y", Rational.ONE));
+        Thread.sleep(1);
+        expiring.evaluate(expr, Map.of("x", Rational.ONE, "y", Rational.ONE));
+        Assertions.assertEquals(4, calls.get());
+        Assertions.assertEquals(1, expiring.getStats().getEvictions());
+
+        // results of impure functions, here through a macro, are never cached
+        AtomicInteger ticks = new AtomicInteger();
+        Function tick = new Function("tick", 0) {
+            @Override
+            protected Number evaluate(Number... arguments) {
+                return Rational.valueOf(ticks.incrementAndGet());
+            }
+        };
+        DecimalExpr withMacro = new DecimalExpr.Builder().expression("x + m").function(tick)
+                .variable("x").macro("m").build();
+        withMacro.setMacro("m", "tick()");
+        CompiledExpr impure = withMacro.compile();
+        Assertions.assertFalse(impure.isPure());
+        Assertions.assertTrue(expr.isPure());
+        Assertions.assertNotEquals(results.evaluate(impure, Map.of("x", Rational.ONE)),
+                results.evaluate(impure, Map.of("x", Rational.ONE)));
+        Assertions.assertEquals(2, results.size());
+    }
+
+    @Test
+    void testLexer() {
+        DecimalExpr expr = new DecimalExpr.Builder().expression("0.{3}*x_1 + .5*2-x_1/3").variable("x_1").build();
+        expr.setVariable("x_1", 3);
+        Assertions.assertEquals(Rational.ONE, expr.evaluate());
+        Assertions.assertThrows(BuildException.class,
+                () -> new DecimalExpr.Builder().expression("0.{3 + 1").build());
+    }
+
+    @Test
+    void testLongSum() {
+        StringBuilder builder = new StringBuilder("x");
+        for (int i = 1; i < 50000; i++) builder.append(i % 2 == 0 ? "+2*" : "-").append("x^2");
+        DecimalExpr expr = new DecimalExpr.Builder().expression(builder.toString()).variable("x").build();
+        expr.setVariable("x", 3);
+        // x, 25000 terms of -x^2 and 24999 terms of +2x^2
+        Assertions.assertEquals(Rational.valueOf(3 - 25000 * 9 + 24999 * 18), expr.evaluate());
+
+        DecimalExpr mixed = new DecimalExpr.Builder().expression("-2^2+3*2-4/2/2").build();
+        Assertions.assertEquals(Rational.ONE, mixed.evaluate());
+    }
+
+    @Test
+    void testExpressionLoader() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++) text.append(i).append("x+y\n");
+        text.append("\r\n1+\r\n  \nx*y");
+        ExpressionLoader loader = new ExpressionLoader(() -> new DecimalExpr.Builder().variable("x").variable("y"));
+
+        Path file = Files.createTempFile("formulas", ".txt");
+        try {
+            Files.writeString(file, text);
+            List<ExpressionLoader.Result> results = List.of(loader.load(text),
+                    loader.load(file),
+                    loader.load(new java.io.StringReader(text.toString())));
+            for (ExpressionLoader.Result result : results) {
+                Assertions.assertEquals(504, result.lineCount());
+                Assertions.assertEquals(501, result.getExpressions().size());
+                Assertions.assertNull(result.get(501));
+                Assertions.assertNull(result.get(503));
+                Assertions.assertEquals(1, result.getErrors().size());
+                Assertions.assertEquals(502, result.getErrors().get(0).getLineNumber());
+                Assertions.assertEquals("1+", result.getErrors().get(0).getText());
+
+                DecimalExpr expr = result.get(8);
+                expr.setVariable("x", 2);
+                expr.setVariable("y", 3);
+                Assertions.assertEquals(Rational.valueOf(17), expr.evaluate());
+                DecimalExpr last = result.get(504);
+                last.setVariable("x", 2);
+                last.setVariable("y", 3);
+                Assertions.assertEquals(Rational.valueOf(6), last.evaluate());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void testExpressionArchive() throws IOException {
+        // Horner form, which stays deeper than MAX_TREE_DEPTH after simplification
+        int depth = DecimalExpr.MAX_TREE_DEPTH;
+        StringBuilder deep = new StringBuilder("(".repeat(depth)).append("x");
+        for (int i = 0; i < depth; i++) deep.append(")*x+1");
+        List<String> sources = List.of("(x+1)^2 + (x+1)^2 - 0.25", "sum(k, k x, 1, 3) * m",
+                "cos(x) + 12345678901234567890123/7", "2i*x + pi", deep.toString(), "y");
+        List<DecimalExpr> built = new ArrayList<>();
+        for (String source : sources) {
+            built.add(new DecimalExpr.Builder().expression(source).function(cosine).variable("x").macro("m").build());
+        }
+
+        Path file = Files.createTempFile("expressions", ".dxar");
+        try {
+            ExpressionArchive.write(file, built);
+            ExpressionArchive archive = ExpressionArchive.open(file);
+            Assertions.assertEquals(sources.size(), archive.size());
+            List<DecimalExpr> loaded = archive.loadAll(
+                    () -> new DecimalExpr.Builder().function(cosine).variable("x").macro("m"));
+            Assertions.assertTrue(loaded.get(4).isDeep());
+            for (int i = 0; i < sources.size(); i++) {
+                DecimalExpr original = built.get(i);
+                DecimalExpr copy = loaded.get(i);
+                Assertions.assertEquals(original.isDeep(), copy.isDeep(), sources.get(i));
+                for (DecimalExpr expr : List.of(original, copy)) {
+                    expr.setVariable("x", Rational.fromFraction(3, 2));
+                    expr.setMacro("m", Rational.TWO);
+                }
+                if (i == sources.size() - 1) {
+                    Assertions.assertThrows(BuildException.class, copy::evaluate);
+                } else {
+                    Assertions.assertEquals(original.evaluate(), copy.evaluate(), sources.get(i));
+                }
+            }
+
+            // the environment must declare what the expressions use
+            BuildException missing = Assertions.assertThrows(BuildException.class,
+                    () -> archive.load(2, new DecimalExpr.Builder().variable("x")));
+            Assertions.assertTrue(missing.getMessage().contains("cos"));
+
+            Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            Assertions.assertThrows(IOException.class, () -> ExpressionArchive.open(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void testSourceGenerator() throws Exception {
+        StringBuilder longSum = new StringBuilder("cos(x)");
+        for (int i = 1; i < 1500; i++) longSum.append(" + cos(x + ").append(i).append(")");
+        StringBuilder literals = new StringBuilder("(x+1000)^2");
+        for (int i = 1001; i < 9000; i++) literals.append(" + (x+").append(i).append(")^2");
+        Path directory = Files.createTempDirectory("formulas");
+        try {
+            Path formulas = directory.resolve("formulas.txt");
+            Files.writeString(formulas, "# generated by BuilderTest\n" +
+                    "Square(x, y) = (x+y)^2 - (x+y)/4 + 0.125 - -x\n" +
+                    "\n" +
+                    "Circle(r) = 2 pi r + cos(r) + 3! + abs(-r)\n" +
+                    "Plain = 2i - e\n" +
+                    "Long(x) = " + longSum + "\n" +
+                    "Literals(x) = " + literals + "\n");
+            SourceGenerator generator = new SourceGenerator("generated.formulas")
+                    .function(SourceFixtures.COSINE, "trashsoftware.decimalExpr.SourceFixtures.COSINE")
+                    .operator(SourceFixtures.FACTORIAL, "trashsoftware.decimalExpr.SourceFixtures.FACTORIAL");
+            List<Path> generated = generator.generate(formulas, directory.resolve("src"));
+            Assertions.assertEquals(5, generated.size());
+
+            // decimal literals are generated as the expression reads them
+            DecimalExpr decimals = new DecimalExpr.Builder().expression("x/3 + 0.125").variable("x")
+                    .approxRational(false).build();
+            Path decimalsSource = generated.get(0).resolveSibling("Decimals.java");
+            Files.writeString(decimalsSource, generator.generate("Decimals", decimals));
+            DecimalExpr repeating = new DecimalExpr.Builder().expression("x+0.{142857}").variable("x")
+                    .approxRational(false).build();
+            Assertions.assertThrows(NumberFormatException.class, () -> generator.generate("Repeating", repeating));
+
+            JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+            Path classes = directory.resolve("classes");
+            String classPath = Path.of(Evaluable.class.getProtectionDomain().getCodeSource().getLocation().toURI()) +
+                    File.pathSeparator +
+                    Path.of(BuilderTest.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            List<String> arguments = new ArrayList<>(List.of("-d", classes.toString(), "-cp", classPath));
+            for (Path path : generated) arguments.add(path.toString());
+            arguments.add(decimalsSource.toString());
+            Assertions.assertEquals(0, javac.run(null, null, null, arguments.toArray(new String[0])));
+
+            try (URLClassLoader loader = new URLClassLoader(new URL[]{classes.toUri().toURL()},
+                    BuilderTest.class.getClassLoader())) {
+                Map<String, DecimalExpr> interpreted = Map.of(
+                        "Square", new DecimalExpr.Builder().expression("(x+y)^2 - (x+y)/4 + 0.125 - -x")
+                                .variable("x").variable("y").build(),
+                        "Circle", new DecimalExpr.Builder().expression("2 pi r + cos(r) + 3! + abs(-r)")
+                                .variable("r").function(SourceFixtures.COSINE)
+                                .operator(SourceFixtures.FACTORIAL).build(),
+                        "Plain", new DecimalExpr.Builder().expression("2i - e").build(),
+                        "Long", new DecimalExpr.Builder().expression(longSum.toString())
+                                .variable("x").function(SourceFixtures.COSINE).build(),
+                        "Literals", new DecimalExpr.Builder().expression(literals.toString())
+                                .variable("x").build(),
+                        "Decimals", decimals);
+                for (Map.Entry<String, DecimalExpr> entry : interpreted.entrySet()) {
+                    Evaluable compiled = (Evaluable) loader.loadClass("generated.formulas." + entry.getKey())
+                            .getConstructor().newInstance();
+                    for (Evaluable expr : List.of(entry.getValue(), compiled)) {
+                        if (!entry.getKey().equals("Plain") && !entry.getKey().equals("Circle")) {
+                            expr.setVariable("x", Rational.fromFraction(3, 2));
+                        }
+                        if (entry.getKey().equals("Square")) expr.setVariable("y", 5);
+                        if (entry.getKey().equals("Circle")) expr.setVariable("r", Rational.fromFraction(-7, 3));
+                    }
+                    Assertions.assertEquals(entry.getValue().evaluate(), compiled.evaluate(), entry.getKey());
+                    Assertions.assertThrows(BuildException.class, () -> compiled.setVariable("z", 1));
+                }
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path path : files.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) Files.delete(path);
+            }
+        }
+
+        // operators and functions that are not builtin need a reference, and macro functions are interpreted
+        DecimalExpr circle = new DecimalExpr.Builder().expression("cos(r)").variable("r").function(cosine).build();
+        BuildException missing = Assertions.assertThrows(BuildException.class,
+                () -> new SourceGenerator("").generate("Circle", circle));
+        Assertions.assertTrue(missing.getMessage().contains("cos"));
+        DecimalExpr sum = new DecimalExpr.Builder().expression("sum(k, k x, 1, 3)").variable("x").build();
+        Assertions.assertThrows(BuildException.class, () -> new SourceGenerator("").generate("Sum", sum));
+    }
+
+    @Test
+    void testProfiler() {
+        DecimalExpr plain = new DecimalExpr.Builder().expression("(x+1)^2 + sum(k, k x, 1, 10) + m")
+                .variable("x").macro("m").build();
+        DecimalExpr profiled = new DecimalExpr.Builder().expression("(x+1)^2 + sum(k, k x, 1, 10) + m")
+                .variable("x").macro("m").profile(2).build();
+        for (DecimalExpr expr : List.of(plain, profiled)) expr.setMacro("m", "x/3");
+        for (int i = 0; i < 10; i++) {
+            for (DecimalExpr expr : List.of(plain, profiled)) expr.setVariable("x", Rational.fromFraction(i, 7));
+            Assertions.assertEquals(plain.evaluate(), profiled.evaluate());
+        }
+
+        Profiler profiler = profiled.getProfiler();
+        Assertions.assertEquals(10, profiler.getEvaluations());
+        Assertions.assertEquals(5, profiler.getSampledEvaluations());
+        Map<String, Profiler.NodeStats> stats = new HashMap<>();
+        for (Profiler.NodeStats nodeStats : profiler.hotSpots(Integer.MAX_VALUE)) {
+            stats.put(nodeStats.getLabel(), nodeStats);
+        }
+        Assertions.assertEquals(5, stats.get("sum()").getCalls());
+        Assertions.assertEquals(50, stats.get("Binary(*)").getCalls());
+        Assertions.assertEquals(5, stats.get("m").getCalls());
+        Assertions.assertTrue(stats.get("sum()").getTotalNanos() >= stats.get("sum()").getSelfNanos());
+        String report = profiler.report();
+        Assertions.assertTrue(report.contains("10 evaluations, 5 profiled"), report);
+        Assertions.assertTrue(report.contains("Binary(^)"), report);
+        Assertions.assertTrue(report.contains("Hot spots:"), report);
+
+        profiler.reset();
+        Assertions.assertEquals(0, profiler.hotSpots(Integer.MAX_VALUE).size());
+
+        // exact rational growth and decimal precision are recorded per node
+        DecimalExpr growth = new DecimalExpr.Builder().expression("x^20 + sqrt(y)")
+                .variable("x").variable("y").profile().build();
+        growth.setVariable("x", Rational.fromFraction(123456789, 1000));
+        growth.setVariable("y", Decimal.createDecimal(2));
+        growth.evaluate();
+        stats.clear();
+        for (Profiler.NodeStats nodeStats : growth.getProfiler().hotSpots(Integer.MAX_VALUE)) {
+            stats.put(nodeStats.getLabel(), nodeStats);
+        }
+        Assertions.assertEquals(BigInteger.valueOf(123456789).pow(20).bitLength(),
+                stats.get("Binary(^)").getMaxNumeratorBits());
+        Assertions.assertEquals(BigInteger.valueOf(1000).pow(20).bitLength(),
+                stats.get("Binary(^)").getMaxDenominatorBits());
+        Assertions.assertTrue(stats.get("sqrt()").getMaxPrecision() > 30);
+
+        Assertions.assertThrows(BuildException.class, plain::getProfiler);
+        Assertions.assertFalse(plain.isProfiled());
+        Assertions.assertThrows(BuildException.class,
+                () -> new DecimalExpr.Builder().expression("x+1").variable("x").postfix().profile().build());
+
+        // trees too deep to evaluate recursively are built without a profiler
+        int depth = DecimalExpr.MAX_TREE_DEPTH;
+        StringBuilder horner = new StringBuilder("(".repeat(depth)).append("x");
+        for (int i = 0; i < depth; i++) horner.append(")*x+1");
+        DecimalExpr deep = new DecimalExpr.Builder().expression(horner).variable("x").profile(100).build();
+        deep.setVariable("x", 1);
+        Assertions.assertEquals(Rational.valueOf(depth + 1), deep.evaluate());
+        Assertions.assertFalse(deep.isProfiled());
+        Assertions.assertTrue(profiled.isProfiled());
+        Assertions.assertThrows(BuildException.class, deep::getProfiler);
+    }
 }
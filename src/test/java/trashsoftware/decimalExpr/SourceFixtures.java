@@ -0,0 +1,33 @@
+package trashsoftware.decimalExpr;
+
+import trashsoftware.decimalExpr.expression.Function;
+import trashsoftware.decimalExpr.expression.Operator;
+import trashsoftware.decimalExpr.expression.UnaryOperator;
+import trashsoftware.decimalExpr.numbers.Decimal;
+import trashsoftware.decimalExpr.numbers.Number;
+import trashsoftware.decimalExpr.numbers.Rational;
+import trashsoftware.decimalExpr.numbers.Real;
+import trashsoftware.decimalExpr.util.Calculations;
+
+/**
+ * Operators and functions that classes generated by {@code SourceGenerator} in tests refer to.
+ */
+public final class SourceFixtures {
+
+    public static final Operator FACTORIAL = new UnaryOperator("!", Operator.PRECEDENCE_NEGATION, false) {
+        @Override
+        public Number eval(Number value) {
+            return Calculations.factorial((Rational) value);
+        }
+    };
+
+    public static final Function COSINE = new Function("cos", 1) {
+        @Override
+        protected Number evaluate(Number... arguments) {
+            return Decimal.createDecimal(Math.cos(((Real) arguments[0]).doubleValue()));
+        }
+    };
+
+    private SourceFixtures() {
+    }
+}
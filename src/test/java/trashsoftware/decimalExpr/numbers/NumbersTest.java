@@ -4,6 +4,10 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Assertions;
 import trashsoftware.decimalExpr.util.Calculations;
 
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Random;
+
 public class NumbersTest {
 
     @Test
@@ -107,4 +111,107 @@ public class NumbersTest {
         Number a = Rational.fromDecimalString("0.{142857}");
         System.out.println(a);
     }
+
+    @Test
+    void testRationalSmallCache() {
+        Assertions.assertSame(Rational.valueOf(7), Rational.fromBigInt(BigInteger.valueOf(7)));
+        Assertions.assertSame(Rational.ZERO, Rational.fromFraction(0, -5));
+        Assertions.assertSame(Rational.ONE, Rational.fromFraction(3, 4).mul(Rational.fromFraction(4, 3)));
+    }
+
+    @Test
+    void testRationalOverflowPromotion() {
+        Rational max = Rational.valueOf(Long.MAX_VALUE);
+        Rational sum = (Rational) max.add(Rational.ONE);
+        Assertions.assertFalse(sum.isSmall());
+        Assertions.assertEquals(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE), sum.getNumerator());
+
+        Rational back = (Rational) sum.sub(Rational.TWO);
+        Assertions.assertTrue(back.isSmall());
+        Assertions.assertEquals(Rational.valueOf(Long.MAX_VALUE - 1), back);
+
+        Rational product = (Rational) max.mul(max);
+        Assertions.assertEquals(BigInteger.valueOf(Long.MAX_VALUE).pow(2), product.getNumerator());
+        Assertions.assertEquals(max, product.div(max));
+    }
+
+    @Test
+    void testRationalMinValue() {
+        Rational min = Rational.valueOf(Long.MIN_VALUE);
+        Assertions.assertFalse(min.isSmall());
+        Assertions.assertEquals(BigInteger.valueOf(Long.MIN_VALUE).negate(), ((Rational) min.neg()).getNumerator());
+        Assertions.assertSame(Rational.ONE, Rational.fromFraction(Long.MIN_VALUE, Long.MIN_VALUE));
+        Assertions.assertTrue(Rational.fromFraction(Long.MIN_VALUE, 2).isSmall());
+    }
+
+    @Test
+    void testRationalSmallArithmetic() {
+        Rational a = Rational.fromFraction(5, 6);
+        Rational b = Rational.fromFraction(-7, 10);
+        Assertions.assertEquals(Rational.fromFraction(2, 15), a.add(b));
+        Assertions.assertEquals(Rational.fromFraction(23, 15), a.sub(b));
+        Assertions.assertEquals(Rational.fromFraction(-7, 12), a.mul(b));
+        Assertions.assertEquals(Rational.fromFraction(-25, 21), a.div(b));
+        Assertions.assertEquals(Rational.ZERO, a.sub(a));
+        Assertions.assertTrue(a.compareTo(b) > 0);
+        Assertions.assertTrue(b.compareTo(a) < 0);
+        Assertions.assertEquals(0, a.compareTo(Rational.fromFraction(10, 12)));
+        Assertions.assertThrows(ArithmeticException.class, () -> a.div(Rational.ZERO));
+    }
+
+    @Test
+    void testRationalBigKernel() {
+        Random random = new Random(7);
+        BigInteger common = new BigInteger(300, random);
+        for (int i = 0; i < 50; i++) {
+            BigInteger a = new BigInteger(1000, random).multiply(common);
+            BigInteger b = new BigInteger(1000, random).add(BigInteger.ONE);
+            BigInteger c = new BigInteger(1000, random).negate();
+            BigInteger d = new BigInteger(1000, random).multiply(common).add(BigInteger.ONE);
+            Rational x = Rational.fromFraction(a, b);
+            Rational y = Rational.fromFraction(c, d);
+
+            // naive results, reduced by the constructor
+            Assertions.assertEquals(Rational.fromFraction(a.multiply(d).add(c.multiply(b)), b.multiply(d)), x.add(y));
+            Assertions.assertEquals(Rational.fromFraction(a.multiply(d).subtract(c.multiply(b)), b.multiply(d)),
+                    x.sub(y));
+            Assertions.assertEquals(Rational.fromFraction(a.multiply(c), b.multiply(d)), x.mul(y));
+            Assertions.assertEquals(Rational.fromFraction(a.multiply(d), b.multiply(c)), x.div(y));
+            Assertions.assertEquals(Integer.signum(a.multiply(d).compareTo(c.multiply(b))), x.compareTo(y));
+            Assertions.assertEquals(0, x.compareTo(Rational.fromFraction(a.multiply(d), b.multiply(d))));
+        }
+    }
+
+    @Test
+    void testMixedCompare() {
+        Assertions.assertTrue(Rational.fromFraction(1, 3).compareTo(Decimal.createDecimal(0.3)) > 0);
+        Assertions.assertTrue(Decimal.PI.compareTo(Rational.fromFraction(22, 7)) < 0);
+        Assertions.assertEquals(0, Decimal.E.compareTo(Decimal.E));
+    }
+
+    @Test
+    void testHashCode() {
+        BigInteger big = BigInteger.TWO.pow(80);
+        Assertions.assertEquals(Rational.fromFraction(3, 4).hashCode(), Rational.fromFraction(6, 8).hashCode());
+        Assertions.assertEquals(Rational.fromFraction(big, big.add(BigInteger.ONE)).hashCode(),
+                Rational.fromFraction(big.shiftLeft(1), big.add(BigInteger.ONE).shiftLeft(1)).hashCode());
+        Assertions.assertEquals(Rational.valueOf(5).hashCode(),
+                Rational.fromFraction(BigInteger.valueOf(5).multiply(big), big).hashCode());
+        Assertions.assertEquals(Complex.createComplex(Rational.ONE, Rational.fromFraction(1, 2)).hashCode(),
+                Complex.createComplex(Rational.valueOf(1), Rational.fromFraction(2, 4)).hashCode());
+    }
+
+    @Test
+    void testBitLength() {
+        BigInteger big = BigInteger.TWO.pow(100).add(BigInteger.ONE);
+        List<Rational> rationals = List.of(Rational.ZERO, Rational.ONE, Rational.valueOf(-1), Rational.valueOf(-8),
+                Rational.fromFraction(Long.MAX_VALUE, 3), Rational.valueOf(Long.MIN_VALUE + 1),
+                Rational.fromFraction(big.negate(), BigInteger.valueOf(7)), Rational.fromFraction(BigInteger.ONE, big));
+        for (Rational rational : rationals) {
+            Assertions.assertEquals(rational.getNumerator().bitLength(), rational.numeratorBitLength(),
+                    rational.toString());
+            Assertions.assertEquals(rational.getDenominator().bitLength(), rational.denominatorBitLength(),
+                    rational.toString());
+        }
+    }
 }